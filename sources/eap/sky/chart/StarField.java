@@ -22,7 +22,6 @@ import eap.sky.util.coordinates.*;
 import eap.sky.stars.*;
 
 import java.util.*;
-import java.lang.ref.*;
 import java.awt.Graphics2D;
 import java.awt.Color;
 import java.awt.event.*;
@@ -39,13 +38,23 @@ public static final int       NO_SELECTION = 0;
 public static final int   SINGLE_SELECTION = 1;
 public static final int MULTIPLE_SELECTION = 2;
 
+/***************************************************************************
+* The default memory budget for the cached dots, 16 MB.
+***************************************************************************/
+public static final long DOT_CACHE_BUDGET = 16L*1024L*1024L;
+
+/***************************************************************************
+* Rough size of a dot in bytes, for the dot cache.
+***************************************************************************/
+private static final long DOT_BYTES = 200;
+
 Band band;
 String catalog_name;
 
 int selection_mode;
 
 java.util.List<List<SelectableDot>> hard_star_lists;
-Map<Cell, Reference<List<SelectableDot>>> stars;
+CellCache<Cell, List<SelectableDot>> stars;
 InputCell root;
 
 int max_stars;
@@ -70,7 +79,7 @@ public StarField(StarCatalog catalog, int selection_mode) {
     this.band = catalog.getSortBand();
     this.catalog_name = catalog.getName();
 
-    stars = new HashMap<Cell, Reference<List<SelectableDot>>>();
+    stars = new CellCache<Cell, List<SelectableDot>>(DOT_CACHE_BUDGET);
     hard_star_lists = new ArrayList<List<SelectableDot>>();
 
     selected = new HashSet<SelectableDot>();
@@ -88,6 +97,15 @@ public StarField(StarCatalog catalog, int selection_mode) {
 ***************************************************************************/
 public String getCatalogName() { return catalog_name; }
 
+/***************************************************************************
+* Returns the cache of dots made for each cell. You can use this to change
+* its memory budget or look at its hit and miss counts. The dots for the
+* visible cells are held separately, so they are never lost while they
+* are on the chart.
+* @return The dot cache.
+***************************************************************************/
+public CellCache<Cell, List<SelectableDot>> getDotCache() { return stars; }
+
 /***************************************************************************
 *
 ***************************************************************************/
@@ -217,16 +235,13 @@ public void update(ChartState state) {
         /*************************************************
         * Make sure we have a list of dots for this cell *
         *************************************************/
-        List<SelectableDot> list = null;
-        Reference<List<SelectableDot>> ref = (Reference<List<SelectableDot>>)stars.get(cell);
-        if(ref != null) list = (java.util.List<SelectableDot>)ref.get();
+        List<SelectableDot> list = stars.get(cell);
 
         if(list == null) {
             /*************************************************
             * we don't have a list, so we need to create one *
             *************************************************/
             list = new ArrayList<SelectableDot>();
-            stars.put(cell, new SoftReference<List<SelectableDot>>(list));
             for(Iterator it2 = cell.getStars().iterator();
                 it2.hasNext(); ) {
                 Star star = (Star)it2.next();
@@ -246,6 +261,9 @@ public void update(ChartState state) {
                                         Coordinates.RA_DEC, star ));
 
             } // end of loop over stars
+
+            stars.put(cell, list, DOT_BYTES*list.size());
+
         } else if(limit_changed) {
             /**********************************************
             * we have a list, but our limiting magnitude
@@ -17,6 +17,8 @@
 
 package eap.sky.image;
 
+import eap.sky.stars.*;
+
 import java.io.*;
 
 /*********************************************************************
@@ -25,6 +27,7 @@ import java.io.*;
 public class Detection implements Comparable<Detection>, Serializable {
 
 String name;
+transient Star star;
 double x;
 double y;
 double mag;
@@ -53,10 +56,41 @@ public Detection(String name, double x, double y, double mag) {
 
 } // end of constructor
 
+/*********************************************************************
+* Create a detection of a catalog star. The star's name is only looked
+* up if it is asked for, so catalogs which store names separately
+* don't have to read them.
+*********************************************************************/
+public Detection(Star star, double x, double y, double mag) {
+
+    this((String)null, x, y, mag, Double.NaN);
+    this.star = star;
+
+} // end of catalog star constructor
+
 /*********************************************************************
 *
 *********************************************************************/
-public String getName() { return name; }
+public String getName() {
+
+    if(name == null && star != null) {
+        name = star.getName();
+        star = null;
+    }
+
+    return name;
+
+} // end of getName method
+
+/*********************************************************************
+* Look up the name before serializing, since the star isn't saved.
+*********************************************************************/
+private void writeObject(ObjectOutputStream out) throws IOException {
+
+    getName();
+    out.defaultWriteObject();
+
+} // end of writeObject method
 
 /*********************************************************************
 *
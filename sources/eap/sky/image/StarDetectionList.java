@@ -76,55 +76,41 @@ public void set(ImageParams params) throws IOException {
 
     Angle radius = ra_dec0.angleBetween(ra_dec1).times(1.2);
 
-    /*************************************************
-    * find the catalog cells covering the image area *
-    *************************************************/
-    Collection cells = catalog.getRootCell().getCellsNear(ra_dec0, radius);
-
+    /***********************************************
+    * find all the stars in the image area, without
+    * any magnitude limit
+    ***********************************************/
     Band band = catalog.getSortBand();
 
-    /*********************
-    * find all the stars *
-    *********************/
     clear();
-    for(Iterator it = cells.iterator(); it.hasNext(); ) {
-        InputCell cell = (InputCell)it.next();
-
-        /***************************************
-        * loop over all the stars in this cell *
-        ***************************************/
-        for(Iterator it2 = cell.getStars().iterator(); it2.hasNext(); ) {
-            Star star = (Star)it2.next();
-
-            if(star.getDirection().angleBetween(ra_dec0).compareTo(radius)>0) {
-                continue;
-            }
-
-            /**************************************
-            * transform to focal plane coordinates
-            **************************************/
-            Location focal_loc = params.toCoordinates(star.getDirection(),
-                                                      focal_coord);
-
-            if(focal_loc == null) continue;
-
-            Point2D point = focal_loc.getPoint();
-            double x = point.getX();
-            double y = point.getY();
-
-            /********************************
-            * get the magnitude of the star *
-            ********************************/
-            float mag = star.getPhotometry().getMagnitude(band).getValue();
-
-            /**********************
-            * store the detection *
-            **********************/
-            add(new Detection(star.getName(), x, y, mag));
-
-       } // end of loop over stars
-
-    } // end of loop over cells
+    for(Iterator<Star> it = catalog.coneSearch(ra_dec0, radius,
+                                               Float.MAX_VALUE);
+        it.hasNext(); ) {
+        Star star = it.next();
+
+        /**************************************
+        * transform to focal plane coordinates
+        **************************************/
+        Location focal_loc = params.toCoordinates(star.getDirection(),
+                                                  focal_coord);
+
+        if(focal_loc == null) continue;
+
+        Point2D point = focal_loc.getPoint();
+        double x = point.getX();
+        double y = point.getY();
+
+        /********************************
+        * get the magnitude of the star *
+        ********************************/
+        float mag = star.getPhotometry().getMagnitude(band).getValue();
+
+        /**********************
+        * store the detection *
+        **********************/
+        add(new Detection(star, x, y, mag));
+
+    } // end of loop over stars
 
     updateMagnitudeSelection();
 
@@ -20,96 +20,85 @@ package eap.sky.stars;
 import java.util.*;
 
 /***************************************************************************
-*
+* A {@link RegionSearch} which counts the stars and cells it has used, and
+* which can tell how far down the open cells are complete. This is the
+* search to use when you want the brightest few stars in a region without
+* a magnitude limit, for example to pick guide stars. Since a child cell
+* is only opened when it could hold a star brighter than the next star
+* from the cells already open, taking the first N stars reads roughly the
+* cells needed to hold N stars, however dim a limit you give.
+* @see StarCatalog#getBrightestStars(CellRegion, int)
 ***************************************************************************/
-public class CatalogLayer {
-
-CellRegion region;
-
-Set<InputCell> leaves;
-Set<InputCell> branches;
+public class CatalogLayer extends RegionSearch {
 
 int nstars;
 
 /***************************************************************************
-*
+* Create a search with no magnitude limit.
 ***************************************************************************/
 public CatalogLayer(CellRegion region, StarCatalog catalog) {
 
-    this.region = region;
+    this(region, catalog, Float.POSITIVE_INFINITY);
 
-    nstars = 0;
-    add(catalog.getRootCell());
+} // end of constructor without a limit
+
+/***************************************************************************
+* @param region The area of the sky to search.
+* @param catalog The catalog to search.
+* @param dimmest The dimmest magnitude to return in the sort band of the
+*        catalog.
+***************************************************************************/
+public CatalogLayer(CellRegion region, StarCatalog catalog, float dimmest) {
+
+    super(catalog, region, dimmest);
 
 } // end of constructor
 
 /***************************************************************************
-*
+* Returns the number of stars returned so far.
 ***************************************************************************/
 public int getStarCount() { return nstars; }
 
 /***************************************************************************
-*
+* Returns the number of cells opened so far.
 ***************************************************************************/
-public void step() {
-
-    /**************************
-    * find the brightest leaf *
-    **************************/
-    InputCell brightest = null;
-    for(InputCell cell : leaves) {
-
-        if(brightest == null || brightest.getDimmestMag() >
-                                     cell.getDimmestMag()   ) {
-            brightest = cell;
-        }
-    } // end of loop over leaves
-
-    /*******************************************************
-    * take the brightest out of the list of leaves
-    * because we are going to replace it with its children
-    *******************************************************/
-    remove(brightest);
-
-    /********************************
-    * sub-divide the brightest cell *
-    ********************************/
-    for(Cell c : brightest.getChildren()) {
-        InputCell child = (InputCell)c;
+public int getCellCount() { return ncells; }
 
-        /***************************************
-        * discard the cells outside the region *
-        ***************************************/
-        if(region.contains(child)) add(child);
+/***************************************************************************
+* Returns the magnitude down to which the open cells hold every star in
+* the region. Any star brighter than this which has not been returned
+* yet is in a cell which is already open.
+***************************************************************************/
+public float getCompleteMag() {
 
-    } // end of loop over child cells
+    Layer next = layers.peek();
+    if(next == null) return dimmest;
+    else             return Math.min(next.mag, dimmest);
 
-} // end of step method
+} // end of getCompleteMag method
 
 /***************************************************************************
 *
 ***************************************************************************/
-private void add(InputCell cell) {
+public Star next() {
 
-    if(cell.hasChildren()) branches.add(cell);
-    else                     leaves.add(cell);
+    Star star = super.next();
+    ++nstars;
 
-    nstars += cell.getStarCount();
-
-} // end of add method
+    return star;
 
+} // end of next method
 
 /***************************************************************************
-*
+* Returns up to a given number of the brightest stars not returned yet.
 ***************************************************************************/
-private void remove(InputCell cell) {
+public List<Star> next(int count) {
 
-    if(!leaves.remove(cell)) {
-        throw new IllegalArgumentException(cell.getName()+" is not a leaf");
-    }
+    List<Star> stars = new ArrayList<Star>(count);
+    while(stars.size() < count && hasNext()) stars.add(next());
 
-    nstars -= cell.getStarCount();
+    return stars;
 
-} // end of remove method
+} // end of next several method
 
-} // end of CatalogLayer class
\ No newline at end of file
+} // end of CatalogLayer class
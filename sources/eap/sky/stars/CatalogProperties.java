@@ -36,6 +36,7 @@ public static final String      CELL_KEY = "cell";
 public static final String   VERSION_KEY = "version";
 public static final String    FORMAT_KEY = "format";
 public static final String SORT_BAND_KEY = "sort_band";
+public static final String   COLUMNS_KEY = "columns";
 
 Archive archive;
 Properties properties;
@@ -89,6 +90,12 @@ public String getVersion() { return getProperty(VERSION_KEY); }
 ************************************************************************/
 public String getSortBandName() { return getProperty(SORT_BAND_KEY); }
 
+/************************************************************************
+* Returns the name of the {@link ColumnStore} file for this catalog.
+* @return The file name, or null if the catalog does not have a column store.
+************************************************************************/
+public String getColumnStoreName() { return getProperty(COLUMNS_KEY); }
+
 /************************************************************************
 * Creates the root tessellation cell. Note this is not the InputCell,
 * which holds the stars.
@@ -52,6 +52,8 @@ protected static final int YES = 1;
 protected static final int NO  = 2;
 protected static final int MAYBE = 3;
 
+private static final Object DETACH_LOCK = new Object();
+
 private Cell parent;
 private int has_children;
 private ArrayList<Cell> children;
@@ -83,10 +85,12 @@ public abstract ArcPath getBoundary();
 
 /**************************************************************************
 * returns true if this cell has children. Note that this may create the
-* objects representing the children of this cell.
+* objects representing the children of this cell. The children are created
+* while holding the lock on this cell, so several threads may walk the same
+* tree.
 * @return true of this cell has children in the tessellation scheme.
 **************************************************************************/
-public boolean hasChildren() {
+public synchronized boolean hasChildren() {
 
     if(has_children == MAYBE) {
         initChildren();
@@ -136,11 +140,17 @@ protected void addChild(Cell child) {
 } // end of addChild method
 
 /**************************************************************************
-*
+* Remove this cell from its parent, and remove the parent from its own
+* parent if that leaves it childless, and so on up the tree. Since this
+* can reach cells far above this one, all detaching is done while holding
+* a single lock, so that threads working on different subtrees may
+* detach cells at the same time.
 **************************************************************************/
 public void detach() {
 
-    if(parent != null) parent.removeChild(this);
+    synchronized(DETACH_LOCK) {
+        if(parent != null) parent.removeChild(this);
+    }
 
 } // end of detach method
 
@@ -227,6 +237,16 @@ protected abstract void createChildren();
 **************************************************************************/
 public abstract String getName();
 
+/**************************************************************************
+* Returns a numeric identifier for this cell. Tessellation schemes
+* which number their cells should override this method. Looking up
+* cells by number is much cheaper than looking them up by name.
+* @return the unique number of this cell, or -1 if the tessellation scheme
+* does not number its cells. This implementation always returns -1.
+* @see HTMId
+**************************************************************************/
+public long getID() { return -1L; }
+
 /**************************************************************************
 * Returns a child of this cell which contains the given direction.
 * If the direction lies on a boundary between child cells, this method will
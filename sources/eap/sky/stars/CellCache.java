@@ -0,0 +1,250 @@
+// Copyright 2012 Edward Alan Pier
+//
+// This file is part of eap.sky
+// 
+// eap.sky is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// eap.sky is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with eap.sky.  If not, see <http://www.gnu.org/licenses/>.
+
+package eap.sky.stars;
+
+import java.util.*;
+
+/**************************************************************************
+* A memory cache for per-cell data, such as the star lists of
+* {@link InputCell}s. Each entry is stored with an estimate of the number
+* of bytes it occupies, and the least recently used entries are discarded
+* whenever the total exceeds a fixed budget. Unlike soft references, this
+* lets you decide how much of the heap the catalog may use, and the counts
+* of hits, misses and evictions tell you whether a slow query had to go
+* to the archive.
+* <p>
+* All methods are synchronized, so a cache may be shared between threads
+* and between catalogs.
+**************************************************************************/
+public class CellCache<K, V> {
+
+/**************************************************************************
+* The budget used by a catalog when you don't set one, 64 MB.
+**************************************************************************/
+public static final long DEFAULT_BUDGET = 64L*1024L*1024L;
+
+long budget;
+long bytes;
+
+long hits;
+long misses;
+long evictions;
+
+LinkedHashMap<K, Entry<V>> map;
+
+/**************************************************************************
+* Create a new empty cache.
+* @param budget The maximum total size of the cached entries in bytes.
+**************************************************************************/
+public CellCache(long budget) {
+
+    if(budget < 0) {
+        throw new IllegalArgumentException("Negative cache budget "+budget);
+    }
+
+    this.budget = budget;
+
+    map = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+
+} // end of constructor
+
+/**************************************************************************
+* Look up an entry. This counts as a hit or a miss, and makes the entry
+* the most recently used.
+* @param key The key of the entry.
+* @return The cached value, or null if it isn't in the cache.
+**************************************************************************/
+public synchronized V get(K key) {
+
+    Entry<V> entry = map.get(key);
+    if(entry == null) {
+        ++misses;
+        return null;
+    }
+
+    ++hits;
+    return entry.value;
+
+} // end of get method
+
+/**************************************************************************
+* Check if an entry is in the cache. Unlike {@link #get(Object)}, this does
+* not count as a hit or a miss, and does not change which entry is least
+* recently used.
+* @param key The key of the entry.
+* @return true if the cache holds a value for the key.
+**************************************************************************/
+public synchronized boolean contains(K key) { return map.containsKey(key); }
+
+/**************************************************************************
+* Add an entry to the cache, replacing any previous value for the same key,
+* and discard the least recently used entries until the cache is within
+* its budget. A value larger than the whole budget is not cached.
+* @param key The key of the entry.
+* @param value The value to cache.
+* @param size The estimated size of the value in bytes.
+**************************************************************************/
+public synchronized void put(K key, V value, long size) {
+
+    remove(key);
+
+    if(size > budget) return;
+
+    map.put(key, new Entry<V>(value, size));
+    bytes += size;
+
+    trim();
+
+} // end of put method
+
+/**************************************************************************
+* Remove an entry from the cache. This does not count as an eviction.
+* @param key The key of the entry.
+* @return The value which was removed, or null if there wasn't one.
+**************************************************************************/
+public synchronized V remove(K key) {
+
+    Entry<V> entry = map.remove(key);
+    if(entry == null) return null;
+
+    bytes -= entry.size;
+    return entry.value;
+
+} // end of remove method
+
+/**************************************************************************
+* Remove all the entries from the cache. This does not count as eviction.
+**************************************************************************/
+public synchronized void clear() {
+
+    map.clear();
+    bytes = 0;
+
+} // end of clear method
+
+/**************************************************************************
+* Discard the least recently used entries until we are within budget.
+**************************************************************************/
+private void trim() {
+
+    for(Iterator<Entry<V>> it = map.values().iterator();
+        bytes > budget && it.hasNext(); ) {
+
+        Entry<V> entry = it.next();
+        it.remove();
+
+        bytes -= entry.size;
+        ++evictions;
+    }
+
+} // end of trim method
+
+/**************************************************************************
+* Change the budget, discarding entries if the cache is now too big.
+* @param budget The maximum total size of the cached entries in bytes.
+**************************************************************************/
+public synchronized void setBudget(long budget) {
+
+    if(budget < 0) {
+        throw new IllegalArgumentException("Negative cache budget "+budget);
+    }
+
+    this.budget = budget;
+    trim();
+
+} // end of setBudget method
+
+/**************************************************************************
+* Returns the maximum total size of the cached entries.
+* @return The budget in bytes.
+**************************************************************************/
+public synchronized long getBudget() { return budget; }
+
+/**************************************************************************
+* Returns the estimated total size of the entries now in the cache.
+* @return The number of bytes resident.
+**************************************************************************/
+public synchronized long getBytes() { return bytes; }
+
+/**************************************************************************
+* Returns the number of entries now in the cache.
+* @return The number of entries.
+**************************************************************************/
+public synchronized int getEntryCount() { return map.size(); }
+
+/**************************************************************************
+* Returns the number of lookups which found an entry.
+* @return The number of hits since the counters were last reset.
+**************************************************************************/
+public synchronized long getHitCount() { return hits; }
+
+/**************************************************************************
+* Returns the number of lookups which did not find an entry.
+* @return The number of misses since the counters were last reset.
+**************************************************************************/
+public synchronized long getMissCount() { return misses; }
+
+/**************************************************************************
+* Returns the number of entries discarded to stay within the budget.
+* @return The number of evictions since the counters were last reset.
+**************************************************************************/
+public synchronized long getEvictionCount() { return evictions; }
+
+/**************************************************************************
+* Set the hit, miss, and eviction counts back to zero.
+**************************************************************************/
+public synchronized void resetCounters() {
+
+    hits = 0;
+    misses = 0;
+    evictions = 0;
+
+} // end of resetCounters method
+
+/**************************************************************************
+* Returns a summary of the cache usage.
+* @return A string giving the counters and the memory in use.
+**************************************************************************/
+public synchronized String toString() {
+
+    return "CellCache entries="+map.size()+" bytes="+bytes+"/"+budget+
+           " hits="+hits+" misses="+misses+" evictions="+evictions;
+
+} // end of toString method
+
+/**************************************************************************
+* A cached value and its size.
+**************************************************************************/
+private static class Entry<V> {
+
+V value;
+long size;
+
+/**************************************************************************
+*
+**************************************************************************/
+Entry(V value, long size) {
+
+    this.value = value;
+    this.size = size;
+
+} // end of constructor
+
+} // end of Entry inner class
+
+} // end of CellCache class
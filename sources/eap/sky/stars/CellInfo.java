@@ -25,6 +25,7 @@ import java.io.*;
 *************************************************************************/
 public class CellInfo {
 
+long id;
 String name;
 boolean leaf;
 float dimmest;
@@ -40,11 +41,40 @@ public CellInfo(String name, boolean leaf, float dimmest) {
 
 } // end of constructor
 
+/*************************************************************************
+* Create cell info for an HTM cell given its numeric ID.
+* @see HTMId
+*************************************************************************/
+public CellInfo(long id, boolean leaf, float dimmest) {
+
+    this.id = id;
+    this.leaf = leaf;
+    this.dimmest = dimmest;
+
+} // end of constructor from an ID
+
 
 /*************************************************************************
 *
 *************************************************************************/
-public String getName() { return name; }
+public String getName() {
+
+    if(name == null) name = HTMId.toName(id);
+    return name;
+
+} // end of getName method
+
+/*************************************************************************
+* Returns the numeric ID of the cell.
+* @throws IllegalArgumentException if this info was created with a name
+*         which is not an HTM cell name.
+*************************************************************************/
+public long getID() {
+
+    if(id == 0L) id = HTMId.fromName(name);
+    return id;
+
+} // end of getID method
 
 /*************************************************************************
 *
@@ -79,7 +109,7 @@ public static CellInfo read(BufferedReader reader) throws IOException {
 *************************************************************************/
 public void write(PrintWriter writer) {
 
-    writer.print(name);
+    writer.print(getName());
     if(leaf) writer.print(" T ");
     else     writer.print(" F ");
     writer.println(dimmest);
@@ -105,7 +135,7 @@ public static CellInfo read(DataInput in) throws IOException {
 *************************************************************************/
 public void write(DataOutput out) throws IOException {
 
-    out.writeUTF(name);
+    out.writeUTF(getName());
     out.writeBoolean(leaf);
     out.writeFloat(dimmest);
 
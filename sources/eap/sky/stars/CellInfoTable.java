@@ -23,27 +23,90 @@ import java.util.*;
 import java.io.*;
 
 /***********************************************************************
-*
+* A table of the {@link CellInfo} for every cell in a catalog. The table
+* is keyed by numeric cell ID and is held as parallel sorted arrays, so
+* it costs a few bytes per cell and a lookup is a binary search.
+* Cells are looked up by name by converting the name to an ID with
+* {@link HTMId#fromName(String)}.
+* <p>
+* The methods which add or look up cells are synchronized, since lookups
+* may sort the arrays. This lets the threads of a catalog generator
+* share a table.
 ***********************************************************************/
 public class CellInfoTable {
 
-Map<String, CellInfo> map;
+long[] ids;
+boolean[] leaves;
+float[] dimmest;
+
+int size;
+boolean sorted;
 
 /***********************************************************************
 *
 ***********************************************************************/
 public CellInfoTable() {
 
-    map = new HashMap<String, CellInfo>();
+    this(1024);
 
 } // end of constructor
 
+/***********************************************************************
+* Create an empty table with room for a given number of cells. The
+* table grows as needed.
+* @param capacity The initial number of cells the table can hold.
+***********************************************************************/
+public CellInfoTable(int capacity) {
+
+    if(capacity < 1) capacity = 1;
+
+    ids     = new long[capacity];
+    leaves  = new boolean[capacity];
+    dimmest = new float[capacity];
+
+    size = 0;
+    sorted = true;
+
+} // end of constructor with a capacity
+
 /***********************************************************************
 *
 ***********************************************************************/
 public void add(CellInfo info) {
 
-    map.put(info.getName(), info);
+    add(info.getID(), info.isLeaf(), info.getDimmestMagnitude());
+
+} // end of add method
+
+/***********************************************************************
+* Add the info for a cell. If the table already has an entry for the
+* cell, it is replaced.
+* @param id The numeric ID of the cell.
+* @param leaf true if the cell has no children.
+* @param dimmest The magnitude of the dimmest star in the cell.
+***********************************************************************/
+public synchronized void add(long id, boolean leaf, float dimmest) {
+
+    /*****************************
+    * grow the arrays if need be *
+    *****************************/
+    if(size == ids.length) {
+        int capacity = 2*size;
+        ids          = Arrays.copyOf(ids,          capacity);
+        leaves       = Arrays.copyOf(leaves,       capacity);
+        this.dimmest = Arrays.copyOf(this.dimmest, capacity);
+    }
+
+    /*************************************************
+    * note if this entry is out of order, so that we
+    * know to sort before the next lookup
+    *************************************************/
+    if(size > 0 && ids[size-1] >= id) sorted = false;
+
+    ids[size]          = id;
+    leaves[size]       = leaf;
+    this.dimmest[size] = dimmest;
+    ++size;
 
 } // end of add method
 
@@ -95,27 +158,167 @@ public void add(CellInfo info) {
 // 
 // } // end of add method
 
+/***********************************************************************
+* Returns the number of cells in the table.
+***********************************************************************/
+public synchronized int size() {
+
+    ensureSorted();
+    return size;
+
+} // end of size method
+
+/***********************************************************************
+* Returns the IDs of all the cells in the table in ascending order.
+* @return a new array of cell IDs.
+***********************************************************************/
+public synchronized long[] getIDs() {
+
+    ensureSorted();
+    return Arrays.copyOf(ids, size);
+
+} // end of getIDs method
 
 /***********************************************************************
 *
 ***********************************************************************/
 public CellInfo get(String name) {
 
-    return (CellInfo)map.get(name);
+    long id;
+    try { id = HTMId.fromName(name); }
+    catch(IllegalArgumentException e) { return null; }
+
+    return get(id);
 
 } // end of get method
 
+/***********************************************************************
+* Returns the info for a cell.
+* @param id The numeric ID of the cell.
+* @return the cell info or null if the table has no entry for the cell.
+***********************************************************************/
+public synchronized CellInfo get(long id) {
+
+    int index = indexOf(id);
+    if(index < 0) return null;
+
+    return new CellInfo(id, leaves[index], dimmest[index]);
+
+} // end of get by ID method
+
+/***********************************************************************
+* Returns the position of a cell in the sorted arrays.
+* @return the index, or a negative number if the cell is not in the table.
+***********************************************************************/
+private int indexOf(long id) {
+
+    ensureSorted();
+    return Arrays.binarySearch(ids, 0, size, id);
+
+} // end of indexOf method
+
+/***********************************************************************
+* Sort the arrays by cell ID if cells have been added out of order since
+* the last sort. If a cell was added more than once, only the last
+* entry is kept.
+***********************************************************************/
+private void ensureSorted() {
+
+    if(sorted) return;
+
+    /****************************************************
+    * sort by ID, breaking ties by the order the entries
+    * were added so we know which duplicate came last
+    ****************************************************/
+    int[] order = new int[size];
+    for(int i=0; i< size; ++i) order[i] = i;
+
+    for(int i= size/2 -1; i>=0; --i) siftDown(order, i, size);
+    for(int end = size-1; end > 0; --end) {
+        swap(order, 0, end);
+        siftDown(order, 0, end);
+    }
+
+    /********************************************
+    * remove duplicates keeping the last added *
+    ********************************************/
+    int n = 0;
+    for(int i=0; i< size; ++i) {
+        if(i+1 < size && ids[i+1] == ids[i]) continue;
+
+        ids[n]     = ids[i];
+        leaves[n]  = leaves[i];
+        dimmest[n] = dimmest[i];
+        ++n;
+    }
+
+    size = n;
+    sorted = true;
+
+} // end of ensureSorted method
+
+/***********************************************************************
+* Heap sort helper.
+***********************************************************************/
+private void siftDown(int[] order, int root, int end) {
+
+    while(true) {
+        int child = 2*root + 1;
+        if(child >= end) return;
+
+        if(child+1 < end && greater(order, child+1, child)) ++child;
+        if(!greater(order, child, root)) return;
+
+        swap(order, root, child);
+        root = child;
+    }
+
+} // end of siftDown method
+
+/***********************************************************************
+* Heap sort helper.
+***********************************************************************/
+private boolean greater(int[] order, int i, int j) {
+
+    if(ids[i] != ids[j]) return ids[i] > ids[j];
+    else                 return order[i] > order[j];
+
+} // end of greater method
+
+/***********************************************************************
+* Heap sort helper.
+***********************************************************************/
+private void swap(int[] order, int i, int j) {
+
+    long id = ids[i];
+    ids[i] = ids[j];
+    ids[j] = id;
+
+    boolean leaf = leaves[i];
+    leaves[i] = leaves[j];
+    leaves[j] = leaf;
+
+    float mag = dimmest[i];
+    dimmest[i] = dimmest[j];
+    dimmest[j] = mag;
+
+    int index = order[i];
+    order[i] = order[j];
+    order[j] = index;
+
+} // end of swap method
+
 /***********************************************************************
 *
 ***********************************************************************/
-public void write(File file) throws IOException {
+public synchronized void write(File file) throws IOException {
 
     PrintWriter writer = new PrintWriter(
                          new FileWriter(file));
 
-    for(Iterator it = map.values().iterator(); it.hasNext(); ) {
-        CellInfo info = (CellInfo)it.next();
-        info.write(writer);
+    ensureSorted();
+    for(int i=0; i< size; ++i) {
+        new CellInfo(ids[i], leaves[i], dimmest[i]).write(writer);
     }
 
     writer.close();
@@ -126,15 +329,15 @@ public void write(File file) throws IOException {
 /***********************************************************************
 *
 ***********************************************************************/
-public void writeBinary(File file) throws IOException {
+public synchronized void writeBinary(File file) throws IOException {
 
     DataOutputStream out = new DataOutputStream(
                            new BufferedOutputStream(
                            new FileOutputStream(file)));
 
-    for(Iterator it = map.values().iterator(); it.hasNext(); ) {
-        CellInfo info = (CellInfo)it.next();
-        info.write(out);
+    ensureSorted();
+    for(int i=0; i< size; ++i) {
+        new CellInfo(ids[i], leaves[i], dimmest[i]).write(out);
     }
 
     out.close();
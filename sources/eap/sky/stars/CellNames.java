@@ -0,0 +1,221 @@
+// Copyright 2012 Edward Alan Pier
+//
+// This file is part of eap.sky
+// 
+// eap.sky is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// eap.sky is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with eap.sky.  If not, see <http://www.gnu.org/licenses/>.
+
+package eap.sky.stars;
+
+import eap.sky.stars.archive.*;
+
+import java.util.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**************************************************************************
+* The names of the stars in one cell, stored as a separate archive entry
+* next to the cell's entry. The entry is only read the first time a name
+* is asked for, and then all the names in the cell are kept.
+* <p>
+* The entry holds a marker int of -1 and the number of stars as an int,
+* followed by the names in the same order as the stars in the cell. Each
+* name is front coded the same way as the names in a
+* {@link StarFormat7} block: the number of leading UTF-8 bytes it shares
+* with the previous name, then the number of remaining bytes plus one,
+* both as variable length values, then the remaining bytes. A length of
+* zero means the star has no name.
+* <p>
+* Older entries hold the number of stars followed by a flag and a
+* modified UTF-8 string for each star. These are still read, and are
+* told apart by their first int, which is never negative.
+* @see StarFormat#hasSeparateNames()
+**************************************************************************/
+public class CellNames implements StarNames {
+
+/**************************************************************************
+* The first int of an entry with front coded names.
+**************************************************************************/
+private static final int FRONT_CODED = -1;
+
+Archive archive;
+String entry;
+
+String[] names;
+
+/**************************************************************************
+* Create a source of names which have not been read yet.
+* @param archive The archive holding the names.
+* @param entry The name of the archive entry.
+**************************************************************************/
+public CellNames(Archive archive, String entry) {
+
+    this.archive = archive;
+    this.entry = entry;
+
+} // end of constructor
+
+/**************************************************************************
+* Returns the name of a star, reading the names for the whole cell if
+* they haven't been read yet.
+* @param index The position of the star in the cell.
+* @return The name of the star, or null if the names could not be read.
+**************************************************************************/
+public synchronized String getName(int index) {
+
+    if(names == null) {
+        try {
+            InputStream in = archive.getInputStream(entry);
+            if(in == null) throw new FileNotFoundException(entry);
+
+            try { names = read(in); }
+            finally { in.close(); }
+
+        } catch(IOException e) {
+            /*******************************************
+            * the stars are still usable without names,
+            * so don't try again each time
+            *******************************************/
+            e.printStackTrace();
+            names = new String[0];
+        }
+    }
+
+    if(index >= names.length) return null;
+    return names[index];
+
+} // end of getName method
+
+/**************************************************************************
+* Write the names of a list of stars.
+* @param stars The stars in the cell, in the order they are stored.
+* @param out Where to write the names.
+* @throws IOException If there is trouble writing.
+**************************************************************************/
+public static void write(List<Star> stars, DataOutput out) throws IOException {
+
+    out.writeInt(FRONT_CODED);
+    out.writeInt(stars.size());
+
+    byte[] previous = new byte[0];
+    for(Star star : stars) {
+        String name = star.getName();
+        if(name == null) {
+            writeVarInt(out, 0);
+            writeVarInt(out, 0);
+            continue;
+        }
+
+        byte[] utf = name.getBytes(StandardCharsets.UTF_8);
+
+        int shared = 0;
+        int max = Math.min(utf.length, previous.length);
+        while(shared < max && utf[shared] == previous[shared]) ++shared;
+
+        writeVarInt(out, shared);
+        writeVarInt(out, utf.length - shared + 1);
+        out.write(utf, shared, utf.length - shared);
+
+        previous = utf;
+    }
+
+} // end of write method
+
+/**************************************************************************
+* Read the names written by {@link #write(List, DataOutput)}.
+* @param in The stream to read. It is not closed.
+* @return The names in the order they were written.
+* @throws IOException If there is trouble reading.
+**************************************************************************/
+public static String[] read(InputStream in) throws IOException {
+
+    DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+
+    int first = data.readInt();
+
+    /********************************
+    * the older modified UTF format *
+    ********************************/
+    if(first >= 0) {
+        String[] names = new String[first];
+        for(int i=0; i< names.length; ++i) {
+            if(data.readBoolean()) names[i] = data.readUTF();
+        }
+
+        return names;
+    }
+
+    if(first != FRONT_CODED) {
+        throw new IOException("Unknown star names format "+first);
+    }
+
+    /********************
+    * front coded names *
+    ********************/
+    String[] names = new String[data.readInt()];
+    byte[] previous = new byte[0];
+    for(int i=0; i< names.length; ++i) {
+        int shared = readVarInt(data);
+        int length = readVarInt(data);
+        if(length == 0) continue;
+
+        if(shared > previous.length) {
+            throw new IOException("Bad shared name length "+shared);
+        }
+
+        byte[] utf = new byte[shared + length - 1];
+        System.arraycopy(previous, 0, utf, 0, shared);
+        data.readFully(utf, shared, length - 1);
+
+        names[i] = new String(utf, StandardCharsets.UTF_8);
+        previous = utf;
+    }
+
+    return names;
+
+} // end of read method
+
+/**************************************************************************
+* Write an unsigned value seven bits at a time, low bits first.
+**************************************************************************/
+private static void writeVarInt(DataOutput out, int value) throws IOException {
+
+    while((value & ~0x7f) != 0) {
+        out.writeByte((value & 0x7f) | 0x80);
+        value >>>= 7;
+    }
+
+    out.writeByte(value);
+
+} // end of writeVarInt method
+
+/**************************************************************************
+* Read a value written by {@link #writeVarInt(DataOutput, int)}.
+**************************************************************************/
+private static int readVarInt(DataInput in) throws IOException {
+
+    int value = 0;
+    for(int shift = 0; shift < 32; shift += 7) {
+        int b = in.readByte();
+        value |= (b & 0x7f) << shift;
+        if((b & 0x80) == 0) {
+            if(value < 0) throw new IOException("Negative length");
+            return value;
+        }
+    }
+
+    throw new IOException("Malformed variable length value");
+
+} // end of readVarInt method
+
+} // end of CellNames class
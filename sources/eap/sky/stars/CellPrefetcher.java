@@ -0,0 +1,265 @@
+// Copyright 2012 Edward Alan Pier
+//
+// This file is part of eap.sky
+// 
+// eap.sky is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// eap.sky is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with eap.sky.  If not, see <http://www.gnu.org/licenses/>.
+
+package eap.sky.stars;
+
+import eap.sky.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**************************************************************************
+* Reads catalog cells into the catalog's {@link CellCache} in the
+* background, ahead of a moving field of view. Each call to
+* {@link #prefetch(Direction, ThreeVector, double, Angle, float)} predicts
+* where the field will be over the next few seconds, finds the cells
+* covering that path, and queues the ones which aren't cached yet on an
+* executor. So by the time the field gets there, the star lists are
+* already in memory and {@link InputCell#getStars()} doesn't have to
+* wait for the archive.
+* <p>
+* The number of cells being read at once is limited. Cells which would go
+* over the limit are skipped, and will be requested again by the next call
+* if they are still ahead of the field.
+**************************************************************************/
+public class CellPrefetcher {
+
+StarCatalog catalog;
+ExecutorService executor;
+boolean own_executor;
+
+int max_in_flight;
+Set<InputCell> in_flight;
+
+long submitted;
+long completed;
+long skipped;
+
+/**************************************************************************
+* Create a new prefetcher which reads cells on the given executor.
+* @param catalog The catalog whose cells we read.
+* @param executor The executor on which to read the cells.
+* @param max_in_flight The maximum number of cells being read at once.
+**************************************************************************/
+public CellPrefetcher(StarCatalog catalog, ExecutorService executor,
+                      int max_in_flight) {
+
+    if(max_in_flight < 1) {
+        throw new IllegalArgumentException("Invalid in flight limit "+
+                                           max_in_flight);
+    }
+
+    this.catalog = catalog;
+    this.executor = executor;
+    this.max_in_flight = max_in_flight;
+
+    in_flight = new HashSet<InputCell>();
+
+} // end of constructor
+
+/**************************************************************************
+* Create a new prefetcher with its own pool of daemon threads.
+* @param catalog The catalog whose cells we read.
+* @param threads The number of threads to read cells on.
+* @param max_in_flight The maximum number of cells being read at once.
+**************************************************************************/
+public CellPrefetcher(StarCatalog catalog, int threads, int max_in_flight) {
+
+    this(catalog, Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "cell prefetch");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }), max_in_flight);
+
+    own_executor = true;
+
+} // end of constructor with a thread pool
+
+/**************************************************************************
+* Queue the cells ahead of a moving field of view. The field is assumed
+* to move at a constant rate along a great circle. The path is sampled at
+* intervals of the field radius, starting from the current pointing, so
+* the nearest cells are queued first.
+* @param pointing The current center of the field.
+* @param velocity The rate of change of the unit vector toward the center
+*        of the field, in radians per second. Any component along the
+*        pointing is ignored. This may be null if the field isn't moving.
+* @param lead_time How far ahead to look in seconds.
+* @param radius The radius of the field of view.
+* @param dimmest The dimmest magnitude which will be displayed. Only the
+*        cells needed to show stars this bright are read.
+* @return The number of cells queued.
+**************************************************************************/
+public int prefetch(Direction pointing, ThreeVector velocity,
+                    double lead_time, Angle radius, float dimmest) {
+
+    double[] p = pointing.unitVector();
+
+    /****************************************************
+    * find the axis and rate of rotation of the pointing
+    ****************************************************/
+    double rate = 0.0;
+    double ax = 0.0;
+    double ay = 0.0;
+    double az = 0.0;
+    if(velocity != null) {
+        double[] v = velocity.getComponents();
+
+        ax = p[1]*v[2] - p[2]*v[1];
+        ay = p[2]*v[0] - p[0]*v[2];
+        az = p[0]*v[1] - p[1]*v[0];
+
+        rate = Math.sqrt(ax*ax + ay*ay + az*az);
+        if(rate > 0.0) {
+            ax /= rate;
+            ay /= rate;
+            az /= rate;
+        }
+    }
+
+    /**********************************
+    * number of points along the path *
+    **********************************/
+    double step = radius.getRadians();
+    double travel = Math.min(rate*lead_time, Math.PI);
+    int nsteps = 0;
+    if(step > 0.0 && travel > 0.0) nsteps = (int)Math.ceil(travel/step);
+
+    int queued = 0;
+    for(int i=0; i<= nsteps; ++i) {
+
+        /**************************************************
+        * rotate the pointing about the axis. The axis is
+        * perpendicular to the pointing, so this is simpler
+        * than a general rotation
+        **************************************************/
+        double angle = nsteps == 0 ? 0.0 : travel*i/nsteps;
+        double cos = Math.cos(angle);
+        double sin = Math.sin(angle);
+
+        Direction center = new Direction(
+                                  p[0]*cos + (ay*p[2] - az*p[1])*sin,
+                                  p[1]*cos + (az*p[0] - ax*p[2])*sin,
+                                  p[2]*cos + (ax*p[1] - ay*p[0])*sin);
+
+        for(Cell cell : catalog.getRootCell()
+                               .getCellsNear(center, radius, dimmest)) {
+            if(submit((InputCell)cell)) ++queued;
+        }
+
+    } // end of loop over points along the path
+
+    return queued;
+
+} // end of prefetch method
+
+/**************************************************************************
+* Queue a single cell to be read, unless it is cached, already being
+* read, or we have reached the limit of cells being read. Cells in a
+* column store are never queued, since there is nothing to read.
+* @param cell The cell to read.
+* @return true if the cell was queued.
+**************************************************************************/
+public boolean submit(final InputCell cell) {
+
+    if(catalog.getCellCache().contains(cell)) return false;
+    if(cell.getColumns() != null) return false;
+
+    synchronized(this) {
+        if(in_flight.contains(cell)) return false;
+
+        if(in_flight.size() >= max_in_flight) {
+            ++skipped;
+            return false;
+        }
+
+        in_flight.add(cell);
+        ++submitted;
+    }
+
+    try {
+        executor.execute(new Runnable() {
+            public void run() {
+
+                try { cell.getStarCount(); }
+                finally { finished(cell); }
+            }
+        });
+    } catch(RejectedExecutionException e) {
+        /****************************************
+        * the executor has probably been shut
+        * down, so forget about this cell
+        ****************************************/
+        synchronized(this) {
+            in_flight.remove(cell);
+            --submitted;
+        }
+        return false;
+    }
+
+    return true;
+
+} // end of submit method
+
+/**************************************************************************
+* Called when a background read is done.
+**************************************************************************/
+private synchronized void finished(InputCell cell) {
+
+    in_flight.remove(cell);
+    ++completed;
+
+} // end of finished method
+
+/**************************************************************************
+* Returns the number of cells being read now.
+* @return The number of cells queued but not finished.
+**************************************************************************/
+public synchronized int getInFlightCount() { return in_flight.size(); }
+
+/**************************************************************************
+* Returns the number of cells queued to be read.
+* @return The number of cells queued.
+**************************************************************************/
+public synchronized long getSubmittedCount() { return submitted; }
+
+/**************************************************************************
+* Returns the number of cells which have been read.
+* @return The number of cells which have been read.
+**************************************************************************/
+public synchronized long getCompletedCount() { return completed; }
+
+/**************************************************************************
+* Returns the number of cells which were not queued because too many cells
+* were already being read.
+* @return The number of cells skipped.
+**************************************************************************/
+public synchronized long getSkippedCount() { return skipped; }
+
+/**************************************************************************
+* Stop the thread pool if this prefetcher created it. Cells which are
+* already being read will finish.
+**************************************************************************/
+public void shutdown() {
+
+    if(own_executor) executor.shutdown();
+
+} // end of shutdown method
+
+} // end of CellPrefetcher class
@@ -18,13 +18,56 @@
 package eap.sky.stars;
 
 /***************************************************************************
-*
+* An area of the sky which can be tested against catalog cells. Cells
+* are classified as lying entirely inside the region, entirely outside
+* it, or crossing its boundary, so that stars in cells inside the region
+* can be taken without testing each one.
+* @see PathRegion
+* @see RegionSearch
 ***************************************************************************/
 public interface CellRegion {
 
 /***************************************************************************
-*
+* The cell does not overlap the region.
+***************************************************************************/
+public static final int OUTSIDE = 0;
+
+/***************************************************************************
+* The cell crosses the boundary of the region, or it can't be
+* determined that it doesn't.
+***************************************************************************/
+public static final int PARTIAL = 1;
+
+/***************************************************************************
+* The cell is entirely inside the region.
+***************************************************************************/
+public static final int INSIDE = 2;
+
+/***************************************************************************
+* Determine how a cell overlaps the region. Implementations may return
+* {@link #PARTIAL} when they can't cheaply tell, but must never return
+* {@link #INSIDE} or {@link #OUTSIDE} wrongly.
+* @param cell The cell to classify.
+* @return One of {@link #OUTSIDE}, {@link #PARTIAL}, or {@link #INSIDE}.
+***************************************************************************/
+int classify(Cell cell);
+
+/***************************************************************************
+* Returns true if any part of the cell might overlap the region.
+* @param cell The cell to test.
+* @return true unless the cell is entirely outside the region.
 ***************************************************************************/
 boolean contains(Cell cell);
 
-} // end of CellRegion interface
\ No newline at end of file
+/***************************************************************************
+* Returns true if a point is in the region. The point is given as the
+* components of a unit vector, so that callers can test many points
+* without creating objects.
+* @param x The X component of the unit vector.
+* @param y The Y component of the unit vector.
+* @param z The Z component of the unit vector.
+* @return true if the point is in the region.
+***************************************************************************/
+boolean contains(double x, double y, double z);
+
+} // end of CellRegion interface
@@ -0,0 +1,126 @@
+// Copyright 2012 Edward Alan Pier
+//
+// This file is part of eap.sky
+// 
+// eap.sky is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// eap.sky is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with eap.sky.  If not, see <http://www.gnu.org/licenses/>.
+
+package eap.sky.stars;
+
+import eap.sky.util.*;
+
+/**************************************************************************
+* A view of the stars in one cell of a {@link ColumnStore}. The accessors
+* read directly from the mapped file, so looping over the stars in a cell
+* does not create any objects unless you ask for a {@link Star} or a name.
+* Stars are indexed from zero to {@link #getStarCount()}-1 in the order
+* they were stored, which is brightest first.
+**************************************************************************/
+public class ColumnCell implements StarNames {
+
+ColumnStore store;
+int first;
+int count;
+
+/**************************************************************************
+* Create a view of a range of stars in a store.
+* @param store The store holding the stars.
+* @param first The index in the store of the first star in the cell.
+* @param count The number of stars in the cell.
+**************************************************************************/
+ColumnCell(ColumnStore store, int first, int count) {
+
+    this.store = store;
+    this.first = first;
+    this.count = count;
+
+} // end of constructor
+
+/**************************************************************************
+* Returns the number of stars in this cell.
+**************************************************************************/
+public int getStarCount() { return count; }
+
+/**************************************************************************
+* Returns the X component of the unit vector pointing toward a star.
+* @param i The index of the star in this cell.
+**************************************************************************/
+public double getX(int i) { return store.getX(first + i); }
+
+/**************************************************************************
+* Returns the Y component of the unit vector pointing toward a star.
+* @param i The index of the star in this cell.
+**************************************************************************/
+public double getY(int i) { return store.getY(first + i); }
+
+/**************************************************************************
+* Returns the Z component of the unit vector pointing toward a star.
+* @param i The index of the star in this cell.
+**************************************************************************/
+public double getZ(int i) { return store.getZ(first + i); }
+
+/**************************************************************************
+* Returns the magnitude of a star in the sort band of the catalog.
+* @param i The index of the star in this cell.
+**************************************************************************/
+public float getMagnitude(int i) {
+
+    return ShortMagnitude.toValue(store.getRawMagnitude(first + i));
+
+} // end of getMagnitude method
+
+/**************************************************************************
+* Returns the raw {@link ShortMagnitude} value of a star.
+* @param i The index of the star in this cell.
+**************************************************************************/
+public short getRawMagnitude(int i) { return store.getRawMagnitude(first + i); }
+
+/**************************************************************************
+* Returns the magnitude of a star in any band of the catalog.
+* @param i The index of the star in this cell.
+* @param band The band.
+* @return The magnitude, or NaN if the star has none in that band.
+**************************************************************************/
+public float getMagnitude(int i, Band band) {
+
+    int column = store.getBandIndex(band);
+    if(column < 0) return Float.NaN;
+
+    return ShortMagnitude.toValue(store.getRawMagnitude(first + i, column));
+
+} // end of getMagnitude in a band method
+
+/**************************************************************************
+* Returns the name of a star. Note this creates a new String.
+* @param i The index of the star in this cell.
+**************************************************************************/
+public String getName(int i) { return store.getName(first + i); }
+
+/**************************************************************************
+* Creates a star object for one of the stars in this cell, with its
+* magnitudes in all the bands of the catalog. The name is only read from
+* the store if it is asked for.
+* @param i The index of the star in this cell.
+**************************************************************************/
+public Star getStar(int i) {
+
+    int index = first + i;
+    return new Star(this, i,
+                    new Direction(store.getX(index),
+                                  store.getY(index),
+                                  store.getZ(index)),
+                    store.getPhotometry(index));
+
+} // end of getStar method
+
+} // end of ColumnCell class
@@ -0,0 +1,591 @@
+// Copyright 2012 Edward Alan Pier
+//
+// This file is part of eap.sky
+//
+// eap.sky is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// eap.sky is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with eap.sky.  If not, see <http://www.gnu.org/licenses/>.
+
+package eap.sky.stars;
+
+import eap.sky.util.*;
+
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.io.*;
+
+/**************************************************************************
+* A read-only store of all the stars in a catalog, held in a single file
+* as fixed width columns. The file is memory mapped, so reading a cell
+* only touches the mapped pages for that cell, and the x, y, z and
+* magnitude values can be read without creating any objects.
+* <p>
+* The file consists of a header, an index giving the first star and the
+* number of stars for each cell, and then the columns. The index is sorted
+* by numeric cell ID and is mapped along with the columns, so finding a
+* cell is a binary search and opening a store does not read the index. The X, Y, and Z
+* components of each star's unit vector are stored as ints scaled by
+* {@link Integer#MAX_VALUE} as in {@link StarFormat5}. There is one
+* magnitude column for each band of the catalog, in the order of its
+* {@link BandMap}, holding {@link ShortMagnitude} raw values, with
+* {@link ShortMagnitude#NAN_RAW} for a star which has no magnitude in that
+* band. The names are stored as UTF-8 bytes in a single blob indexed by a
+* column of long offsets.
+* <p>
+* Use {@link #write(StarCatalog, File)} to create a store from an existing
+* catalog.
+**************************************************************************/
+public class ColumnStore {
+
+private static final int MAGIC = 0x53544331; // "STC1"
+private static final int VERSION = 3;
+
+private static final int HEADER_SIZE = 20;
+
+private static final double TO_UNIT = 1.0/Integer.MAX_VALUE;
+
+File file;
+Band[] bands;
+Band band;
+int sort;
+
+int ncells;
+int nstars;
+
+MappedColumn index;
+
+MappedColumn x;
+MappedColumn y;
+MappedColumn z;
+MappedColumn[] mags;
+MappedColumn mag;
+MappedColumn name_offset;
+MappedColumn names;
+
+/**************************************************************************
+* Open an existing store.
+* @param file The store file.
+* @param bands The bands of the catalog. The store must have been written
+*        from a catalog with the same bands.
+* @param band The sort band of the catalog.
+* @throws IOException if the file could not be read or is not a store.
+* @throws IllegalArgumentException if the sort band is not in the map.
+**************************************************************************/
+public ColumnStore(File file, BandMap bands, Band band) throws IOException {
+
+    this.file = file;
+    this.bands = bands.getBandArray();
+    this.band = band;
+
+    sort = Arrays.asList(this.bands).indexOf(band);
+    if(sort < 0) {
+        throw new IllegalArgumentException(band+" is not in the band map");
+    }
+
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+        FileChannel channel = raf.getChannel();
+
+        /******************
+        * read the header *
+        ******************/
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY,
+                                        0, HEADER_SIZE);
+
+        if(header.getInt() != MAGIC) {
+            throw new IOException(file+" is not a column store");
+        }
+
+        int version = header.getInt();
+        if(version != VERSION) {
+            throw new IOException("Unsupported column store version "+
+                                  version);
+        }
+
+        ncells = header.getInt();
+        nstars = header.getInt();
+
+        int nbands = header.getInt();
+        if(nbands != this.bands.length) {
+            throw new IOException(file+" has "+nbands+" bands, not "+
+                                  this.bands.length);
+        }
+
+        /************************************************
+        * map the index. Each entry is two longs: the
+        * cell ID, and the first star and count packed
+        * into the high and low halves of the second
+        ************************************************/
+        long position = HEADER_SIZE;
+        index = new MappedColumn(channel, position, 2L*ncells, 8);
+        position += 16L*ncells;
+
+        /**************************
+        * map each of the columns *
+        **************************/
+        x = new MappedColumn(channel, position, nstars, 4);
+        position += 4L*nstars;
+
+        y = new MappedColumn(channel, position, nstars, 4);
+        position += 4L*nstars;
+
+        z = new MappedColumn(channel, position, nstars, 4);
+        position += 4L*nstars;
+
+        mags = new MappedColumn[nbands];
+        for(int i=0; i< nbands; ++i) {
+            mags[i] = new MappedColumn(channel, position, nstars, 2);
+            position += 2L*nstars;
+        }
+
+        mag = mags[sort];
+
+        name_offset = new MappedColumn(channel, position, nstars+1, 8);
+        position += 8L*(nstars+1);
+
+        long nbytes = name_offset.getLong(nstars);
+        names = new MappedColumn(channel, position, nbytes, 1);
+
+    } finally {
+        /*****************************************************
+        * the mapping stays valid after the channel is closed *
+        *****************************************************/
+        raf.close();
+    }
+
+} // end of constructor
+
+/**************************************************************************
+* Returns the file holding this store.
+**************************************************************************/
+public File getFile() { return file; }
+
+/**************************************************************************
+* Returns the sort band of the catalog.
+**************************************************************************/
+public Band getBand() { return band; }
+
+/**************************************************************************
+* Returns the bands of the stored magnitudes, in the order of their
+* columns.
+**************************************************************************/
+public List<Band> getBands() {
+
+    return Collections.unmodifiableList(Arrays.asList(bands));
+
+} // end of getBands method
+
+/**************************************************************************
+* Returns the column index of a band.
+* @param band A band.
+* @return The index of the band, or -1 if the store doesn't have it.
+**************************************************************************/
+public int getBandIndex(Band band) {
+
+    if(band.equals(this.band)) return sort;
+
+    for(int i=0; i< bands.length; ++i) {
+        if(bands[i].equals(band)) return i;
+    }
+
+    return -1;
+
+} // end of getBandIndex method
+
+/**************************************************************************
+* Returns the total number of stars in the store, counting every cell.
+**************************************************************************/
+public int getStarCount() { return nstars; }
+
+/**************************************************************************
+* Returns the number of cells in the store.
+**************************************************************************/
+public int getCellCount() { return ncells; }
+
+/**************************************************************************
+* Returns a view of the stars in a given cell.
+* @param id The numeric ID of the cell.
+* @return the stars in the cell, or null if the store does not have the cell.
+**************************************************************************/
+public ColumnCell getCell(long id) {
+
+    /*****************************
+    * binary search of the index *
+    *****************************/
+    int low = 0;
+    int high = ncells-1;
+    while(low <= high) {
+        int mid = (low + high) >>> 1;
+        long mid_id = index.getLong(2L*mid);
+
+        if(     mid_id < id) low  = mid+1;
+        else if(mid_id > id) high = mid-1;
+        else {
+            long packed = index.getLong(2L*mid+1);
+            return new ColumnCell(this, (int)(packed >>> 32), (int)packed);
+        }
+    } // end of binary search
+
+    return null;
+
+} // end of getCell method
+
+/**************************************************************************
+* Returns a view of the stars in a given cell.
+* @param name The name of the cell.
+* @return the stars in the cell, or null if the store does not have the cell.
+**************************************************************************/
+public ColumnCell getCell(String name) {
+
+    long id;
+    try { id = HTMId.fromName(name); }
+    catch(IllegalArgumentException e) { return null; }
+
+    return getCell(id);
+
+} // end of getCell by name method
+
+/**************************************************************************
+* Returns a view of the stars in a given cell.
+* @param cell A cell in the tessellation of the catalog.
+* @return the stars in the cell, or null if the store does not have the cell.
+**************************************************************************/
+public ColumnCell getCell(Cell cell) {
+
+    long id = cell.getID();
+    if(id < 0L) return getCell(cell.getName());
+    else        return getCell(id);
+
+} // end of getCell by cell method
+
+/**************************************************************************
+* Returns the X component of the unit vector of a star.
+* @param star The index of the star in the store.
+**************************************************************************/
+double getX(int star) { return x.getInt(star) * TO_UNIT; }
+
+/**************************************************************************
+* Returns the Y component of the unit vector of a star.
+* @param star The index of the star in the store.
+**************************************************************************/
+double getY(int star) { return y.getInt(star) * TO_UNIT; }
+
+/**************************************************************************
+* Returns the Z component of the unit vector of a star.
+* @param star The index of the star in the store.
+**************************************************************************/
+double getZ(int star) { return z.getInt(star) * TO_UNIT; }
+
+/**************************************************************************
+* Returns the raw {@link ShortMagnitude} value of a star in the sort band.
+* @param star The index of the star in the store.
+**************************************************************************/
+short getRawMagnitude(int star) { return mag.getShort(star); }
+
+/**************************************************************************
+* Returns the raw {@link ShortMagnitude} value of a star in any band.
+* @param star The index of the star in the store.
+* @param band The column index of the band.
+**************************************************************************/
+short getRawMagnitude(int star, int band) { return mags[band].getShort(star); }
+
+/**************************************************************************
+* Creates the photometry of a star from all of its magnitude columns. A
+* band in which the star has no magnitude is left out.
+* @param star The index of the star in the store.
+**************************************************************************/
+Photometry getPhotometry(int star) {
+
+    /**********************************************
+    * most catalogs have a single band, and then
+    * the magnitude can be the photometry
+    **********************************************/
+    if(bands.length == 1) {
+        short raw = mag.getShort(star);
+        if(raw == ShortMagnitude.NAN_RAW) return new MapPhotometry(0);
+        else                              return new ShortMagnitude(band, raw);
+    }
+
+    MapPhotometry photometry = new MapPhotometry(bands.length);
+    for(int i=0; i< bands.length; ++i) {
+        short raw = mags[i].getShort(star);
+        if(raw != ShortMagnitude.NAN_RAW) {
+            photometry.addMagnitude(new ShortMagnitude(bands[i], raw));
+        }
+    }
+
+    return photometry;
+
+} // end of getPhotometry method
+
+/**************************************************************************
+* Returns the name of a star.
+* @param star The index of the star in the store.
+**************************************************************************/
+String getName(int star) {
+
+    long start = name_offset.getLong(star);
+    long end   = name_offset.getLong(star+1);
+
+    byte[] bytes = new byte[(int)(end - start)];
+    names.get(start, bytes);
+
+    try { return new String(bytes, "UTF-8"); }
+    catch(UnsupportedEncodingException e) {
+        throw (IllegalStateException)new IllegalStateException()
+                                     .initCause(e);
+    }
+
+} // end of getName method
+
+/**************************************************************************
+* Create a store holding all the stars in a catalog. The stars are read
+* from the cell archive of the catalog one cell at a time, so this does not
+* require holding the whole catalog in memory.
+* @param catalog The catalog to convert.
+* @param file The store file to create.
+* @throws IOException if there is a problem reading the catalog or
+*         writing the store.
+**************************************************************************/
+public static void write(StarCatalog catalog, File file) throws IOException {
+
+    Band[] bands = catalog.getBandMap().getBandArray();
+    int nbands = bands.length;
+
+    /*****************************************************
+    * we write each column to a scratch file in one pass
+    * and then concatenate them after the index
+    *****************************************************/
+    File scratch_dir = file.getAbsoluteFile().getParentFile();
+    String[] suffixes = new String[5 + nbands];
+    suffixes[0] = ".x";
+    suffixes[1] = ".y";
+    suffixes[2] = ".z";
+    for(int i=0; i< nbands; ++i) suffixes[3+i] = ".mag"+i;
+    suffixes[3+nbands] = ".offsets";
+    suffixes[4+nbands] = ".names";
+
+    File[] scratch = new File[suffixes.length];
+    DataOutputStream[] out = new DataOutputStream[suffixes.length];
+    for(int i=0; i< suffixes.length; ++i) {
+        scratch[i] = new File(scratch_dir, file.getName()+suffixes[i]);
+        out[i] = new DataOutputStream(
+                 new BufferedOutputStream(
+                 new FileOutputStream(scratch[i]), 65536));
+    }
+
+    DataOutputStream offsets = out[3+nbands];
+    DataOutputStream blob    = out[4+nbands];
+
+    SortedMap<Long, int[]> entries = new TreeMap<Long, int[]>();
+
+    int nstars = 0;
+    long name_bytes = 0;
+
+    /***************************************
+    * walk the cell tree breadth first
+    * so that coarse cells are near the top
+    ***************************************/
+    LinkedList<InputCell> queue = new LinkedList<InputCell>();
+    queue.add(catalog.getRootCell());
+    while(!queue.isEmpty()) {
+        InputCell cell = queue.removeFirst();
+
+        long id = cell.getID();
+        if(id < 0L) {
+            throw new IOException(cell+" does not have a numeric ID");
+        }
+
+        List<Star> stars = cell.readStars();
+        entries.put(id, new int[] {nstars, stars.size()});
+
+        for(Star star : stars) {
+            Direction dir = star.getDirection();
+            out[0].writeInt((int)(dir.getX()*Integer.MAX_VALUE));
+            out[1].writeInt((int)(dir.getY()*Integer.MAX_VALUE));
+            out[2].writeInt((int)(dir.getZ()*Integer.MAX_VALUE));
+
+            Photometry photometry = star.getPhotometry();
+            for(int i=0; i< nbands; ++i) {
+                Magnitude m = photometry.getMagnitude(bands[i]);
+
+                short raw;
+                if(m == null) raw = ShortMagnitude.NAN_RAW;
+                else if(m instanceof ShortMagnitude) {
+                    raw = ((ShortMagnitude)m).getRawValue();
+                } else {
+                    raw = new ShortMagnitude(bands[i], m.getValue())
+                          .getRawValue();
+                }
+
+                out[3+i].writeShort(raw);
+            }
+
+            byte[] bytes = star.getName().getBytes("UTF-8");
+            offsets.writeLong(name_bytes);
+            blob.write(bytes);
+            name_bytes += bytes.length;
+
+            ++nstars;
+
+        } // end of loop over stars
+
+        if(cell.hasChildren()) {
+            for(Cell child : cell.getChildren()) {
+                queue.add((InputCell)child);
+            }
+        }
+
+    } // end of loop over cells
+
+    /*******************************************
+    * terminate the offsets so that each name
+    * length is the difference of two offsets
+    *******************************************/
+    offsets.writeLong(name_bytes);
+
+    for(int i=0; i< out.length; ++i) out[i].close();
+
+    /*********************************
+    * write the header and the index *
+    *********************************/
+    DataOutputStream header = new DataOutputStream(
+                              new BufferedOutputStream(
+                              new FileOutputStream(file)));
+
+    header.writeInt(MAGIC);
+    header.writeInt(VERSION);
+    header.writeInt(entries.size());
+    header.writeInt(nstars);
+    header.writeInt(nbands);
+
+    for(Map.Entry<Long, int[]> entry : entries.entrySet()) {
+        int[] range = entry.getValue();
+        header.writeLong(entry.getKey());
+        header.writeInt(range[0]);
+        header.writeInt(range[1]);
+    }
+
+    header.close();
+
+    /**************************
+    * append the column files *
+    **************************/
+    FileChannel channel = new FileOutputStream(file, true).getChannel();
+    try {
+        for(int i=0; i< scratch.length; ++i) {
+            FileChannel in = new FileInputStream(scratch[i]).getChannel();
+            try {
+                long size = in.size();
+                long done = 0;
+                while(done < size) {
+                    done += in.transferTo(done, size - done, channel);
+                }
+            } finally {
+                in.close();
+            }
+
+            scratch[i].delete();
+
+        } // end of loop over columns
+    } finally {
+        channel.close();
+    }
+
+} // end of write method
+
+/**************************************************************************
+* A column of fixed width values mapped from a file. Since a single
+* mapping is limited to 2GB, large columns are mapped in several chunks.
+* The widths are all powers of two, so no value straddles two chunks.
+**************************************************************************/
+static class MappedColumn {
+
+private static final int CHUNK_SHIFT = 30;
+private static final long CHUNK_SIZE = 1L << CHUNK_SHIFT;
+private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+MappedByteBuffer[] chunks;
+int width;
+
+/**************************************************************************
+*
+**************************************************************************/
+MappedColumn(FileChannel channel, long position, long count, int width)
+                                                          throws IOException {
+
+    this.width = width;
+
+    long size = count*width;
+    int nchunks = (int)((size + CHUNK_SIZE - 1) >> CHUNK_SHIFT);
+    if(nchunks == 0) nchunks = 1;
+
+    chunks = new MappedByteBuffer[nchunks];
+    for(int i=0; i< nchunks; ++i) {
+        long start = (long)i << CHUNK_SHIFT;
+        long length = Math.min(CHUNK_SIZE, size - start);
+
+        chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                                position + start, length);
+    }
+
+} // end of constructor
+
+/**************************************************************************
+*
+**************************************************************************/
+int getInt(long index) {
+
+    long offset = index*width;
+    return chunks[(int)(offset >> CHUNK_SHIFT)]
+                .getInt((int)(offset & CHUNK_MASK));
+
+} // end of getInt method
+
+/**************************************************************************
+*
+**************************************************************************/
+short getShort(long index) {
+
+    long offset = index*width;
+    return chunks[(int)(offset >> CHUNK_SHIFT)]
+                .getShort((int)(offset & CHUNK_MASK));
+
+} // end of getShort method
+
+/**************************************************************************
+*
+**************************************************************************/
+long getLong(long index) {
+
+    long offset = index*width;
+    return chunks[(int)(offset >> CHUNK_SHIFT)]
+                .getLong((int)(offset & CHUNK_MASK));
+
+} // end of getLong method
+
+/**************************************************************************
+*
+**************************************************************************/
+void get(long offset, byte[] bytes) {
+
+    for(int i=0; i< bytes.length; ++i, ++offset) {
+        bytes[i] = chunks[(int)(offset >> CHUNK_SHIFT)]
+                         .get((int)(offset & CHUNK_MASK));
+    }
+
+} // end of get method
+
+} // end of MappedColumn inner class
+
+} // end of ColumnStore class
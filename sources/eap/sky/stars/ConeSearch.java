@@ -0,0 +1,82 @@
+// Copyright 2012 Edward Alan Pier
+//
+// This file is part of eap.sky
+// 
+// eap.sky is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// eap.sky is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with eap.sky.  If not, see <http://www.gnu.org/licenses/>.
+
+package eap.sky.stars;
+
+import eap.sky.util.*;
+
+import java.util.*;
+
+/**************************************************************************
+* Iterates over the stars in a catalog which lie within a given angle of
+* a direction and are at least as bright as a given magnitude. Stars are
+* returned brightest first.
+* <p>
+* Each star is tested by comparing the dot product of its unit vector with
+* the cosine of the search radius, so rejected stars cost a few
+* multiplications and do not create any objects.
+* @see StarCatalog#coneSearch(Direction, Angle, float)
+**************************************************************************/
+public class ConeSearch extends RegionSearch {
+
+double x;
+double y;
+double z;
+double cos_radius;
+
+/**************************************************************************
+* Create a new search.
+* @param catalog The catalog to search.
+* @param center The center of the cone.
+* @param radius The angular radius of the cone.
+* @param dimmest The dimmest magnitude to return in the sort band of the
+*        catalog.
+**************************************************************************/
+public ConeSearch(StarCatalog catalog, Direction center, Angle radius,
+                  float dimmest) {
+
+    super(catalog, dimmest);
+
+    double[] vec = center.unitVector();
+    x = vec[0];
+    y = vec[1];
+    z = vec[2];
+
+    cos_radius = radius.getCos();
+
+    /******************************************************
+    * find the cells which might hold stars in the cone.
+    * Each returned cell holds all the stars in its area
+    * at least as bright as the magnitude limit
+    ******************************************************/
+    Collection<Cell> cells = catalog.getRootCell()
+                                    .getCellsNear(center, radius, dimmest);
+
+    for(Cell cell : cells) addCell((InputCell)cell, true);
+
+} // end of constructor
+
+/**************************************************************************
+* Tests if a unit vector is inside the cone.
+**************************************************************************/
+protected boolean accept(double x, double y, double z) {
+
+    return this.x*x + this.y*y + this.z*z >= cos_radius;
+
+} // end of accept method
+
+} // end of ConeSearch class
@@ -0,0 +1,455 @@
+// Copyright 2012 Edward Alan Pier
+//
+// This file is part of eap.sky
+// 
+// eap.sky is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// eap.sky is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with eap.sky.  If not, see <http://www.gnu.org/licenses/>.
+
+package eap.sky.stars;
+
+import eap.sky.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**************************************************************************
+* Finds the pairs of stars in two catalogs which lie within a given angle
+* of each other. For example you can match a Tycho catalog against a
+* 2MASS catalog ingested by this package, without dumping either of them.
+* <p>
+* The cell trees of the two catalogs are walked in step. Each cell of the
+* first catalog carries a list of the cells of the second catalog which
+* might hold a match for one of its stars, and the list is refined to
+* cells of about the same size as the tree is descended. When we reach a
+* cell of the first catalog which holds all its stars within the
+* magnitude limit, the cells in its list are refined down to the same
+* point in the second catalog, and the stars are compared. The stars of
+* the second catalog are sorted by their Z coordinate, so each star is
+* only compared with a narrow band of candidates, and star objects are
+* only created for the stars which match. Stars without a magnitude in
+* the sort band of their catalog are ignored.
+* <p>
+* The work is split into a fork-join task for each of the top level cells
+* of the first catalog, and each task forks again for each child it
+* descends into, so the search uses all the threads of the pool.
+* The matches for each cell are sent to a {@link MatchSink} as soon as the
+* cell is done.
+**************************************************************************/
+public class CrossMatch {
+
+/** The resolution with which Z coordinates are sorted **/
+private static final double Z_SCALE = (double)(1L << 29);
+
+StarCatalog catalog;
+StarCatalog other;
+
+double radius;
+double cos_radius;
+
+float dimmest;
+float other_dimmest;
+
+boolean nearest;
+
+MatchSink sink;
+
+AtomicLong cells;
+AtomicLong stars;
+AtomicLong matches;
+
+/**************************************************************************
+* Create a new cross match.
+* @param catalog The catalog whose stars we are matching.
+* @param other The catalog in which to look for matches.
+* @param radius The largest separation of two matching stars.
+* @throws IllegalArgumentException if the radius is negative or larger
+*         than 90 degrees.
+**************************************************************************/
+public CrossMatch(StarCatalog catalog, StarCatalog other, Angle radius) {
+
+    this.catalog = catalog;
+    this.other = other;
+
+    this.radius = radius.getRadians();
+    if(this.radius < 0.0 || this.radius > 0.5*Math.PI) {
+        throw new IllegalArgumentException("Bad match radius "+radius);
+    }
+
+    cos_radius = Math.cos(this.radius);
+
+    dimmest = Float.POSITIVE_INFINITY;
+    other_dimmest = Float.POSITIVE_INFINITY;
+
+    cells   = new AtomicLong();
+    stars   = new AtomicLong();
+    matches = new AtomicLong();
+
+} // end of constructor
+
+/**************************************************************************
+* Only match stars at least as bright as the given limits. This saves
+* reading the deeper cells of each catalog. By default all stars are
+* matched.
+* @param dimmest The dimmest magnitude in the sort band of the first
+*        catalog.
+* @param other_dimmest The dimmest magnitude in the sort band of the
+*        second catalog.
+**************************************************************************/
+public void setMagnitudeLimits(float dimmest, float other_dimmest) {
+
+    this.dimmest = dimmest;
+    this.other_dimmest = other_dimmest;
+
+} // end of setMagnitudeLimits method
+
+/**************************************************************************
+* Choose whether to report every pair within the match radius, or only
+* the nearest match for each star in the first catalog. By default every
+* pair is reported.
+* @param nearest true to report only the nearest match.
+**************************************************************************/
+public void setNearestOnly(boolean nearest) { this.nearest = nearest; }
+
+/**************************************************************************
+* Run the match on a new pool with a thread for each processor.
+* @param sink Where to send the matches.
+* @return The number of matches found.
+**************************************************************************/
+public long run(MatchSink sink) {
+
+    ForkJoinPool pool = new ForkJoinPool();
+    try { return run(sink, pool); }
+    finally { pool.shutdown(); }
+
+} // end of run method
+
+/**************************************************************************
+* Run the match on a given pool. Only one match may run at a time.
+* @param sink Where to send the matches.
+* @param pool The pool on which to run the tasks.
+* @return The number of matches found.
+**************************************************************************/
+public synchronized long run(MatchSink sink, ForkJoinPool pool) {
+
+    this.sink = sink;
+
+    cells.set(0L);
+    stars.set(0L);
+    matches.set(0L);
+
+    List<InputCell> near = new ArrayList<InputCell>(1);
+    near.add(other.getRootCell());
+
+    pool.invoke(new MatchTask(catalog.getRootCell(), near));
+
+    return matches.get();
+
+} // end of run on a pool method
+
+/**************************************************************************
+* Returns the number of cells of the first catalog whose stars were
+* compared in the last run.
+**************************************************************************/
+public long getCellCount() { return cells.get(); }
+
+/**************************************************************************
+* Returns the number of stars of the first catalog which were compared in
+* the last run.
+**************************************************************************/
+public long getStarCount() { return stars.get(); }
+
+/**************************************************************************
+* Returns the number of matches found in the last run, so far if it is
+* still going.
+**************************************************************************/
+public long getMatchCount() { return matches.get(); }
+
+/**************************************************************************
+* Returns true if we don't need to look below a cell, either because it
+* has no children, or because it holds every star in its area which is
+* within the magnitude limit.
+**************************************************************************/
+private static boolean isLeaf(InputCell cell, float dimmest) {
+
+    return !cell.hasChildren() || cell.getDimmestMag() > dimmest;
+
+} // end of isLeaf method
+
+/**************************************************************************
+* Returns true if two cells come within the match radius of each other,
+* judging by their bounding circles.
+**************************************************************************/
+private boolean isNear(Cell cell, Cell other) {
+
+    double[] a = cell.getCenter().unitVector();
+    double[] b = other.getCenter().unitVector();
+
+    double dot = a[0]*b[0] + a[1]*b[1] + a[2]*b[2];
+    double separation = Math.acos(Math.max(-1.0, Math.min(1.0, dot)));
+
+    return separation <= cell.getRadius().getRadians() +
+                         other.getRadius().getRadians() + radius;
+
+} // end of isNear method
+
+/**************************************************************************
+* Find the cells of the second catalog which might hold matches for the
+* stars in a cell of the first catalog.
+* @param cell A cell of the first catalog.
+* @param candidates Cells of the second catalog which were near the
+*        parent of the cell.
+* @param leaves true to refine the candidates until we don't need to look
+*        below them, or false to stop at cells no larger than the cell.
+* @return The cells near the cell.
+**************************************************************************/
+private List<InputCell> refine(InputCell cell, List<InputCell> candidates,
+                               boolean leaves) {
+
+    double size = cell.getRadius().getRadians();
+
+    List<InputCell> near = new ArrayList<InputCell>();
+    Deque<InputCell> stack = new ArrayDeque<InputCell>(candidates);
+    while(!stack.isEmpty()) {
+        InputCell candidate = stack.pop();
+        if(!isNear(cell, candidate)) continue;
+
+        if(!isLeaf(candidate, other_dimmest) &&
+           (leaves || candidate.getRadius().getRadians() > size)) {
+            for(Cell child : candidate.getChildren()) {
+                stack.push((InputCell)child);
+            }
+        } else {
+            near.add(candidate);
+        }
+    }
+
+    return near;
+
+} // end of refine method
+
+/**************************************************************************
+* Compare the stars in a cell of the first catalog with the stars in the
+* cells of the second catalog near it, and send the matches to the sink.
+* @param cell A cell of the first catalog which holds all the stars in
+*        its area within the magnitude limit.
+* @param near The cells of the second catalog which might hold matches,
+*        each of which holds all the stars in its area within the limit.
+**************************************************************************/
+private void match(InputCell cell, List<InputCell> near) {
+
+    /*************************************************
+    * collect the candidates from the second catalog *
+    *************************************************/
+    StarCursor[] cursors = new StarCursor[near.size()];
+    int total = 0;
+    for(int i=0; i< cursors.length; ++i) {
+        cursors[i] = near.get(i).getCursor();
+        total += cursors[i].getStarCount();
+    }
+
+    double[] x = new double[total];
+    double[] y = new double[total];
+    double[] z = new double[total];
+    int[] owner = new int[total];
+    int[] index = new int[total];
+    long[] keys = new long[total];
+
+    int count = 0;
+    for(int i=0; i< cursors.length; ++i) {
+        StarCursor cursor = cursors[i];
+        while(cursor.next()) {
+            float mag = cursor.getMagnitude();
+            if(Float.isNaN(mag) || mag > other_dimmest) continue;
+
+            x[count] = cursor.getX();
+            y[count] = cursor.getY();
+            z[count] = cursor.getZ();
+            owner[count] = i;
+            index[count] = cursor.getIndex();
+
+            /*****************************************
+            * sort on Z rounded to a fine grid, with
+            * the position in these arrays attached
+            *****************************************/
+            keys[count] = (zBin(z[count]) << 32) | count;
+            ++count;
+        }
+    }
+
+    keys = Arrays.copyOf(keys, count);
+    Arrays.sort(keys);
+
+    /***********************************
+    * now go through the stars in cell *
+    ***********************************/
+    List<Star> found = new ArrayList<Star>();
+    List<Star> found_matches = new ArrayList<Star>();
+    List<Angle> separations = new ArrayList<Angle>();
+
+    int nstars = 0;
+    StarCursor cursor = cell.getCursor();
+    while(cursor.next()) {
+        float mag = cursor.getMagnitude();
+        if(Float.isNaN(mag) || mag > dimmest) continue;
+
+        ++nstars;
+
+        double sx = cursor.getX();
+        double sy = cursor.getY();
+        double sz = cursor.getZ();
+
+        /*************************************************
+        * a match can't differ in declination by more
+        * than the radius, so find the band of Z values
+        *************************************************/
+        double dec = Math.asin(Math.max(-1.0, Math.min(1.0, sz)));
+        double low  = dec - radius <= -0.5*Math.PI ? -1.0 : Math.sin(dec - radius);
+        double high = dec + radius >=  0.5*Math.PI ?  1.0 : Math.sin(dec + radius);
+
+        long low_bin  = zBin(low) - 1L;
+        long high_bin = zBin(high) + 1L;
+
+        int first = Arrays.binarySearch(keys, low_bin << 32);
+        if(first < 0) first = -first - 1;
+
+        Star star = null;
+        int best = -1;
+        double best_dot = cos_radius;
+        for(int k = first; k < count && (keys[k] >> 32) <= high_bin; ++k) {
+            int j = (int)keys[k];
+
+            double dot = sx*x[j] + sy*y[j] + sz*z[j];
+            if(dot < cos_radius) continue;
+
+            if(nearest) {
+                if(best < 0 || dot > best_dot) {
+                    best = j;
+                    best_dot = dot;
+                }
+
+            } else {
+                if(star == null) star = cursor.getStar();
+                addMatch(star, cursors[owner[j]], index[j],
+                         sx - x[j], sy - y[j], sz - z[j],
+                         found, found_matches, separations);
+            }
+        }
+
+        if(best >= 0) {
+            addMatch(cursor.getStar(), cursors[owner[best]], index[best],
+                     sx - x[best], sy - y[best], sz - z[best],
+                     found, found_matches, separations);
+        }
+
+    } // end of loop over stars
+
+    cells.incrementAndGet();
+    stars.addAndGet(nstars);
+
+    /*******************************************
+    * send the matches for this cell in one go *
+    *******************************************/
+    if(found.isEmpty()) return;
+
+    matches.addAndGet(found.size());
+    synchronized(sink) {
+        for(int i=0; i< found.size(); ++i) {
+            sink.match(found.get(i), found_matches.get(i), separations.get(i));
+        }
+    }
+
+} // end of match method
+
+/**************************************************************************
+* Returns the bin on the sorting grid holding a Z coordinate.
+**************************************************************************/
+private static long zBin(double z) {
+
+    return (long)((z + 1.0)*Z_SCALE);
+
+} // end of zBin method
+
+/**************************************************************************
+* Record a match. The separation is found from the chord between the two
+* unit vectors, which is more precise than the dot product for small
+* angles.
+**************************************************************************/
+private static void addMatch(Star star, StarCursor cursor, int index,
+                             double dx, double dy, double dz,
+                             List<Star> found, List<Star> found_matches,
+                             List<Angle> separations) {
+
+    cursor.moveTo(index);
+
+    double chord = Math.sqrt(dx*dx + dy*dy + dz*dz);
+
+    found.add(star);
+    found_matches.add(cursor.getStar());
+    separations.add(Angle.createFromRadians(2.0*Math.asin(0.5*chord)));
+
+} // end of addMatch method
+
+/**************************************************************************
+* A fork-join task which matches the stars under one cell of the first
+* catalog.
+**************************************************************************/
+private class MatchTask extends RecursiveAction {
+
+private static final long serialVersionUID = 1L;
+
+InputCell cell;
+List<InputCell> candidates;
+
+/**************************************************************************
+* @param cell The cell to match.
+* @param candidates The cells of the second catalog which were near the
+*        parent of this cell.
+**************************************************************************/
+MatchTask(InputCell cell, List<InputCell> candidates) {
+
+    this.cell = cell;
+    this.candidates = candidates;
+
+} // end of constructor
+
+/**************************************************************************
+*
+**************************************************************************/
+protected void compute() {
+
+    boolean leaf = isLeaf(cell, dimmest);
+
+    List<InputCell> near = refine(cell, candidates, leaf);
+    if(near.isEmpty()) return;
+
+    if(leaf) {
+        match(cell, near);
+        return;
+    }
+
+    /***************************************
+    * fork a task for each of our children *
+    ***************************************/
+    List<MatchTask> tasks = new ArrayList<MatchTask>();
+    for(Cell child : cell.getChildren()) {
+        tasks.add(new MatchTask((InputCell)child, near));
+    }
+
+    invokeAll(tasks);
+
+} // end of compute method
+
+} // end of MatchTask inner class
+
+} // end of CrossMatch class
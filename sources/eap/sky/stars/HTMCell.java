@@ -50,19 +50,21 @@ ThreeVector cross20;
 
 Angle radius;
 
+long id;
 String name;
 
 /***************************************************************************
-* Create a new HTM cell with the given name and corners.
-* @param name The name of the new cell
+* Create a new HTM cell with the given ID and corners.
+* @param id The numeric ID of the new cell.
 * @param corner0 One of the vertices of the triangle.
 * @param corner1 One of the vertices of the triangle.
 * @param corner2 One of the vertices of the triangle.
+* @see HTMId
 ***************************************************************************/
-protected HTMCell(String name,
+protected HTMCell(long id,
                   Direction corner0, Direction corner1, Direction corner2) {
 
-    this.name = name;
+    this.id = id;
 
     this.corner0 = corner0;
     this.corner1 = corner1;
@@ -132,10 +134,23 @@ public ArcPath getBoundary() {
 * The top level of subdivision are named N0 through N3, for the triangles
 * in the northern hemisphere, and S0 through S3 for the triangles in the
 * southern hemisphere. Then sucessive refinements append 0 through 3 to the
-* name of the parent cell.
+* name of the parent cell. The name is made from the numeric ID the first
+* time it is needed.
 * @return the name of the cell in the standard Sloan convention.
 *************************************************************************/
-public String getName() { return name; }
+public String getName() {
+
+    if(name == null) name = HTMId.toName(id);
+    return name;
+
+} // end of getName method
+
+/*************************************************************************
+* Returns the numeric ID of the cell.
+* @return the HTM ID of the cell.
+* @see HTMId
+*************************************************************************/
+public long getID() { return id; }
 
 
 /*************************************************************************
@@ -159,10 +174,11 @@ public boolean contains(Direction dir) {
 /**************************************************************************
 * Create a new child cell and add it to the list of this cell's children.
 **************************************************************************/
-private void addChild(String name, Direction corner0, Direction corner1,
-                                   Direction corner2) {
+private void addChild(int child, Direction corner0, Direction corner1,
+                                 Direction corner2) {
 
-    addChild(new HTMCell(name, corner0, corner1, corner2));
+    addChild(new HTMCell(HTMId.getChild(id, child),
+                         corner0, corner1, corner2));
 
 } // end of addChild method
 
@@ -179,10 +195,10 @@ protected void createChildren() {
     Direction mid12 = v1.plus(v2).getDirection();
     Direction mid20 = v2.plus(v0).getDirection();
 
-    addChild(name+"0", corner0, mid01  , mid20  );
-    addChild(name+"1", mid01  , corner1, mid12  );
-    addChild(name+"2", mid20  , mid12  , corner2);
-    addChild(name+"3", mid01  , mid12  , mid20  );
+    addChild(0, corner0, mid01  , mid20  );
+    addChild(1, mid01  , corner1, mid12  );
+    addChild(2, mid20  , mid12  , corner2);
+    addChild(3, mid01  , mid12  , mid20  );
 
 } // end of createChildren method
 
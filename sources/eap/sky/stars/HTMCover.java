@@ -0,0 +1,457 @@
+// Copyright 2012 Edward Alan Pier
+//
+// This file is part of eap.sky
+// 
+// eap.sky is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// eap.sky is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with eap.sky.  If not, see <http://www.gnu.org/licenses/>.
+
+package eap.sky.stars;
+
+import eap.sky.util.*;
+
+import java.util.*;
+
+/***************************************************************************
+* A set of HTM cells at one depth which together cover a region of the
+* sky, stored as sorted ranges of consecutive IDs. Since the descendants
+* of any cell have consecutive IDs at each depth (see {@link HTMId}), a
+* large region reduces to a few ranges, however many cells it holds.
+* Each range is half open, so it holds the IDs from
+* {@link #getLow(int)} up to but not including {@link #getHigh(int)}.
+* <p>
+* The cover is found by descending the mesh from the top level triangles,
+* dropping triangles outside the region and taking whole triangles inside
+* it without looking at their children. Only triangles which cross the
+* boundary are refined down to the requested depth. The triangles are
+* handled as arrays of doubles, so a cone cover does not create any cell
+* objects. The cover may include some cells near the boundary which do not
+* actually overlap the region, but it never leaves out one which does.
+* <p>
+* If a catalog is held in a {@link eap.sky.stars.archive.PackArchive},
+* the cells in each range are stored next to each other, so
+* {@link StarCatalog#loadCells(HTMCover)} can read each range at each
+* depth of the catalog with a single read.
+* @see HTMId
+***************************************************************************/
+public class HTMCover {
+
+int depth;
+
+long[] ranges;
+int nranges;
+
+/********************************
+* the cone, if we are covering
+* one, or else the region
+********************************/
+double x;
+double y;
+double z;
+double radius;
+
+CellRegion region;
+
+/***************************************************************************
+* Create an empty cover.
+***************************************************************************/
+private HTMCover(int depth) {
+
+    if(depth < 0 || depth > HTMId.MAX_DEPTH) {
+        throw new IllegalArgumentException("Bad depth "+depth);
+    }
+
+    this.depth = depth;
+
+    ranges = new long[16];
+    nranges = 0;
+
+} // end of private constructor
+
+/***************************************************************************
+* Cover a cone.
+* @param center The center of the cone.
+* @param radius The angular radius of the cone.
+* @param depth The depth of the cells in the cover.
+* @throws IllegalArgumentException if the depth is out of range.
+***************************************************************************/
+public HTMCover(Direction center, Angle radius, int depth) {
+
+    this(depth);
+
+    double[] vec = center.unitVector();
+    x = vec[0];
+    y = vec[1];
+    z = vec[2];
+    this.radius = radius.getRadians();
+
+    build();
+
+} // end of cone constructor
+
+/***************************************************************************
+* Cover an area bounded by a closed path.
+* @param path The boundary of the region.
+* @param depth The depth of the cells in the cover.
+* @throws IllegalArgumentException if the depth is out of range, or the
+*         path is not a valid {@link PathRegion} boundary.
+***************************************************************************/
+public HTMCover(ArcPath path, int depth) {
+
+    this(new PathRegion(path), depth);
+
+} // end of path constructor
+
+/***************************************************************************
+* Cover any region. The region classifies a temporary {@link HTMCell} for
+* each triangle, so this is slower than covering a cone.
+* @param region The region to cover.
+* @param depth The depth of the cells in the cover.
+* @throws IllegalArgumentException if the depth is out of range.
+***************************************************************************/
+public HTMCover(CellRegion region, int depth) {
+
+    this(depth);
+
+    this.region = region;
+
+    build();
+
+} // end of region constructor
+
+/***************************************************************************
+* Descend from the top level triangles.
+***************************************************************************/
+private void build() {
+
+    if(depth == 0) {
+        /***************************************
+        * the root covers everything, so there
+        * is nothing to decide
+        ***************************************/
+        append(HTMId.ROOT, HTMId.ROOT+1);
+        return;
+    }
+
+    for(int top=0; top < HTMId.TOP_CORNERS.length; ++top) {
+        add(8L + top, 1, HTMId.TOP_CORNERS[top]);
+    }
+
+} // end of build method
+
+/***************************************************************************
+* Add the part of a triangle which overlaps the region.
+* @param id The ID of the triangle.
+* @param level The depth of the triangle.
+* @param c The corners of the triangle, packed as x, y, z triples.
+***************************************************************************/
+private void add(long id, int level, double[] c) {
+
+    int where = classify(id, c);
+    if(where == CellRegion.OUTSIDE) return;
+
+    if(where == CellRegion.INSIDE || level == depth) {
+        /**********************************************
+        * take all the descendants at the cover depth *
+        **********************************************/
+        int shift = 2*(depth - level);
+        append(id << shift, (id+1) << shift);
+        return;
+    }
+
+    /**************************************************
+    * split at the midpoints of the sides the same way
+    * HTMCell creates its children
+    **************************************************/
+    double[] c0 = {c[0], c[1], c[2]};
+    double[] c1 = {c[3], c[4], c[5]};
+    double[] c2 = {c[6], c[7], c[8]};
+
+    double[] m01 = midpoint(c0, c1);
+    double[] m12 = midpoint(c1, c2);
+    double[] m20 = midpoint(c2, c0);
+
+    id <<= 2;
+    ++level;
+
+    add(id,      level, corners(c0,  m01, m20));
+    add(id | 1L, level, corners(m01, c1,  m12));
+    add(id | 2L, level, corners(m20, m12, c2 ));
+    add(id | 3L, level, corners(m01, m12, m20));
+
+} // end of add method
+
+/***************************************************************************
+* Returns the normalized sum of two unit vectors.
+***************************************************************************/
+private static double[] midpoint(double[] a, double[] b) {
+
+    double sx = a[0] + b[0];
+    double sy = a[1] + b[1];
+    double sz = a[2] + b[2];
+    double norm = 1.0/Math.sqrt(sx*sx + sy*sy + sz*sz);
+
+    return new double[] {sx*norm, sy*norm, sz*norm};
+
+} // end of midpoint method
+
+/***************************************************************************
+* Pack the corners of a triangle into one array.
+***************************************************************************/
+private static double[] corners(double[] c0, double[] c1, double[] c2) {
+
+    return new double[] {c0[0], c0[1], c0[2],
+                         c1[0], c1[1], c1[2],
+                         c2[0], c2[1], c2[2]};
+
+} // end of corners method
+
+/***************************************************************************
+* Determine how a triangle overlaps the region. For a cone we compare it
+* with the circle through the farthest corner from the center of the
+* triangle, which contains the whole triangle.
+* @return One of {@link CellRegion#OUTSIDE}, {@link CellRegion#PARTIAL},
+*         or {@link CellRegion#INSIDE}.
+***************************************************************************/
+private int classify(long id, double[] c) {
+
+    if(region != null) {
+        HTMCell cell = new HTMCell(id, new Direction(c[0], c[1], c[2]),
+                                       new Direction(c[3], c[4], c[5]),
+                                       new Direction(c[6], c[7], c[8]));
+        return region.classify(cell);
+    }
+
+    /******************************
+    * center of the triangle. The
+    * corners are unit vectors
+    ******************************/
+    double cx = c[0] + c[3] + c[6];
+    double cy = c[1] + c[4] + c[7];
+    double cz = c[2] + c[5] + c[8];
+    double norm = 1.0/Math.sqrt(cx*cx + cy*cy + cz*cz);
+    cx *= norm;
+    cy *= norm;
+    cz *= norm;
+
+    /*********************************
+    * smallest corner dot product is
+    * the largest angle
+    *********************************/
+    double min = Math.min(cx*c[0] + cy*c[1] + cz*c[2],
+                 Math.min(cx*c[3] + cy*c[4] + cz*c[5],
+                          cx*c[6] + cy*c[7] + cz*c[8]));
+    double size = Math.acos(Math.max(-1.0, Math.min(1.0, min)));
+
+    double dot = cx*x + cy*y + cz*z;
+    double separation = Math.acos(Math.max(-1.0, Math.min(1.0, dot)));
+
+    if(separation > radius + size)  return CellRegion.OUTSIDE;
+    if(separation + size <= radius) return CellRegion.INSIDE;
+
+    return CellRegion.PARTIAL;
+
+} // end of classify method
+
+/***************************************************************************
+* Add a range after the last one, merging them if they touch.
+***************************************************************************/
+private void append(long low, long high) {
+
+    if(nranges > 0 && ranges[2*nranges-1] == low) {
+        ranges[2*nranges-1] = high;
+        return;
+    }
+
+    if(2*nranges == ranges.length) ranges = Arrays.copyOf(ranges, 2*ranges.length);
+
+    ranges[2*nranges  ] = low;
+    ranges[2*nranges+1] = high;
+    ++nranges;
+
+} // end of append method
+
+/***************************************************************************
+* Returns the depth of the cells in this cover.
+***************************************************************************/
+public int getDepth() { return depth; }
+
+/***************************************************************************
+* Returns the number of ranges of IDs in this cover.
+***************************************************************************/
+public int getRangeCount() { return nranges; }
+
+/***************************************************************************
+* Returns the first ID in a range.
+* @param i The index of the range. The ranges are sorted by ID.
+***************************************************************************/
+public long getLow(int i) {
+
+    if(i < 0 || i >= nranges) throw new IndexOutOfBoundsException("range "+i);
+    return ranges[2*i];
+
+} // end of getLow method
+
+/***************************************************************************
+* Returns one more than the last ID in a range.
+* @param i The index of the range. The ranges are sorted by ID.
+***************************************************************************/
+public long getHigh(int i) {
+
+    if(i < 0 || i >= nranges) throw new IndexOutOfBoundsException("range "+i);
+    return ranges[2*i+1];
+
+} // end of getHigh method
+
+/***************************************************************************
+* Returns the number of cells in this cover.
+***************************************************************************/
+public long getCellCount() {
+
+    long count = 0;
+    for(int i=0; i< nranges; ++i) count += ranges[2*i+1] - ranges[2*i];
+
+    return count;
+
+} // end of getCellCount method
+
+/***************************************************************************
+* Returns the same cover at a different depth. Going deeper replaces each
+* cell with all of its descendants. Going shallower replaces each cell
+* with its ancestor, so the new cover may be larger.
+* @param depth The depth of the new cover.
+* @return A new cover, or this one if the depth is the same.
+* @throws IllegalArgumentException if the depth is out of range.
+***************************************************************************/
+public HTMCover atDepth(int depth) {
+
+    if(depth == this.depth) return this;
+
+    HTMCover cover = new HTMCover(depth);
+    for(int i=0; i< nranges; ++i) {
+        long low  = ranges[2*i];
+        long high = ranges[2*i+1];
+
+        if(depth == 0) {
+            cover.append(HTMId.ROOT, HTMId.ROOT+1);
+            break;
+        }
+
+        /***************************************************
+        * the root stands for all the top level cells, and
+        * below that IDs just shift with the depth
+        ***************************************************/
+        int from = this.depth;
+        if(from == 0) {
+            low  = 8L;
+            high = 16L;
+            from = 1;
+        }
+
+        if(depth > from) {
+            int shift = 2*(depth - from);
+            cover.append(low << shift, high << shift);
+        } else {
+            int shift = 2*(from - depth);
+            long first = low >>> shift;
+            long last  = (high - 1L) >>> shift;
+
+            /********************************************
+            * neighbouring ranges may share an ancestor *
+            ********************************************/
+            if(cover.nranges > 0 && cover.ranges[2*cover.nranges-1] > first) {
+                first = cover.ranges[2*cover.nranges-1];
+            }
+            if(first <= last) cover.append(first, last + 1L);
+        }
+    }
+
+    return cover;
+
+} // end of atDepth method
+
+/***************************************************************************
+* Returns true if a cell at any depth overlaps this cover.
+* @param id The ID of a cell.
+* @return true if the cell or one of its ancestors or descendants is in
+* this cover.
+***************************************************************************/
+public boolean overlaps(long id) {
+
+    if(nranges == 0) return false;
+
+    /*****************************************
+    * find the range of IDs the cell covers
+    * at our depth
+    *****************************************/
+    int level = HTMId.getDepth(id);
+    long low;
+    long high;
+    if(level > depth) {
+        /*****************************
+        * take the ancestor at our
+        * depth
+        *****************************/
+        low = depth == 0 ? HTMId.ROOT : id >>> 2*(level - depth);
+        high = low + 1L;
+
+    } else {
+        /******************************
+        * take all the descendants at
+        * our depth
+        ******************************/
+        long count;
+        if(depth == 0)      count = 1L;
+        else if(level == 0) count = 8L << 2*(depth - 1);
+        else                count = 1L << 2*(depth - level);
+
+        low = HTMId.getFirstDescendant(id, depth);
+        high = low + count;
+    }
+
+    /*************************************************
+    * find the first range which ends after the low
+    * end, and see if it starts before the high end
+    *************************************************/
+    int first = 0;
+    int last = nranges;
+    while(first < last) {
+        int mid = (first + last) >>> 1;
+        if(ranges[2*mid+1] <= low) first = mid + 1;
+        else                       last  = mid;
+    }
+
+    return first < nranges && ranges[2*first] < high;
+
+} // end of overlaps method
+
+/***************************************************************************
+* Returns a string listing the ranges as cell names.
+***************************************************************************/
+public String toString() {
+
+    StringBuilder string = new StringBuilder("HTMCover depth="+depth+
+                                             " cells="+getCellCount()+
+                                             " ranges="+nranges);
+    for(int i=0; i< nranges && i< 10; ++i) {
+        string.append(" [").append(HTMId.toName(ranges[2*i]))
+              .append(",").append(HTMId.toName(ranges[2*i+1]-1L))
+              .append("]");
+    }
+
+    if(nranges > 10) string.append(" ...");
+
+    return string.toString();
+
+} // end of toString method
+
+} // end of HTMCover class
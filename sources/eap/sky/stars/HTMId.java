@@ -0,0 +1,395 @@
+// Copyright 2012 Edward Alan Pier
+//
+// This file is part of eap.sky
+// 
+// eap.sky is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// eap.sky is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with eap.sky.  If not, see <http://www.gnu.org/licenses/>.
+
+package eap.sky.stars;
+
+import eap.sky.util.*;
+
+/***************************************************************************
+* Utilities for numeric Hierarchical Triangular Mesh cell IDs. An ID is a
+* long whose bits spell out the path from the root to the cell, following
+* the Sloan convention. The eight top level cells S0-S3 and N0-N3 have
+* IDs 8 through 15, and each refinement shifts its parent's ID left by two
+* bits and appends the child number 0-3. So the depth of a cell is encoded
+* by the position of its highest set bit, and the parent and children of a
+* cell can be found by shifting.
+* <p>
+* We add a root cell covering the whole sky above the Sloan top level,
+* to match {@link HTMRoot}. It has ID 1 and depth 0, so the top level
+* cells have depth 1.
+* @see HTMCell
+***************************************************************************/
+public final class HTMId {
+
+/** The ID of the cell covering the whole sky **/
+public static final long ROOT = 1L;
+
+/** The deepest level which can be encoded in a long **/
+public static final int MAX_DEPTH = 30;
+
+/***************************************************************************
+* The corners of the top level triangles, in the same order and
+* orientation as {@link HTMRoot} creates them. Each row holds the X, Y,
+* and Z components of corner 0, then corner 1, then corner 2.
+***************************************************************************/
+static final double[][] TOP_CORNERS = {
+    { 1.0,  0.0,  0.0,    0.0,  0.0, -1.0,    0.0,  1.0,  0.0}, // S0
+    { 0.0,  1.0,  0.0,    0.0,  0.0, -1.0,   -1.0,  0.0,  0.0}, // S1
+    {-1.0,  0.0,  0.0,    0.0,  0.0, -1.0,    0.0, -1.0,  0.0}, // S2
+    { 0.0, -1.0,  0.0,    0.0,  0.0, -1.0,    1.0,  0.0,  0.0}, // S3
+    { 1.0,  0.0,  0.0,    0.0,  0.0,  1.0,    0.0, -1.0,  0.0}, // N0
+    { 0.0, -1.0,  0.0,    0.0,  0.0,  1.0,   -1.0,  0.0,  0.0}, // N1
+    {-1.0,  0.0,  0.0,    0.0,  0.0,  1.0,    0.0,  1.0,  0.0}, // N2
+    { 0.0,  1.0,  0.0,    0.0,  0.0,  1.0,    1.0,  0.0,  0.0}  // N3
+};
+
+/***************************************************************************
+* This class only has static methods.
+***************************************************************************/
+private HTMId() {}
+
+/***************************************************************************
+* Tests if a long is a well formed cell ID.
+* @param id A possible cell ID.
+* @return true if the ID is the root or has an even number of bits after
+* the hemisphere and top level bits, and is no deeper than
+* {@link #MAX_DEPTH}.
+***************************************************************************/
+public static boolean isValid(long id) {
+
+    if(id == ROOT) return true;
+    if(id < 8L)    return false;
+
+    int bits = 64 - Long.numberOfLeadingZeros(id);
+    return bits % 2 == 0 && (bits-4)/2 + 1 <= MAX_DEPTH;
+
+} // end of isValid method
+
+/***************************************************************************
+* Returns the depth of a cell in the hierarchy.
+* @param id A cell ID.
+* @return 0 for the root, 1 for the top level cells, and so on.
+***************************************************************************/
+public static int getDepth(long id) {
+
+    if(id == ROOT) return 0;
+
+    int bits = 64 - Long.numberOfLeadingZeros(id);
+    return (bits-4)/2 + 1;
+
+} // end of getDepth method
+
+/***************************************************************************
+* Returns the ID of the parent of a cell.
+* @param id A cell ID.
+* @return The parent ID, or 0 if the cell is the root.
+***************************************************************************/
+public static long getParent(long id) {
+
+    if(id == ROOT) return 0L;
+    if(id < 16L)   return ROOT;
+
+    return id >>> 2;
+
+} // end of getParent method
+
+/***************************************************************************
+* Returns the ID of a child of a cell.
+* @param id A cell ID.
+* @param child The number of the child, 0-7 for the root and 0-3 for
+*        other cells.
+* @return The child ID.
+***************************************************************************/
+public static long getChild(long id, int child) {
+
+    if(id == ROOT) return 8L + child;
+    else           return (id << 2) | child;
+
+} // end of getChild method
+
+/***************************************************************************
+* Returns the number of children of a cell.
+* @param id A cell ID.
+* @return 8 for the root and 4 for any other cell.
+***************************************************************************/
+public static int getChildCount(long id) {
+
+    if(id == ROOT) return 8;
+    else           return 4;
+
+} // end of getChildCount method
+
+/***************************************************************************
+* Returns the ID of the first descendant of a cell at a given depth.
+* The descendants of a cell at a given depth have consecutive IDs,
+* so the cell covers IDs from this value up to but not including
+* the value for the next cell at the same depth as this one.
+* @param id A cell ID.
+* @param depth A depth at least as deep as the cell.
+* @return The first ID at the given depth inside the cell.
+***************************************************************************/
+public static long getFirstDescendant(long id, int depth) {
+
+    int levels = depth - getDepth(id);
+    if(levels < 0) {
+        throw new IllegalArgumentException("Depth "+depth+
+                                           " is above cell "+id);
+    }
+
+    if(id == ROOT) {
+        if(levels == 0) return ROOT;
+        id = 8L;
+        --levels;
+    }
+
+    return id << (2*levels);
+
+} // end of getFirstDescendant method
+
+/***************************************************************************
+* Returns the ID of the cell at a given depth which contains a point on
+* the sphere. This descends the mesh using only primitive arithmetic on
+* the corners of the triangles, so it does not create any objects and is
+* much faster than walking the {@link HTMCell} tree with
+* {@link Cell#getChildUnder(Direction)}. It picks the same child as that
+* method, which tests the children in order, except possibly for points
+* within rounding error of a cell boundary.
+* @param x The X component of a unit vector.
+* @param y The Y component of a unit vector.
+* @param z The Z component of a unit vector.
+* @param depth The depth of the cell to find. 0 returns {@link #ROOT}.
+* @return The ID of the cell containing the point.
+* @throws IllegalArgumentException if the depth is out of range or the
+*         vector is not a valid direction.
+***************************************************************************/
+public static long lookup(double x, double y, double z, int depth) {
+
+    if(depth < 0 || depth > MAX_DEPTH) {
+        throw new IllegalArgumentException("Bad depth "+depth);
+    }
+
+    if(depth == 0) return ROOT;
+
+    /******************************
+    * find the top level triangle *
+    ******************************/
+    int top = 0;
+    double[] corners = null;
+    for(; top < TOP_CORNERS.length; ++top) {
+        corners = TOP_CORNERS[top];
+        if(inside(corners[0], corners[1], corners[2],
+                  corners[3], corners[4], corners[5],
+                  corners[6], corners[7], corners[8], x, y, z)) break;
+    }
+
+    if(top == TOP_CORNERS.length) {
+        throw new IllegalArgumentException("Bad direction "+x+" "+y+" "+z);
+    }
+
+    double x0 = corners[0];
+    double y0 = corners[1];
+    double z0 = corners[2];
+
+    double x1 = corners[3];
+    double y1 = corners[4];
+    double z1 = corners[5];
+
+    double x2 = corners[6];
+    double y2 = corners[7];
+    double z2 = corners[8];
+
+    long id = 8L + top;
+
+    /**************************************
+    * descend through the refinements. At
+    * each level we split the triangle at
+    * the midpoints of its sides the same
+    * way HTMCell creates its children
+    **************************************/
+    for(int level = 1; level < depth; ++level) {
+
+        double sx = x0 + x1;
+        double sy = y0 + y1;
+        double sz = z0 + z1;
+        double norm = 1.0/Math.sqrt(sx*sx + sy*sy + sz*sz);
+        double x01 = sx*norm;
+        double y01 = sy*norm;
+        double z01 = sz*norm;
+
+        sx = x1 + x2;
+        sy = y1 + y2;
+        sz = z1 + z2;
+        norm = 1.0/Math.sqrt(sx*sx + sy*sy + sz*sz);
+        double x12 = sx*norm;
+        double y12 = sy*norm;
+        double z12 = sz*norm;
+
+        sx = x2 + x0;
+        sy = y2 + y0;
+        sz = z2 + z0;
+        norm = 1.0/Math.sqrt(sx*sx + sy*sy + sz*sz);
+        double x20 = sx*norm;
+        double y20 = sy*norm;
+        double z20 = sz*norm;
+
+        if(inside(x0,  y0,  z0,  x01, y01, z01, x20, y20, z20, x, y, z)) {
+            /**********
+            * child 0 *
+            **********/
+            x1 = x01;  y1 = y01;  z1 = z01;
+            x2 = x20;  y2 = y20;  z2 = z20;
+            id = id << 2;
+
+        } else if(inside(x01, y01, z01, x1, y1, z1, x12, y12, z12,
+                         x, y, z)) {
+            /**********
+            * child 1 *
+            **********/
+            x0 = x01;  y0 = y01;  z0 = z01;
+            x2 = x12;  y2 = y12;  z2 = z12;
+            id = (id << 2) | 1L;
+
+        } else if(inside(x20, y20, z20, x12, y12, z12, x2, y2, z2,
+                         x, y, z)) {
+            /**********
+            * child 2 *
+            **********/
+            x0 = x20;  y0 = y20;  z0 = z20;
+            x1 = x12;  y1 = y12;  z1 = z12;
+            id = (id << 2) | 2L;
+
+        } else {
+            /********************************
+            * child 3 - the middle triangle *
+            ********************************/
+            x0 = x01;  y0 = y01;  z0 = z01;
+            x1 = x12;  y1 = y12;  z1 = z12;
+            x2 = x20;  y2 = y20;  z2 = z20;
+            id = (id << 2) | 3L;
+        }
+
+    } // end of loop over levels
+
+    return id;
+
+} // end of lookup method
+
+/***************************************************************************
+* Returns the ID of the cell at a given depth which contains a direction.
+* @see #lookup(double, double, double, int)
+***************************************************************************/
+public static long lookup(Direction dir, int depth) {
+
+    double[] vec = dir.unitVector();
+    return lookup(vec[0], vec[1], vec[2], depth);
+
+} // end of lookup from a direction method
+
+/***************************************************************************
+* Tests if a point is inside a triangle or on its border. This is the same
+* test as {@link HTMCell#contains(Direction)}, written out in primitives.
+***************************************************************************/
+private static boolean inside(double x0, double y0, double z0,
+                              double x1, double y1, double z1,
+                              double x2, double y2, double z2,
+                              double x,  double y,  double z ) {
+
+    /*******************************************
+    * the point must be on the inside of the
+    * plane through each edge and the origin
+    *******************************************/
+    if((y0*z1 - z0*y1)*x + (z0*x1 - x0*z1)*y + (x0*y1 - y0*x1)*z < 0.0) {
+        return false;
+    }
+
+    if((y1*z2 - z1*y2)*x + (z1*x2 - x1*z2)*y + (x1*y2 - y1*x2)*z < 0.0) {
+        return false;
+    }
+
+    if((y2*z0 - z2*y0)*x + (z2*x0 - x2*z0)*y + (x2*y0 - y2*x0)*z < 0.0) {
+        return false;
+    }
+
+    return true;
+
+} // end of inside method
+
+/***************************************************************************
+* Converts a cell name in the Sloan convention to an ID.
+* @param name A cell name like "N0123", or "root".
+* @return The cell ID.
+* @throws IllegalArgumentException if the name is not an HTM cell name.
+***************************************************************************/
+public static long fromName(String name) {
+
+    if(name.equals("root")) return ROOT;
+
+    int length = name.length();
+    if(length < 2 || length > MAX_DEPTH+1) {
+        throw new IllegalArgumentException("Bad HTM name "+name);
+    }
+
+    /*********************
+    * the hemisphere bit *
+    *********************/
+    long id;
+    char hemisphere = name.charAt(0);
+    if(     hemisphere == 'N') id = 3L;
+    else if(hemisphere == 'S') id = 2L;
+    else throw new IllegalArgumentException("Bad HTM name "+name);
+
+    /******************************************
+    * then two bits for each subsequent digit *
+    ******************************************/
+    for(int i=1; i< length; ++i) {
+        int digit = name.charAt(i) - '0';
+        if(digit < 0 || digit > 3) {
+            throw new IllegalArgumentException("Bad HTM name "+name);
+        }
+
+        id = (id << 2) | digit;
+    }
+
+    return id;
+
+} // end of fromName method
+
+/***************************************************************************
+* Converts an ID to a cell name in the Sloan convention.
+* @param id A cell ID.
+* @return The cell name, for example "N0123", or "root".
+***************************************************************************/
+public static String toName(long id) {
+
+    if(id == ROOT) return "root";
+
+    int depth = getDepth(id);
+    char[] chars = new char[depth+1];
+
+    for(int i=depth; i>0; --i) {
+        chars[i] = (char)('0' + (int)(id & 3L));
+        id >>>= 2;
+    }
+
+    if(id == 3L) chars[0] = 'N';
+    else         chars[0] = 'S';
+
+    return new String(chars);
+
+} // end of toName method
+
+} // end of HTMId class
@@ -40,6 +40,12 @@ public ArcPath getBoundary() { return null; }
 *************************************************************************/
 public String getName() { return "root"; }
 
+/*************************************************************************
+* Returns {@link HTMId#ROOT}.
+* @return The ID of the root cell.
+*************************************************************************/
+public long getID() { return HTMId.ROOT; }
+
 /*************************************************************************
 * Returns a point in this cell. Since the cell covers the entire sky, the
 * point is arbitrary.
@@ -73,14 +79,16 @@ protected void createChildren() {
     Direction y_minus = y_plus.oppositeDirection();
     Direction z_minus = z_plus.oppositeDirection();
 
-    addChild(new HTMCell("S0", x_plus , z_minus, y_plus ));
-    addChild(new HTMCell("S1", y_plus , z_minus, x_minus));
-    addChild(new HTMCell("S2", x_minus, z_minus, y_minus));
-    addChild(new HTMCell("S3", y_minus, z_minus, x_plus ));
-    addChild(new HTMCell("N0", x_plus , z_plus, y_minus));
-    addChild(new HTMCell("N1", y_minus, z_plus, x_minus));
-    addChild(new HTMCell("N2", x_minus, z_plus, y_plus ));
-    addChild(new HTMCell("N3", y_plus , z_plus, x_plus ));
+    long id = getID();
+
+    addChild(new HTMCell(HTMId.getChild(id, 0), x_plus , z_minus, y_plus ));
+    addChild(new HTMCell(HTMId.getChild(id, 1), y_plus , z_minus, x_minus));
+    addChild(new HTMCell(HTMId.getChild(id, 2), x_minus, z_minus, y_minus));
+    addChild(new HTMCell(HTMId.getChild(id, 3), y_minus, z_minus, x_plus ));
+    addChild(new HTMCell(HTMId.getChild(id, 4), x_plus , z_plus, y_minus));
+    addChild(new HTMCell(HTMId.getChild(id, 5), y_minus, z_plus, x_minus));
+    addChild(new HTMCell(HTMId.getChild(id, 6), x_minus, z_plus, y_plus ));
+    addChild(new HTMCell(HTMId.getChild(id, 7), y_plus , z_plus, x_plus ));
 
 } // end of initChildren method
 
@@ -20,7 +20,6 @@ package eap.sky.stars;
 import eap.sky.util.*;
 import eap.sky.stars.archive.*;
 
-import java.lang.ref.*;
 import java.util.*;
 import java.util.zip.*;
 import java.io.*;
@@ -33,7 +32,6 @@ public class InputCell extends WrapperCell {
 StarCatalog catalog;
 
 List<Star> hard_stars;
-SoftReference<List<Star>> stars_ref;
 
 CellInfo info;
 
@@ -66,7 +64,7 @@ public InputCell(StarCatalog catalog, Cell cell, CellInfo info) {
 *********************************************************************/
 protected WrapperCell createChild(Cell cell) {
 
-    CellInfo info = catalog.getCellInfo(cell.getName());
+    CellInfo info = catalog.getCellInfo(cell);
 
    // System.out.println(cell.getName()+" "+info);
 
@@ -84,8 +82,7 @@ private List<Star> getStarList() {
     /**************************************************
     * see if we still have the stars cached in memory *
     **************************************************/
-    List<Star> stars = null;
-    if(stars_ref != null) stars = stars_ref.get();
+    List<Star> stars = catalog.getCellCache().get(this);
 
     /*******************************************
     * if we don't have the stars cached, then
@@ -97,23 +94,25 @@ private List<Star> getStarList() {
 } // end of getStarList method
 
 /**************************************************************************
-* Returns the number of stars in this cell. Note that this will force the
-* cell to read the stars from disk to memory if they are not there already.
-* But this would only be a soft reference, which the garbage collector
-* could reclaim if there were no hard references.
+* Returns the number of stars in this cell. Unless the catalog has a
+* column store, this will force the cell to read the stars from disk to
+* memory if they are not there already. The list is kept in the catalog's
+* {@link CellCache}, which may discard it later to stay within its memory
+* budget.
 **************************************************************************/
 public int getStarCount() {
 
+    ColumnCell columns = getColumns();
+    if(columns != null) return columns.getStarCount();
+
     return getStarList().size();
 
 } // end of getStarCount method
 
 /***************************************************************************
-* Returns a readonly view of this cells stars. Note this method creates
-* a hard reference to the star list. So you should make sure you get rid of the
-* returned list (set it to null or let it go out of scope) when you are done
-* with it. This will allow the garbage collector to reclaim the memory
-* occupied by the star list if necessary.
+* Returns a readonly view of this cells stars. The list stays valid after the
+* cache discards it, but holding on to many of these lists will use memory
+* beyond the cache budget.
 * @return A list of stars in this cell.
 ***************************************************************************/
 public List<Star> getStars() {
@@ -134,6 +133,23 @@ public List<Star> getStars() {
 *************************************************************************/
 private void read(List<Star> stars) throws IOException {
 
+    /*****************************************************
+    * if the catalog has a column store, then build the
+    * stars from that instead of decoding the archive
+    * entry. Callers who only need positions and
+    * magnitudes should use a cursor instead, which
+    * reads the store without creating any stars
+    *****************************************************/
+    ColumnCell columns = getColumns();
+    if(columns != null) {
+        int count = columns.getStarCount();
+        for(int i=0; i< count; ++i) {
+            stars.add(columns.getStar(i));
+        }
+
+        return;
+    }
+
     Archive archive = catalog.getCellArchive();
     InputStream in = archive.getInputStream(getName());
     if(in == null) {
@@ -154,40 +170,150 @@ private void read(List<Star> stars) throws IOException {
 ***********************************************************************/
 private void read(InputStream in, List<Star> stars) throws IOException {
 
-    /********************************************
-    * wrap a data input stream around the input *
-    ********************************************/
-    DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+    /***********************************************
+    * let the format decode the whole cell at once *
+    ***********************************************/
+    try { catalog.getStarFormat().read(in, stars, getNames()); }
+    finally { in.close(); }
 
-    /**********************
-    * get the star format *
-    **********************/
-    StarFormat format = catalog.getStarFormat();
+} // end of read method
 
-    /*********************
-    * read all the stars *
-    *********************/
-    try {
+/**************************************************************************
+* Decode the stars in this cell into primitive arrays, without creating
+* star objects if the star format supports it. The stars are not cached.
+* @param block The block to which to add the stars. It is not cleared
+*        first.
+* @throws IOException if there is trouble reading the data.
+**************************************************************************/
+public void read(StarBlock block) throws IOException {
+
+    /******************************************
+    * copy straight from the column store if
+    * the catalog has one
+    ******************************************/
+    ColumnCell columns = getColumns();
+    if(columns != null) {
+        int count = columns.getStarCount();
+        block.ensureCapacity(block.getStarCount() + count);
+        for(int i=0; i< count; ++i) {
+            block.add(columns.getX(i), columns.getY(i), columns.getZ(i),
+                      columns.getRawMagnitude(i), columns.getName(i));
+        }
+
+        return;
+    }
+
+    Archive archive = catalog.getCellArchive();
+    InputStream in = archive.getInputStream(getName());
+    if(in == null) throw new FileNotFoundException(getName());
+
+    block.setNames(getNames());
+
+    try { catalog.getStarFormat().read(in, block); }
+    finally { in.close(); }
 
-        BandMap bands = catalog.getBandMap();
-        while(true) {
-            /*********************
-            * read the next star *
-            *********************/
-            Star star = format.read(data);
-            stars.add(star);
+} // end of read block method
+
+/**************************************************************************
+* Returns a cursor over the stars in this cell. This reads the positions
+* and magnitudes in place from the column store if the catalog has one,
+* or else from the star list if it is already in the cell cache.
+* If the star format {@link StarFormat#readsBlocks reads blocks}, the cell
+* is decoded into a {@link StarBlock}, which is kept in the catalog's block
+* cache, so no star objects are created until you ask the cursor for one.
+* Other formats decode full stars anyway, so the cursor runs over the
+* cached star list and keeps all their photometry.
+* @return A new cursor before the first star in this cell. If the stars
+* can't be read, the cursor is empty.
+**************************************************************************/
+public StarCursor getCursor() {
+
+    ColumnCell columns = getColumns();
+    if(columns != null) return StarCursor.create(columns);
+
+    /***************************************************
+    * use the star list if we already have it. We check
+    * first so that we don't count a miss in its cache
+    ***************************************************/
+    CellCache<InputCell, List<Star>> lists = catalog.getCellCache();
+    if(lists.contains(this)) {
+        List<Star> stars = lists.get(this);
+        if(stars != null) return StarCursor.create(stars, catalog.getSortBand());
+    }
+
+    /*********************************************
+    * a block would keep only the sort band, so
+    * formats which build whole stars use the list
+    *********************************************/
+    if(!catalog.getStarFormat().readsBlocks()) {
+        List<Star> stars = getStarList();
+        if(stars == null) stars = Collections.emptyList();
+        return StarCursor.create(stars, catalog.getSortBand());
+    }
 
+    /******************************
+    * otherwise decode to a block *
+    ******************************/
+    CellCache<InputCell, StarBlock> blocks = catalog.getBlockCache();
+    StarBlock block = blocks.get(this);
+    if(block == null) {
+        block = new StarBlock(catalog.getSortBand());
+        try { read(block); }
+        catch(IOException e) {
+            e.printStackTrace();
+            return StarCursor.create(new StarBlock(catalog.getSortBand()));
         }
 
-    } catch(EOFException e) {}
+        blocks.put(this, block, estimateBytes(block));
+    }
 
+    return StarCursor.create(block);
 
-    /*****************
-    * close the file *
-    *****************/
-    data.close();
+} // end of getCursor method
 
-} // end of read method
+/**************************************************************************
+* Returns the names of the stars in this cell if the star format stores
+* them apart from the rest of the cell.
+* @return A source which reads the names when they are first needed, or
+* null if the names are stored with the stars.
+**************************************************************************/
+private StarNames getNames() {
+
+    if(!catalog.getStarFormat().hasSeparateNames()) return null;
+
+    return new CellNames(catalog.getCellArchive(),
+                         getName()+StarFormat.NAMES_SUFFIX);
+
+} // end of getNames method
+
+/**************************************************************************
+* Returns a view of the stars in this cell in the column store of the
+* catalog. The view reads directly from the mapped store file, so it
+* lets you loop over the star positions and magnitudes without creating
+* star objects.
+* @return the stars in this cell, or null if the catalog does not have a
+* column store.
+**************************************************************************/
+public ColumnCell getColumns() {
+
+    ColumnStore store = catalog.getColumnStore();
+    if(store == null) return null;
+    else              return store.getCell(this);
+
+} // end of getColumns method
+
+/**************************************************************************
+* Read the stars in this cell into a new list, without caching them.
+* @return A new list of the stars in this cell.
+* @throws IOException if there is trouble reading the data.
+**************************************************************************/
+List<Star> readStars() throws IOException {
+
+    List<Star> stars = new ArrayList<Star>();
+    read(stars);
+    return stars;
+
+} // end of readStars method
 
 /**************************************************************************
 * Locate the correct entry in the zip file for this cell, and read the star
@@ -205,10 +331,10 @@ private List<Star> loadStars() {
         *****************/
         read(stars);
 
-        /*****************************************
-        * make a soft reference to the star list *
-        *****************************************/
-        stars_ref = new SoftReference<List<Star>>(stars);
+        /*****************************
+        * keep the list in the cache *
+        *****************************/
+        catalog.getCellCache().put(this, stars, estimateBytes(stars));
 
         return stars;
 
@@ -219,6 +345,60 @@ private List<Star> loadStars() {
 
 } // end of loadStars method
 
+/**************************************************************************
+* Decode the stars in this cell from data which has already been read
+* from the archive, and keep them in the cell cache.
+* @param in The contents of the archive entry for this cell. The stream is
+*        closed.
+* @throws IOException if there is trouble decoding the data.
+**************************************************************************/
+void loadStars(InputStream in) throws IOException {
+
+    List<Star> stars = new ArrayList<Star>();
+    read(in, stars);
+
+    catalog.getCellCache().put(this, stars, estimateBytes(stars));
+
+} // end of loadStars from a stream method
+
+/*************************************************************************
+* Estimate the memory occupied by a list of stars. This allows for the
+* star, its direction and photometry objects, and its name.
+* @param stars A list of stars.
+* @return An estimate of the size of the list in bytes.
+**************************************************************************/
+static long estimateBytes(List<Star> stars) {
+
+    long bytes = 16 + 4L*stars.size();
+    for(Star star : stars) {
+        bytes += 160;
+
+        String name = star.getLoadedName();
+        if(name != null) bytes += 40 + name.length();
+    }
+
+    return bytes;
+
+} // end of estimateBytes method
+
+/*************************************************************************
+* Estimate the memory occupied by a block of stars. This allows for the
+* arrays and any names which have been read.
+* @param block A block of stars.
+* @return An estimate of the size of the block in bytes.
+**************************************************************************/
+static long estimateBytes(StarBlock block) {
+
+    long bytes = 100 + 30L*block.x.length;
+    for(int i=0; i< block.count; ++i) {
+        String name = block.names[i];
+        if(name != null) bytes += 40 + name.length();
+    }
+
+    return bytes;
+
+} // end of estimateBytes for a block method
+
 
 /***********************************************************************
 *
@@ -0,0 +1,38 @@
+// Copyright 2012 Edward Alan Pier
+//
+// This file is part of eap.sky
+// 
+// eap.sky is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// eap.sky is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with eap.sky.  If not, see <http://www.gnu.org/licenses/>.
+
+package eap.sky.stars;
+
+import eap.sky.util.*;
+
+/**************************************************************************
+* Receives the results of a {@link CrossMatch}. Matches are delivered in
+* batches as the search goes, so a sink can write them out without holding
+* the whole result in memory. Only one thread calls a sink at a time, but
+* successive calls may come from different threads.
+**************************************************************************/
+public interface MatchSink {
+
+/**************************************************************************
+* Called for each pair of matching stars.
+* @param star A star from the first catalog.
+* @param match A star from the second catalog within the match radius.
+* @param separation The angle between the two stars.
+**************************************************************************/
+public void match(Star star, Star match, Angle separation);
+
+} // end of MatchSink interface
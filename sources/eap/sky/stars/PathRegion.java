@@ -0,0 +1,411 @@
+// Copyright 2012 Edward Alan Pier
+//
+// This file is part of eap.sky
+// 
+// eap.sky is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// eap.sky is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with eap.sky.  If not, see <http://www.gnu.org/licenses/>.
+
+package eap.sky.stars;
+
+import eap.sky.util.*;
+
+/***************************************************************************
+* A region of the sky bounded by a closed {@link ArcPath}, such as the
+* unprojected outline of a focal plane. The region may be concave, and
+* its arcs may be small circles as well as great circles, but it must
+* fit inside a hemisphere. It doesn't matter which way the path runs.
+* <p>
+* Points are tested by counting how many times the great circle arc
+* from the point to a reference point outside the region crosses the
+* boundary. Cells are classified by looking for crossings between their
+* edges and the boundary. This assumes the cell edges are great circle
+* arcs, as they are for {@link HTMCell}s. All the geometry is kept in
+* arrays of doubles, so testing a point does not create any objects.
+***************************************************************************/
+public class PathRegion implements CellRegion {
+
+ArcPath path;
+
+int narcs;
+
+/*********************************************
+* start point, normal, and plane distance of
+* each arc, and the normal cross the start,
+* which we use to find the angle along the arc
+*********************************************/
+double[] start;
+double[] normal;
+double[] distance;
+double[] tangent;
+double[] length;
+
+/****************
+* bounding cone *
+****************/
+double[] center;
+double radius;
+double cos_radius;
+
+/*************************************
+* a point outside the bounding cone *
+*************************************/
+double[] outside;
+
+/***************************************************************************
+* Create a new region.
+* @param path The boundary of the region.
+* @throws IllegalArgumentException if the path is not closed or the region
+*         is larger than a hemisphere.
+***************************************************************************/
+public PathRegion(ArcPath path) {
+
+    this.path = path;
+
+    if(!path.isLoop()) {
+        throw new IllegalArgumentException("Region boundary is not closed");
+    }
+
+    /*****************
+    * count the arcs *
+    *****************/
+    narcs = 0;
+    for(Arc arc = path.getFirstArc(); ; arc = arc.getNext()) {
+        ++narcs;
+        if(arc == path.getLastArc()) break;
+    }
+
+    start    = new double[3*narcs];
+    normal   = new double[3*narcs];
+    tangent  = new double[3*narcs];
+    distance = new double[narcs];
+    length   = new double[narcs];
+
+    /*************************************************
+    * unpack the arcs and sum the starts to find the
+    * center of the region
+    *************************************************/
+    double cx = 0.0;
+    double cy = 0.0;
+    double cz = 0.0;
+
+    int i=0;
+    for(Arc arc = path.getFirstArc(); ; arc = arc.getNext()) {
+
+        double[] p0 = arc.getStart().unitVector();
+        double[] p1 = arc.getEnd().unitVector();
+        double[] n  = arc.getNormal().unitVector();
+
+        int j = 3*i;
+        System.arraycopy(p0, 0, start,  j, 3);
+        System.arraycopy(n,  0, normal, j, 3);
+
+        distance[i] = n[0]*p0[0] + n[1]*p0[1] + n[2]*p0[2];
+
+        tangent[j  ] = n[1]*p0[2] - n[2]*p0[1];
+        tangent[j+1] = n[2]*p0[0] - n[0]*p0[2];
+        tangent[j+2] = n[0]*p0[1] - n[1]*p0[0];
+
+        /*****************************************************
+        * an arc which ends where it starts is a full circle *
+        *****************************************************/
+        length[i] = angleAlong(i, p1[0], p1[1], p1[2]);
+        if(length[i] == 0.0) length[i] = 2.0*Math.PI;
+
+        cx += p0[0];
+        cy += p0[1];
+        cz += p0[2];
+
+        ++i;
+        if(arc == path.getLastArc()) break;
+    }
+
+    double norm = Math.sqrt(cx*cx + cy*cy + cz*cz);
+    if(norm == 0.0) {
+        throw new IllegalArgumentException("Region has no well defined center");
+    }
+
+    center = new double[] {cx/norm, cy/norm, cz/norm};
+
+    /********************************************************
+    * find the bounding radius. Every point on an arc is no
+    * farther from the middle of the arc than half the
+    * length of the arc measured along it
+    ********************************************************/
+    radius = 0.0;
+    for(i=0; i< narcs; ++i) {
+        int j = 3*i;
+        double d = distance[i];
+
+        double half = 0.5*length[i];
+        double cos = Math.cos(half);
+        double sin = Math.sin(half);
+
+        /*******************************************
+        * rotate the start about the normal to get
+        * the middle of the arc
+        *******************************************/
+        double mx = start[j  ]*cos + tangent[j  ]*sin + normal[j  ]*d*(1.0-cos);
+        double my = start[j+1]*cos + tangent[j+1]*sin + normal[j+1]*d*(1.0-cos);
+        double mz = start[j+2]*cos + tangent[j+2]*sin + normal[j+2]*d*(1.0-cos);
+
+        double dot = mx*center[0] + my*center[1] + mz*center[2];
+        double angle = Math.acos(Math.max(-1.0, Math.min(1.0, dot)))
+                     + Math.sqrt(Math.max(0.0, 1.0 - d*d))*half;
+
+        if(angle > radius) radius = angle;
+    }
+
+    if(radius >= 0.5*Math.PI) {
+        throw new IllegalArgumentException("Region is larger than a hemisphere");
+    }
+
+    cos_radius = Math.cos(radius);
+
+    /***********************************************************
+    * any direction perpendicular to the center is outside the
+    * region, and is less than 180 degrees from any point
+    * inside the bounding cone
+    ***********************************************************/
+    double ax = 0.0;
+    double ay = 0.0;
+    double az = 0.0;
+    if(Math.abs(center[0]) <= Math.abs(center[1]) &&
+       Math.abs(center[0]) <= Math.abs(center[2])) ax = 1.0;
+    else if(Math.abs(center[1]) <= Math.abs(center[2])) ay = 1.0;
+    else                                                az = 1.0;
+
+    double ox = center[1]*az - center[2]*ay;
+    double oy = center[2]*ax - center[0]*az;
+    double oz = center[0]*ay - center[1]*ax;
+    norm = Math.sqrt(ox*ox + oy*oy + oz*oz);
+
+    outside = new double[] {ox/norm, oy/norm, oz/norm};
+
+} // end of constructor
+
+/***************************************************************************
+* Returns the boundary of this region.
+* @return The path given to the constructor.
+***************************************************************************/
+public ArcPath getBoundary() { return path; }
+
+/***************************************************************************
+* Returns the center of a cone which contains the whole region.
+* @return The normalized sum of the starting points of the boundary arcs.
+***************************************************************************/
+public Direction getCenter() {
+
+    return new Direction(center[0], center[1], center[2]);
+
+} // end of getCenter method
+
+/***************************************************************************
+* Returns the radius of a cone which contains the whole region.
+* @return The radius of the bounding cone.
+* @see #getCenter()
+***************************************************************************/
+public Angle getRadius() { return Angle.createFromRadians(radius); }
+
+/***************************************************************************
+* Returns true if a point is in the region.
+* @param x The X component of the unit vector.
+* @param y The Y component of the unit vector.
+* @param z The Z component of the unit vector.
+* @return true if the point is in the region.
+***************************************************************************/
+public boolean contains(double x, double y, double z) {
+
+    if(x*center[0] + y*center[1] + z*center[2] < cos_radius) return false;
+
+    return crossings(x, y, z, outside[0], outside[1], outside[2]) %2 == 1;
+
+} // end of contains method
+
+/***************************************************************************
+* Returns true if any part of the cell might overlap the region.
+* @param cell The cell to test.
+* @return true unless the cell is entirely outside the region.
+***************************************************************************/
+public boolean contains(Cell cell) { return classify(cell) != OUTSIDE; }
+
+/***************************************************************************
+* Determine how a cell overlaps the region.
+* @param cell The cell to classify.
+* @return One of {@link #OUTSIDE}, {@link #PARTIAL}, or {@link #INSIDE}.
+***************************************************************************/
+public int classify(Cell cell) {
+
+    /************************************
+    * compare the bounding cones first *
+    ************************************/
+    double[] cell_center = cell.getCenter().unitVector();
+    double dot = cell_center[0]*center[0] +
+                 cell_center[1]*center[1] +
+                 cell_center[2]*center[2];
+
+    double separation = Math.acos(Math.max(-1.0, Math.min(1.0, dot)));
+    if(separation > radius + cell.getRadius().getRadians()) return OUTSIDE;
+
+    /*****************************************************
+    * the root cell has no boundary, and covers everything
+    *****************************************************/
+    ArcPath boundary = cell.getBoundary();
+    if(boundary == null) return PARTIAL;
+
+    /******************************************************
+    * if any edge of the cell crosses the region boundary
+    * then the cell is only partly inside
+    ******************************************************/
+    double[] first = null;
+    for(Arc arc = boundary.getFirstArc(); ; arc = arc.getNext()) {
+
+        double[] p0 = arc.getStart().unitVector();
+        double[] p1 = arc.getEnd().unitVector();
+
+        if(first == null) first = p0;
+
+        if(crossings(p0[0], p0[1], p0[2], p1[0], p1[1], p1[2]) > 0) {
+            return PARTIAL;
+        }
+
+        if(arc == boundary.getLastArc()) break;
+    }
+
+    /*********************************************************
+    * no crossings, so either the cell is entirely inside the
+    * region, the region is entirely inside the cell, or they
+    * are disjoint
+    *********************************************************/
+    if(contains(first[0], first[1], first[2])) return INSIDE;
+
+    Direction corner = new Direction(start[0], start[1], start[2]);
+    if(cell.contains(corner)) return PARTIAL;
+
+    return OUTSIDE;
+
+} // end of classify method
+
+/***************************************************************************
+* Returns the angle about the normal of an arc from its start to a point on
+* the circle containing the arc.
+* @param i The index of the arc.
+* @return An angle in radians between zero and two pi.
+***************************************************************************/
+private double angleAlong(int i, double x, double y, double z) {
+
+    int j = 3*i;
+
+    double sin = tangent[j]*x + tangent[j+1]*y + tangent[j+2]*z;
+    double cos = start[j]*x + start[j+1]*y + start[j+2]*z
+               - distance[i]*distance[i];
+
+    double angle = Math.atan2(sin, cos);
+    if(angle < 0.0) angle += 2.0*Math.PI;
+
+    return angle;
+
+} // end of angleAlong method
+
+/***************************************************************************
+* Counts the number of times the shorter great circle arc between two
+* points crosses the boundary of the region. Each boundary arc includes its
+* start point but not its end, so that a crossing through a corner of the
+* boundary is only counted once.
+***************************************************************************/
+private int crossings(double ax, double ay, double az,
+                      double bx, double by, double bz) {
+
+    /*******************************************
+    * normal to the plane of the great circle *
+    *******************************************/
+    double mx = ay*bz - az*by;
+    double my = az*bx - ax*bz;
+    double mz = ax*by - ay*bx;
+
+    double norm = Math.sqrt(mx*mx + my*my + mz*mz);
+    if(norm == 0.0) return 0;
+
+    mx /= norm;
+    my /= norm;
+    mz /= norm;
+
+    /***********************************************
+    * a point on the great circle is between the
+    * ends if its dot products with these are both
+    * non-negative
+    ***********************************************/
+    double tax = my*az - mz*ay;
+    double tay = mz*ax - mx*az;
+    double taz = mx*ay - my*ax;
+
+    double tbx = by*mz - bz*my;
+    double tby = bz*mx - bx*mz;
+    double tbz = bx*my - by*mx;
+
+    int count = 0;
+    for(int i=0; i< narcs; ++i) {
+        int j = 3*i;
+
+        double nx = normal[j  ];
+        double ny = normal[j+1];
+        double nz = normal[j+2];
+        double d  = distance[i];
+
+        /*****************************************************
+        * the line where the two planes meet. The normals are
+        * unit vectors, so the determinant is the square of
+        * the cross product
+        *****************************************************/
+        double cx = my*nz - mz*ny;
+        double cy = mz*nx - mx*nz;
+        double cz = mx*ny - my*nx;
+
+        double cross2 = cx*cx + cy*cy + cz*cz;
+        if(cross2 == 0.0) continue;
+
+        double dot = mx*nx + my*ny + mz*nz;
+
+        double c1 = -d*dot/cross2;
+        double c2 =  d/cross2;
+
+        double disc = 1.0 - (c1*c1 + c2*c2 + 2.0*c1*c2*dot);
+        if(disc < 0.0) continue;
+
+        double u = Math.sqrt(disc/cross2);
+
+        double vx = mx*c1 + nx*c2;
+        double vy = my*c1 + ny*c2;
+        double vz = mz*c1 + nz*c2;
+
+        /**************************************
+        * check both points where the circles
+        * meet
+        **************************************/
+        for(int sign = -1; sign <= 1; sign += 2) {
+            double x = vx + sign*u*cx;
+            double y = vy + sign*u*cy;
+            double z = vz + sign*u*cz;
+
+            if(x*tax + y*tay + z*taz < 0.0) continue;
+            if(x*tbx + y*tby + z*tbz < 0.0) continue;
+
+            if(angleAlong(i, x, y, z) < length[i]) ++count;
+        }
+
+    } // end of loop over arcs
+
+    return count;
+
+} // end of crossings method
+
+} // end of PathRegion class
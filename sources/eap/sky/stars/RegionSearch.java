@@ -0,0 +1,387 @@
+// Copyright 2012 Edward Alan Pier
+//
+// This file is part of eap.sky
+// 
+// eap.sky is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// eap.sky is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with eap.sky.  If not, see <http://www.gnu.org/licenses/>.
+
+package eap.sky.stars;
+
+import java.util.*;
+
+/**************************************************************************
+* Iterates over the stars in a catalog which lie inside a
+* {@link CellRegion} and are at least as bright as a given magnitude.
+* Stars are returned brightest first, and cells are only read as they
+* are needed, so you can stop early once you have enough.
+* <p>
+* Each cell holds the brightest stars in its area, and when a cell fills
+* up, its stars are copied to the start of its children's lists before
+* any dimmer stars are added. So the stars in a child which are not in
+* its parent are all at least as dim as the dimmest star in the parent.
+* The children of each open cell wait in a heap keyed on the parent's
+* {@link InputCell#getDimmestMag()}, and a child is only opened when it
+* could hold a star brighter than the next star from the cells already
+* open. When it is, the stars it shares with its parent are skipped.
+* <p>
+* Stars in cells which lie entirely inside the region are taken without
+* testing them. Stars in cells which cross the boundary are tested with
+* {@link #accept(double, double, double)}. Each cell is read through a
+* {@link StarCursor}, so rejected stars do not create any objects unless
+* the star list of the cell was already in memory.
+* <p>
+* This relies on the stars within each cell being sorted brightest first,
+* as they are when a catalog is generated.
+* @see StarCatalog#regionSearch(CellRegion, float)
+**************************************************************************/
+public class RegionSearch implements Iterator<Star> {
+
+/**************************************************************************
+* How close in each component two unit vectors must be for us to treat
+* them as the same star. This allows for positions being encoded
+* differently in different cells.
+**************************************************************************/
+private static final double SAME_STAR = 1e-8;
+
+Band band;
+float dimmest;
+
+CellRegion region;
+
+PriorityQueue<Cursor> queue;
+PriorityQueue<Layer> layers;
+
+int ncells;
+
+/**************************************************************************
+* Create a new search without any cells. Subclasses should call
+* {@link #addCell(InputCell, boolean)} for each cell they want searched.
+* @param catalog The catalog to search.
+* @param dimmest The dimmest magnitude to return in the sort band of the
+*        catalog.
+**************************************************************************/
+protected RegionSearch(StarCatalog catalog, float dimmest) {
+
+    this.band = catalog.getSortBand();
+    this.dimmest = dimmest;
+
+    queue = new PriorityQueue<Cursor>();
+    layers = new PriorityQueue<Layer>();
+
+} // end of protected constructor
+
+/**************************************************************************
+* Create a new search. No cells are read until the first star is asked
+* for.
+* @param catalog The catalog to search.
+* @param region The area of the sky to search.
+* @param dimmest The dimmest magnitude to return in the sort band of the
+*        catalog.
+**************************************************************************/
+public RegionSearch(StarCatalog catalog, CellRegion region, float dimmest) {
+
+    this(catalog, dimmest);
+
+    this.region = region;
+
+    addLayer(catalog.getRootCell(), Float.NEGATIVE_INFINITY, null, false);
+
+} // end of constructor
+
+/**************************************************************************
+* Open the unopened cell which could hold the brightest stars.
+* @return false if there are no more cells to open.
+**************************************************************************/
+public boolean step() {
+
+    Layer layer = layers.poll();
+    if(layer == null) return false;
+
+    InputCell cell = layer.cell;
+    ++ncells;
+
+    /***************************************************
+    * read the stars which were not in the parent cell *
+    ***************************************************/
+    addCell(cell, !layer.inside, countInherited(layer));
+
+    /*****************************************************
+    * queue the children if they might hold stars within
+    * the limit. The ones they don't share with this cell
+    * can't be brighter than the dimmest star in it
+    *****************************************************/
+    float mag = cell.getDimmestMag();
+    if(cell.hasChildren() && mag <= dimmest) {
+        double[] ties = findTies(cell, mag);
+
+        mag = Math.max(mag, layer.mag);
+        for(Cell child : cell.getChildren()) {
+            addLayer((InputCell)child, mag, ties, layer.inside);
+        }
+    }
+
+    return true;
+
+} // end of step method
+
+/**************************************************************************
+* Count the stars at the start of a cell which were copied from its
+* parent. These are the stars brighter than the dimmest star in the
+* parent, and then any as dim as it which are also in the parent.
+**************************************************************************/
+private int countInherited(Layer layer) {
+
+    if(layer.ties == null) return 0;
+
+    StarCursor stars = layer.cell.getCursor();
+    while(stars.next()) {
+        float mag = stars.getMagnitude();
+        if(Float.isNaN(mag)) return stars.getIndex();
+        if(mag < layer.mag) continue;
+
+        if(mag > layer.mag || !layer.isTie(stars.getX(),
+                                           stars.getY(),
+                                           stars.getZ())) {
+            return stars.getIndex();
+        }
+    }
+
+    return stars.getStarCount();
+
+} // end of countInherited method
+
+/**************************************************************************
+* Collect the unit vectors of the stars at the end of a cell which are
+* as dim as its dimmest star, since its children can't tell these from
+* other stars of the same magnitude by brightness alone.
+* @return The vectors packed as x, y, z triples.
+**************************************************************************/
+private double[] findTies(InputCell cell, float dimmest) {
+
+    List<double[]> ties = new ArrayList<double[]>();
+
+    StarCursor stars = cell.getCursor();
+    for(int i=stars.getStarCount()-1; stars.moveTo(i); --i) {
+        if(stars.getMagnitude() != dimmest) break;
+        ties.add(new double[] {stars.getX(), stars.getY(), stars.getZ()});
+    }
+
+    double[] packed = new double[3*ties.size()];
+    for(int i=0; i< ties.size(); ++i) {
+        System.arraycopy(ties.get(i), 0, packed, 3*i, 3);
+    }
+
+    return packed;
+
+} // end of findTies method
+
+/**************************************************************************
+* Open cells until the brightest star we haven't returned yet is known
+* to be in an open cell.
+**************************************************************************/
+private void refine() {
+
+    while(!layers.isEmpty()) {
+        Cursor cursor = queue.peek();
+        if(cursor != null && cursor.mag <= layers.peek().mag) break;
+
+        step();
+    }
+
+} // end of refine method
+
+/**************************************************************************
+* Queue a cell to be opened if it overlaps the region.
+* @param cell The cell.
+* @param mag The dimmest magnitude in the parent cell.
+* @param ties The stars in the parent as dim as that, or null for the
+*        root cell.
+* @param inside True if we already know the cell is inside the region.
+**************************************************************************/
+private void addLayer(InputCell cell, float mag, double[] ties,
+                      boolean inside) {
+
+    if(!inside) {
+        int where = region.classify(cell);
+        if(where == CellRegion.OUTSIDE) return;
+
+        inside = where == CellRegion.INSIDE;
+    }
+
+    layers.add(new Layer(cell, mag, ties, inside));
+
+} // end of addLayer method
+
+/**************************************************************************
+* Add the stars in a cell to the search.
+* @param cell The cell to add.
+* @param test True if the stars in the cell should be checked with
+*        {@link #accept(double, double, double)}, or false if they are all
+*        in the region.
+**************************************************************************/
+protected void addCell(InputCell cell, boolean test) {
+
+    addCell(cell, test, 0);
+
+} // end of addCell method
+
+/**************************************************************************
+* Add the stars in a cell to the search, skipping the first few.
+* @param cell The cell to add.
+* @param test True if the stars in the cell should be checked with
+*        {@link #accept(double, double, double)}, or false if they are all
+*        in the region.
+* @param first The index of the first star in the cell to consider.
+**************************************************************************/
+protected void addCell(InputCell cell, boolean test, int first) {
+
+    Cursor cursor = new Cursor(cell.getCursor(), test);
+
+    if(first > 0 && !cursor.stars.moveTo(first-1)) return;
+    if(cursor.step()) queue.add(cursor);
+
+} // end of addCell with a first star method
+
+/**************************************************************************
+* Tests if a star is in the region. This is only called for stars in cells
+* which cross the boundary of the region.
+* @param x The X component of the unit vector toward the star.
+* @param y The Y component of the unit vector toward the star.
+* @param z The Z component of the unit vector toward the star.
+* @return true if the star should be returned.
+**************************************************************************/
+protected boolean accept(double x, double y, double z) {
+
+    return region.contains(x, y, z);
+
+} // end of accept method
+
+/**************************************************************************
+* Returns true if there are more matching stars.
+**************************************************************************/
+public boolean hasNext() {
+
+    refine();
+    return !queue.isEmpty();
+
+} // end of hasNext method
+
+/**************************************************************************
+* Returns the brightest matching star which has not been returned yet.
+* @throws NoSuchElementException if there are no more matching stars.
+**************************************************************************/
+public Star next() {
+
+    refine();
+
+    Cursor cursor = queue.poll();
+    if(cursor == null) throw new NoSuchElementException();
+
+    Star star = cursor.getStar();
+    if(cursor.step()) queue.add(cursor);
+
+    return star;
+
+} // end of next method
+
+/**************************************************************************
+* @throws UnsupportedOperationException always.
+**************************************************************************/
+public void remove() {
+
+    throw new UnsupportedOperationException();
+
+} // end of remove method
+
+/**************************************************************************
+* A position in the star list of one cell, which only stops on stars in
+* the region.
+**************************************************************************/
+class Cursor extends StarIterationList {
+
+boolean test;
+
+/**************************************************************************
+*
+**************************************************************************/
+Cursor(StarCursor stars, boolean test) {
+
+    super(stars, RegionSearch.this.dimmest);
+    this.test = test;
+
+} // end of constructor
+
+/**************************************************************************
+*
+**************************************************************************/
+protected boolean accept(StarCursor stars) {
+
+    return !test || RegionSearch.this.accept(stars.getX(),
+                                             stars.getY(),
+                                             stars.getZ());
+
+} // end of accept method
+
+} // end of Cursor inner class
+
+/**************************************************************************
+* An unopened cell, ordered by the brightest star it could hold which
+* is not in its parent.
+**************************************************************************/
+static class Layer implements Comparable<Layer> {
+
+InputCell cell;
+float mag;
+double[] ties;
+boolean inside;
+
+/**************************************************************************
+*
+**************************************************************************/
+Layer(InputCell cell, float mag, double[] ties, boolean inside) {
+
+    this.cell = cell;
+    this.mag = mag;
+    this.ties = ties;
+    this.inside = inside;
+
+} // end of constructor
+
+/**************************************************************************
+* Returns true if a star as dim as the dimmest in the parent is one
+* of the parent's stars.
+**************************************************************************/
+boolean isTie(double x, double y, double z) {
+
+    for(int i=0; i< ties.length; i += 3) {
+        if(Math.abs(ties[i  ] - x) < SAME_STAR &&
+           Math.abs(ties[i+1] - y) < SAME_STAR &&
+           Math.abs(ties[i+2] - z) < SAME_STAR   ) return true;
+    }
+
+    return false;
+
+} // end of isTie method
+
+/**************************************************************************
+*
+**************************************************************************/
+public int compareTo(Layer layer) {
+
+    return Float.compare(mag, layer.mag);
+
+} // end of compareTo method
+
+} // end of Layer inner class
+
+} // end of RegionSearch class
@@ -32,6 +32,12 @@ private static final float OFFSET = MIN_MAG - Short.MIN_VALUE * TO_MAG;
 
 public static final float MAX_MAG = Short.MAX_VALUE *TO_MAG + OFFSET;
 
+/**************************************************************************
+* The raw value for a missing magnitude. This is what {@link StarFormat2}
+* writes for a band a star doesn't have, and it converts to NaN.
+**************************************************************************/
+public static final short NAN_RAW = Short.MIN_VALUE;
+
 short raw;
 
 /**************************************************************************
@@ -50,8 +56,18 @@ public ShortMagnitude(Band band, float value) {
         throw new IllegalArgumentException("Mag "+value+" out of range");
     }
 
+    if(Float.isNaN(value)) {
+        raw = NAN_RAW;
+        return;
+    }
+
     raw = (short)((value - OFFSET)*FROM_MAG);
 
+    /********************************************
+    * the very brightest value is taken for NaN *
+    ********************************************/
+    if(raw == NAN_RAW) ++raw;
+
 } // end of constructor
 
 /***********************************************************************
@@ -77,13 +93,27 @@ public ShortMagnitude(Band band, short raw) {
 * Returns the numerical value of this magnitude
 * @return The numerical value of this magnitude
 **************************************************************************/
-public float getValue() { return raw*TO_MAG + OFFSET; }
+public float getValue() { return toValue(raw); }
+
+/**************************************************************************
+* Converts a raw value to a magnitude without creating an object.
+* @param raw A raw value as returned by {@link #getRawValue()}.
+* @return The numerical value of the magnitude, or NaN for {@link #NAN_RAW}.
+**************************************************************************/
+public static float toValue(short raw) {
+
+    if(raw == NAN_RAW) return Float.NaN;
+    else               return raw*TO_MAG + OFFSET;
+
+} // end of toValue method
 
 /**************************************************************************
 *
 **************************************************************************/
 public Magnitude plus(float increment) {
 
+    if(raw == NAN_RAW) return this;
+
     return new ShortMagnitude(getBand(),
                               (short)(raw + (short)(FROM_MAG*increment)));
 
@@ -34,6 +34,9 @@ String name;
 Direction dir;
 Photometry photometry;
 
+volatile StarNames names;
+int index;
+
 /****************************************************************************
 * Create a new star. Note that this constructor calls
 * {link Photometry#freeze()} on the photometry to make it read-only.
@@ -49,10 +52,49 @@ public Star(String name, Direction dir, Photometry photometry) {
 
 } // end of constructor
 
+/****************************************************************************
+* Create a new star whose name is looked up the first time it is needed.
+* @param names Where to find the name.
+* @param index The index of this star's name in the source.
+* @param dir The positon of thestar in the sky
+* @param photometry A collection of measurements of the brightness of the star.
+***************************************************************************/
+public Star(StarNames names, int index, Direction dir, Photometry photometry) {
+
+    this.names = names;
+    this.index = index;
+    this.dir = dir;
+    this.photometry = photometry;
+
+} // end of lazy name constructor
+
 /**************************************************************************
-*
+* Returns the name of this star. If the star was created with a
+* {@link StarNames} source, the name is looked up on the first call.
+* @return The name of this star.
+**************************************************************************/
+public String getName() {
+
+    /****************************************************
+    * names is volatile and cleared after name is set,
+    * so another thread which sees it null sees the name
+    ****************************************************/
+    StarNames source = names;
+    if(source != null) {
+        name = source.getName(index);
+        names = null;
+    }
+
+    return name;
+
+} // end of getName method
+
+/**************************************************************************
+* Returns the name of this star if it is already known, without
+* looking it up.
+* @return The name, or null if there isn't one or it hasn't been looked up.
 **************************************************************************/
-public String getName() { return name; }
+String getLoadedName() { return name; }
 
 /****************************************************************************
 * Returns the position fo the star in the sky. The coordinates and ephoch of this
@@ -91,7 +133,7 @@ public int compareTo(Magnitude mag) {
 * @return A string representation of this star.
 *****************************************************************************/
 public String toString() {
-    return "Star: "+name+
+    return "Star: "+getName()+
            " RA="+SexigesimalFormat.HMS.format(dir.getLongitude())+
            " Dec="+SexigesimalFormat.DMS.format(dir.getLatitude())+
            " "+photometry;
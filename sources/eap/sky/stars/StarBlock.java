@@ -0,0 +1,218 @@
+// Copyright 2012 Edward Alan Pier
+//
+// This file is part of eap.sky
+// 
+// eap.sky is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// eap.sky is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with eap.sky.  If not, see <http://www.gnu.org/licenses/>.
+
+package eap.sky.stars;
+
+import eap.sky.util.*;
+
+import java.util.*;
+
+/**************************************************************************
+* The stars of one cell decoded into primitive arrays. A block is filled
+* by {@link StarFormat#read(java.io.InputStream, StarBlock)} and may be
+* reused for many cells, so looping over the positions and magnitudes of
+* the stars in a cell does not create any objects. The accessors are the
+* same as those of {@link ColumnCell}. Stars are indexed from zero to
+* {@link #getStarCount()}-1 in the order they were stored, which is
+* brightest first.
+**************************************************************************/
+public class StarBlock {
+
+Band band;
+
+int count;
+double[] x;
+double[] y;
+double[] z;
+short[] raw;
+String[] names;
+
+StarNames source;
+
+/**************************************************************************
+* Create an empty block.
+* @param band The band of the magnitudes to hold. This should be the sort
+*        band of the catalog.
+**************************************************************************/
+public StarBlock(Band band) {
+
+    this.band = band;
+
+    count = 0;
+    x = new double[0];
+    y = new double[0];
+    z = new double[0];
+    raw = new short[0];
+    names = new String[0];
+
+} // end of constructor
+
+/**************************************************************************
+* Remove all the stars and the name source, keeping the arrays for reuse.
+**************************************************************************/
+public void clear() {
+
+    /******************************************
+    * drop the names so they can be collected *
+    ******************************************/
+    for(int i=0; i< count; ++i) names[i] = null;
+    count = 0;
+    source = null;
+
+} // end of clear method
+
+/**************************************************************************
+* Make sure the block can hold a given number of stars without growing.
+* @param capacity The number of stars.
+**************************************************************************/
+public void ensureCapacity(int capacity) {
+
+    if(capacity <= x.length) return;
+
+    capacity = Math.max(capacity, 2*x.length);
+
+    x     = Arrays.copyOf(x,     capacity);
+    y     = Arrays.copyOf(y,     capacity);
+    z     = Arrays.copyOf(z,     capacity);
+    raw   = Arrays.copyOf(raw,   capacity);
+    names = Arrays.copyOf(names, capacity);
+
+} // end of ensureCapacity method
+
+/**************************************************************************
+* Add a star to the end of the block.
+* @param x The X component of the unit vector toward the star.
+* @param y The Y component of the unit vector toward the star.
+* @param z The Z component of the unit vector toward the star.
+* @param raw The raw {@link ShortMagnitude} value of the star.
+* @param name The name of the star.
+**************************************************************************/
+public void add(double x, double y, double z, short raw, String name) {
+
+    ensureCapacity(count+1);
+
+    this.x[count] = x;
+    this.y[count] = y;
+    this.z[count] = z;
+    this.raw[count] = raw;
+    names[count] = name;
+
+    ++count;
+
+} // end of add method
+
+/**************************************************************************
+* Add a star to the end of the block.
+* @param star The star to add. Its magnitude in the band of this block
+*        is rounded to a {@link ShortMagnitude}. A star with no magnitude
+*        in that band is stored as {@link ShortMagnitude#NAN_RAW}.
+**************************************************************************/
+public void add(Star star) {
+
+    Magnitude mag = star.getPhotometry().getMagnitude(band);
+
+    short raw;
+    if(mag == null) raw = ShortMagnitude.NAN_RAW;
+    else if(mag instanceof ShortMagnitude) raw = ((ShortMagnitude)mag).getRawValue();
+    else raw = new ShortMagnitude(band, mag.getValue()).getRawValue();
+
+    Direction dir = star.getDirection();
+    add(dir.getX(), dir.getY(), dir.getZ(), raw, star.getName());
+
+} // end of add star method
+
+/**************************************************************************
+* Returns the band of the magnitudes in this block.
+**************************************************************************/
+public Band getBand() { return band; }
+
+/**************************************************************************
+* Returns the number of stars in this block.
+**************************************************************************/
+public int getStarCount() { return count; }
+
+/**************************************************************************
+* Returns the X component of the unit vector pointing toward a star.
+* @param i The index of the star in this block.
+**************************************************************************/
+public double getX(int i) { return x[i]; }
+
+/**************************************************************************
+* Returns the Y component of the unit vector pointing toward a star.
+* @param i The index of the star in this block.
+**************************************************************************/
+public double getY(int i) { return y[i]; }
+
+/**************************************************************************
+* Returns the Z component of the unit vector pointing toward a star.
+* @param i The index of the star in this block.
+**************************************************************************/
+public double getZ(int i) { return z[i]; }
+
+/**************************************************************************
+* Returns the magnitude of a star in the band of this block.
+* @param i The index of the star in this block.
+* @return The magnitude, or NaN if the star has none in that band.
+**************************************************************************/
+public float getMagnitude(int i) { return ShortMagnitude.toValue(raw[i]); }
+
+/**************************************************************************
+* Returns the raw {@link ShortMagnitude} value of a star.
+* @param i The index of the star in this block.
+**************************************************************************/
+public short getRawMagnitude(int i) { return raw[i]; }
+
+/**************************************************************************
+* Set where to look up the names of stars which were stored without
+* them. The index of a star in this block is used as its index in the
+* source, so this is only meaningful for a block holding a single cell.
+* @param source The names, or null.
+**************************************************************************/
+public void setNames(StarNames source) { this.source = source; }
+
+/**************************************************************************
+* Returns the name of a star. If the star was stored without its name,
+* this looks it up in the source given to {@link #setNames(StarNames)}.
+* @param i The index of the star in this block.
+**************************************************************************/
+public String getName(int i) {
+
+    if(names[i] == null && source != null) names[i] = source.getName(i);
+
+    return names[i];
+
+} // end of getName method
+
+/**************************************************************************
+* Creates a star object for one of the stars in this block. A star stored
+* without a magnitude gets empty photometry.
+* @param i The index of the star in this block.
+**************************************************************************/
+public Star getStar(int i) {
+
+    Direction dir = new Direction(x[i], y[i], z[i]);
+
+    Photometry mag;
+    if(raw[i] == ShortMagnitude.NAN_RAW) mag = new MapPhotometry(0);
+    else                                 mag = new ShortMagnitude(band, raw[i]);
+
+    if(names[i] == null && source != null) return new Star(source, i, dir, mag);
+    else                                   return new Star(names[i], dir, mag);
+
+} // end of getStar method
+
+} // end of StarBlock class
@@ -18,6 +18,7 @@
 package eap.sky.stars;
 
 import eap.sky.stars.archive.*;
+import eap.sky.util.*;
 
 import java.lang.reflect.*;
 import java.util.*;
@@ -43,6 +44,11 @@ CellInfoTable cell_info;
 
 StarFormat format;
 
+ColumnStore columns;
+
+CellCache<InputCell, List<Star>> cache;
+CellCache<InputCell, StarBlock> blocks;
+
 /************************************************************************
 *
 ************************************************************************/
@@ -109,6 +115,26 @@ public StarCatalog(CatalogProperties properties) throws IOException {
     cell_info = CellInfoTable.read(in);
     in.close();
 
+    /****************************************
+    * cache for the star lists of each cell *
+    ****************************************/
+    cache = new CellCache<InputCell, List<Star>>(CellCache.DEFAULT_BUDGET);
+
+    /***********************************************
+    * cache for the decoded blocks read by cursors *
+    ***********************************************/
+    blocks = new CellCache<InputCell, StarBlock>(CellCache.DEFAULT_BUDGET);
+
+    /****************************************************
+    * open the column store if there is one. We can only
+    * memory map it if the catalog is in a directory
+    ****************************************************/
+    String columns_name = properties.getColumnStoreName();
+    if(columns_name != null && archive instanceof DirectoryArchive) {
+        File dir = ((DirectoryArchive)archive).getDirectory();
+        columns = new ColumnStore(new File(dir, columns_name), bands, band);
+    }
+
     /***********************
     * create the root cell *
     ***********************/
@@ -121,7 +147,7 @@ public StarCatalog(CatalogProperties properties) throws IOException {
         /**************************************
         * get the cell info for the root cell *
         **************************************/
-        CellInfo root_info = getCellInfo(cell.getName());
+        CellInfo root_info = getCellInfo(cell);
         if(root_info == null) {
             throw new IOException("No Cell info for root cell");
         }
@@ -193,6 +219,60 @@ public InputCell getRootCell() { return root; }
 ************************************************************************/
 public StarFormat getStarFormat() { return format; }
 
+/************************************************************************
+* Returns the column store used to read the stars in each cell.
+* @return the column store, or null if the stars are read from the cell
+* archive.
+************************************************************************/
+public ColumnStore getColumnStore() { return columns; }
+
+/************************************************************************
+* Read the stars for each cell from a column store instead of from the
+* cell archive. The store must have been made from this catalog with
+* {@link ColumnStore#write(StarCatalog, File)}.
+* @param columns The store, or null to go back to reading the archive.
+************************************************************************/
+public void setColumnStore(ColumnStore columns) { this.columns = columns; }
+
+/************************************************************************
+* Returns the cache which holds the star lists read for each cell.
+* You can use this to change the memory budget or to look at the hit and
+* miss counts.
+* @return The cell cache.
+************************************************************************/
+public CellCache<InputCell, List<Star>> getCellCache() { return cache; }
+
+/************************************************************************
+* Use a different cache for the star lists read for each cell. Several
+* catalogs may share one cache, so that they share one memory budget.
+* @param cache The new cache.
+************************************************************************/
+public void setCellCache(CellCache<InputCell, List<Star>> cache) {
+
+    if(cache == null) throw new IllegalArgumentException("Null cache");
+    this.cache = cache;
+
+} // end of setCellCache method
+
+/************************************************************************
+* Returns the cache which holds the decoded blocks of stars read by
+* {@link InputCell#getCursor()}. A cell is only decoded to a block if its
+* star list is not already in the cell cache.
+* @return The block cache.
+************************************************************************/
+public CellCache<InputCell, StarBlock> getBlockCache() { return blocks; }
+
+/************************************************************************
+* Use a different cache for the decoded blocks read by cursors.
+* @param blocks The new cache.
+************************************************************************/
+public void setBlockCache(CellCache<InputCell, StarBlock> blocks) {
+
+    if(blocks == null) throw new IllegalArgumentException("Null cache");
+    this.blocks = blocks;
+
+} // end of setBlockCache method
+
 /************************************************************************
 * Get the info for a particular cell.
 ************************************************************************/
@@ -203,5 +283,132 @@ public CellInfoTable getCellInfoTable() { return cell_info; }
 ************************************************************************/
 public CellInfo getCellInfo(String name) { return cell_info.get(name); }
 
+/************************************************************************
+* Get the info for a particular cell. This is faster than looking up the
+* cell by name if the cell has a numeric ID.
+* @param cell A cell in the tessellation of this catalog.
+* @return The info for the cell, or null if the catalog has no such cell.
+************************************************************************/
+public CellInfo getCellInfo(Cell cell) {
+
+    long id = cell.getID();
+    if(id < 0L) return cell_info.get(cell.getName());
+    else        return cell_info.get(id);
+
+} // end of getCellInfo method
+
+
+/************************************************************************
+* Find the stars within a given angle of a direction. The stars are
+* returned brightest first, and are only read as you iterate, so it is
+* cheap to stop after the first few.
+* @param center The center of the search cone.
+* @param radius The angular radius of the search cone.
+* @param dimmest The dimmest magnitude to return in the sort band.
+* @return An iterator over the matching stars.
+* @see ConeSearch
+************************************************************************/
+public Iterator<Star> coneSearch(Direction center, Angle radius,
+                                 float dimmest) {
+
+    return new ConeSearch(this, center, radius, dimmest);
+
+} // end of coneSearch method
+
+/************************************************************************
+* Find the stars in a region of the sky. The stars are returned brightest
+* first, and are only read as you iterate. Stars in cells entirely inside
+* the region are not tested individually.
+* @param region The area of the sky to search.
+* @param dimmest The dimmest magnitude to return in the sort band.
+* @return An iterator over the matching stars.
+* @see RegionSearch
+* @see PathRegion
+************************************************************************/
+public Iterator<Star> regionSearch(CellRegion region, float dimmest) {
+
+    return new RegionSearch(this, region, dimmest);
+
+} // end of regionSearch method
+
+/************************************************************************
+* Find the brightest stars in a region of the sky. Only the cells needed
+* to find them are read, so this is fast for a handful of stars.
+* @param region The area of the sky to search.
+* @param count The number of stars to find.
+* @return The stars, brightest first. There may be fewer than requested
+*         if the region doesn't have enough.
+* @see CatalogLayer
+************************************************************************/
+public List<Star> getBrightestStars(CellRegion region, int count) {
+
+    return new CatalogLayer(region, this).next(count);
+
+} // end of getBrightestStars method
+
+/************************************************************************
+* Read all the cells which overlap an HTM cover into the cell cache, down
+* to the depth of the cover. Cells already in the cache are not read
+* again. If the catalog is in a {@link PackArchive}, each range of the
+* cover is read with one read at each depth, so a large area of the sky
+* costs a few large reads instead of one small read per cell. If the
+* catalog has a column store there is nothing to read, since cursors read
+* the mapped store in place.
+* @param cover The area to load. Use a cover no deeper than the cells
+*        you need.
+* @return The number of cells read.
+* @throws IOException if there is trouble reading the archive.
+* @throws UnsupportedOperationException if the catalog does not use an
+*         HTM tessellation.
+************************************************************************/
+public int loadCells(HTMCover cover) throws IOException {
+
+    if(root.getID() != HTMId.ROOT) {
+        throw new UnsupportedOperationException("Catalog is not an HTM mesh");
+    }
+
+    if(columns != null) return 0;
+
+    /***********************************
+    * read the cells in bulk if we can *
+    ***********************************/
+    Map<String, byte[]> data = null;
+    if(archive instanceof PackArchive) {
+        data = ((PackArchive)archive).readCells(cover);
+    }
+
+    return loadCells(root, cover, data);
+
+} // end of loadCells method
+
+/************************************************************************
+* Recursively load the cells under a cell which overlap a cover.
+* @param data The contents of the cell entries we have already read, or
+*        null to read each cell from the archive.
+************************************************************************/
+private int loadCells(InputCell cell, HTMCover cover,
+                      Map<String, byte[]> data) throws IOException {
+
+    long id = cell.getID();
+    if(!cover.overlaps(id)) return 0;
+
+    int count = 0;
+    if(!cache.contains(cell)) {
+        byte[] bytes = data == null ? null : data.get(cell.getName());
+        if(bytes != null) cell.loadStars(new ByteArrayInputStream(bytes));
+        else              cell.getStarCount();
+
+        ++count;
+    }
+
+    if(HTMId.getDepth(id) < cover.getDepth() && cell.hasChildren()) {
+        for(Cell child : cell.getChildren()) {
+            count += loadCells((InputCell)child, cover, data);
+        }
+    }
+
+    return count;
+
+} // end of recursive loadCells method
 
 } // end of StarCatalog class
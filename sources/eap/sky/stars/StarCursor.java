@@ -0,0 +1,362 @@
+// Copyright 2012 Edward Alan Pier
+//
+// This file is part of eap.sky
+// 
+// eap.sky is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// eap.sky is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with eap.sky.  If not, see <http://www.gnu.org/licenses/>.
+
+package eap.sky.stars;
+
+import java.util.*;
+
+/**************************************************************************
+* A flyweight view of the stars in one cell. The cursor sits on one star
+* at a time and returns its position, magnitude and index as primitives,
+* so you can loop over a cell without creating a {@link Star} for each
+* star. Call {@link #getStar()} for the stars you want to keep.
+* <p>
+* A cursor starts before the first star, so the usual loop is
+* <pre>
+* StarCursor cursor = cell.getCursor();
+* while(cursor.next()) {
+*     if(cursor.getMagnitude() > limit) break;
+*     ...cursor.getX(), cursor.getY(), cursor.getZ()...
+* }
+* </pre>
+* The values belong to the star the cursor is on and change when it moves.
+* A cursor is not safe to share between threads, but each call to
+* {@link InputCell#getCursor()} returns a new one.
+* @see InputCell#getCursor()
+**************************************************************************/
+public abstract class StarCursor {
+
+int count;
+int index;
+
+/**************************************************************************
+* Create a new cursor before the first star.
+* @param count The number of stars in the cell.
+**************************************************************************/
+StarCursor(int count) {
+
+    this.count = count;
+    this.index = -1;
+
+} // end of constructor
+
+/**************************************************************************
+* Create a cursor over a cell in a column store.
+* @param columns The cell.
+* @return A new cursor.
+**************************************************************************/
+public static StarCursor create(ColumnCell columns) {
+
+    return new ColumnCursor(columns);
+
+} // end of create from columns method
+
+/**************************************************************************
+* Create a cursor over a block of decoded stars.
+* @param block The stars.
+* @return A new cursor.
+**************************************************************************/
+public static StarCursor create(StarBlock block) {
+
+    return new BlockCursor(block);
+
+} // end of create from block method
+
+/**************************************************************************
+* Create a cursor over a list of stars.
+* @param stars The stars.
+* @param band The band in which to report magnitudes. Stars without a
+*        magnitude in this band have a magnitude of NaN.
+* @return A new cursor.
+**************************************************************************/
+public static StarCursor create(List<Star> stars, Band band) {
+
+    return new ListCursor(stars, band);
+
+} // end of create from list method
+
+/**************************************************************************
+* Returns the number of stars under this cursor.
+**************************************************************************/
+public int getStarCount() { return count; }
+
+/**************************************************************************
+* Returns the position of the current star in the cell, counting from
+* zero. This is -1 before the first call to {@link #next()}, and the star
+* count once the cursor has passed the last star.
+**************************************************************************/
+public int getIndex() { return index; }
+
+/**************************************************************************
+* Move to the next star.
+* @return false if there are no more stars.
+**************************************************************************/
+public boolean next() {
+
+    if(index < count) ++index;
+    return index < count;
+
+} // end of next method
+
+/**************************************************************************
+* Move to a given star.
+* @param index The position of the star in the cell.
+* @return false if there is no star at that position. The cursor does not
+* move in that case.
+**************************************************************************/
+public boolean moveTo(int index) {
+
+    if(index < 0 || index >= count) return false;
+
+    this.index = index;
+    return true;
+
+} // end of moveTo method
+
+/**************************************************************************
+* Move back to before the first star.
+**************************************************************************/
+public void reset() { index = -1; }
+
+/**************************************************************************
+* Returns the X component of the unit vector toward the current star.
+**************************************************************************/
+public abstract double getX();
+
+/**************************************************************************
+* Returns the Y component of the unit vector toward the current star.
+**************************************************************************/
+public abstract double getY();
+
+/**************************************************************************
+* Returns the Z component of the unit vector toward the current star.
+**************************************************************************/
+public abstract double getZ();
+
+/**************************************************************************
+* Returns the magnitude of the current star in the sort band of the
+* catalog.
+* @return The magnitude, or NaN if the star has none in that band.
+**************************************************************************/
+public abstract float getMagnitude();
+
+/**************************************************************************
+* Returns the name of the current star. This may have to read the name
+* from the catalog.
+**************************************************************************/
+public abstract String getName();
+
+/**************************************************************************
+* Returns a star object for the current star. Depending on where the stars
+* came from this may create a new object each time.
+**************************************************************************/
+public abstract Star getStar();
+
+/**************************************************************************
+* A cursor over a cell in a column store.
+**************************************************************************/
+private static class ColumnCursor extends StarCursor {
+
+ColumnCell columns;
+
+/**************************************************************************
+*
+**************************************************************************/
+ColumnCursor(ColumnCell columns) {
+
+    super(columns.getStarCount());
+    this.columns = columns;
+
+} // end of constructor
+
+/**************************************************************************
+*
+**************************************************************************/
+public double getX() { return columns.getX(index); }
+
+/**************************************************************************
+*
+**************************************************************************/
+public double getY() { return columns.getY(index); }
+
+/**************************************************************************
+*
+**************************************************************************/
+public double getZ() { return columns.getZ(index); }
+
+/**************************************************************************
+*
+**************************************************************************/
+public float getMagnitude() { return columns.getMagnitude(index); }
+
+/**************************************************************************
+*
+**************************************************************************/
+public String getName() { return columns.getName(index); }
+
+/**************************************************************************
+*
+**************************************************************************/
+public Star getStar() { return columns.getStar(index); }
+
+} // end of ColumnCursor inner class
+
+/**************************************************************************
+* A cursor over a block of decoded stars.
+**************************************************************************/
+private static class BlockCursor extends StarCursor {
+
+StarBlock block;
+
+/**************************************************************************
+*
+**************************************************************************/
+BlockCursor(StarBlock block) {
+
+    super(block.getStarCount());
+    this.block = block;
+
+} // end of constructor
+
+/**************************************************************************
+*
+**************************************************************************/
+public double getX() { return block.getX(index); }
+
+/**************************************************************************
+*
+**************************************************************************/
+public double getY() { return block.getY(index); }
+
+/**************************************************************************
+*
+**************************************************************************/
+public double getZ() { return block.getZ(index); }
+
+/**************************************************************************
+*
+**************************************************************************/
+public float getMagnitude() { return block.getMagnitude(index); }
+
+/**************************************************************************
+*
+**************************************************************************/
+public String getName() { return block.getName(index); }
+
+/**************************************************************************
+*
+**************************************************************************/
+public Star getStar() { return block.getStar(index); }
+
+} // end of BlockCursor inner class
+
+/**************************************************************************
+* A cursor over a list of star objects. The unit vector and magnitude are
+* looked up once when the cursor moves to a star.
+**************************************************************************/
+private static class ListCursor extends StarCursor {
+
+List<Star> stars;
+Band band;
+
+Star star;
+double[] vec;
+float mag;
+
+/**************************************************************************
+*
+**************************************************************************/
+ListCursor(List<Star> stars, Band band) {
+
+    super(stars.size());
+
+    this.stars = stars;
+    this.band = band;
+
+} // end of constructor
+
+/**************************************************************************
+* Look up the current star.
+**************************************************************************/
+private void load() {
+
+    star = stars.get(index);
+    vec = star.getDirection().unitVector();
+
+    Magnitude magnitude = star.getPhotometry().getMagnitude(band);
+    if(magnitude == null) mag = Float.NaN;
+    else                  mag = magnitude.getValue();
+
+} // end of load method
+
+/**************************************************************************
+*
+**************************************************************************/
+public boolean next() {
+
+    if(!super.next()) return false;
+
+    load();
+    return true;
+
+} // end of next method
+
+/**************************************************************************
+*
+**************************************************************************/
+public boolean moveTo(int index) {
+
+    if(!super.moveTo(index)) return false;
+
+    load();
+    return true;
+
+} // end of moveTo method
+
+/**************************************************************************
+*
+**************************************************************************/
+public double getX() { return vec[0]; }
+
+/**************************************************************************
+*
+**************************************************************************/
+public double getY() { return vec[1]; }
+
+/**************************************************************************
+*
+**************************************************************************/
+public double getZ() { return vec[2]; }
+
+/**************************************************************************
+*
+**************************************************************************/
+public float getMagnitude() { return mag; }
+
+/**************************************************************************
+*
+**************************************************************************/
+public String getName() { return star.getName(); }
+
+/**************************************************************************
+*
+**************************************************************************/
+public Star getStar() { return star; }
+
+} // end of ListCursor inner class
+
+} // end of StarCursor class
@@ -18,6 +18,7 @@
 package eap.sky.stars;
 
 
+import java.util.*;
 import java.io.*;
 
 /*********************************************************************
@@ -25,6 +26,13 @@ import java.io.*;
 *********************************************************************/
 public abstract class StarFormat {
 
+/*********************************************************************
+* The suffix added to a cell's name to get the name of the archive
+* entry holding the star names, for formats which store them apart.
+* @see #hasSeparateNames()
+*********************************************************************/
+public static final String NAMES_SUFFIX = ".names";
+
 /*********************************************************************
 *
 *********************************************************************/
@@ -44,4 +52,122 @@ public abstract void write(Star star, DataOutput out) throws IOException;
 *********************************************************************/
 public abstract Star read(DataInput in) throws IOException;
 
+/*********************************************************************
+* Write all the stars in a cell. Formats which encode a cell as a whole
+* override this. The default writes the stars one at a time.
+* @param stars The stars in the cell, brightest first.
+* @param out Where to write them.
+* @throws IOException If there was trouble writing.
+*********************************************************************/
+public void write(List<Star> stars, DataOutput out) throws IOException {
+
+    for(Star star : stars) write(star, out);
+
+} // end of write list method
+
+/*********************************************************************
+* Read all the stars from a stream written by
+* {@link #write(List, DataOutput)}, or by any number of calls to
+* {@link #write(Star, DataOutput)}. The stream is not closed.
+* @param in The stream to read to the end.
+* @param stars The list to which to add the stars.
+* @throws IOException If there was trouble reading.
+*********************************************************************/
+public void read(InputStream in, List<Star> stars) throws IOException {
+
+    DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+
+    try {
+        while(true) stars.add(read(data));
+
+    } catch(EOFException e) {}
+
+} // end of read list method
+
+/*********************************************************************
+* Read all the stars in a cell. Formats which store the names of the
+* stars in a cell apart from the rest of the cell create stars which
+* look up their names in the given source. The default ignores the
+* source.
+* @param in The stream to read to the end. It is not closed.
+* @param stars The list to which to add the stars.
+* @param names Where to find the names of the stars, or null.
+* @throws IOException If there was trouble reading.
+*********************************************************************/
+public void read(InputStream in, List<Star> stars,
+                 StarNames names) throws IOException {
+
+    read(in, stars);
+
+} // end of read with names method
+
+/*********************************************************************
+* Tells whether finished catalog cells are written with
+* {@link #writeWithoutNames(List, DataOutput)} and their names kept in
+* a separate entry written by {@link CellNames#write(List, DataOutput)},
+* named after the cell with {@link #NAMES_SUFFIX} appended.
+* Then loading a cell does not read the names.
+* @return true if names are stored separately. The default
+* returns false.
+*********************************************************************/
+public boolean hasSeparateNames() { return false; }
+
+/*********************************************************************
+* Write all the stars in a cell without their names. This is only
+* used for formats which store names separately.
+* @param stars The stars in the cell, brightest first.
+* @param out Where to write them.
+* @throws IOException If there was trouble writing.
+* @throws UnsupportedOperationException if the format always writes
+* the names with the stars, which is the default.
+*********************************************************************/
+public void writeWithoutNames(List<Star> stars,
+                              DataOutput out) throws IOException {
+
+    throw new UnsupportedOperationException(getClass().getName()+
+                                            " can't write stars"+
+                                            " without names");
+
+} // end of writeWithoutNames method
+
+/*********************************************************************
+* Read all the stars from a stream into primitive arrays. The stream
+* is read as by {@link #read(InputStream, List)} and is not closed.
+* The default creates a star object for each star, formats which can
+* decode directly into the arrays override this.
+* @param in The stream to read to the end.
+* @param block The block to which to add the stars. It is not cleared
+*        first.
+* @throws IOException If there was trouble reading.
+*********************************************************************/
+public void read(InputStream in, StarBlock block) throws IOException {
+
+    List<Star> stars = new ArrayList<Star>();
+    read(in, stars);
+
+    block.ensureCapacity(block.getStarCount() + stars.size());
+    for(Star star : stars) block.add(star);
+
+} // end of read block method
+
+/*********************************************************************
+* Tells whether {@link #write(List, DataOutput)} packs a cell more
+* tightly than writing its stars one at a time. If so, output cells
+* which build up their files one star at a time rewrite them as a whole
+* when they are finished.
+* @return true if cells should be written as a whole. The default
+* returns false.
+*********************************************************************/
+public boolean isCellEncoded() { return false; }
+
+/*********************************************************************
+* Tells whether {@link #read(InputStream, StarBlock)} decodes stars
+* straight into the arrays and keeps everything a star holds. Only then
+* is it worth caching a cell as a block instead of a list of stars.
+* @return true if a block loses nothing. The default returns false,
+* since the default block read builds each star and keeps only its
+* position and sort band magnitude.
+*********************************************************************/
+public boolean readsBlocks() { return false; }
+
 } // end of StarFormat class
\ No newline at end of file
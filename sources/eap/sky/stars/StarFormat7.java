@@ -0,0 +1,660 @@
+// Copyright 2012 Edward Alan Pier
+//
+// This file is part of eap.sky
+// 
+// eap.sky is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// eap.sky is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with eap.sky.  If not, see <http://www.gnu.org/licenses/>.
+
+package eap.sky.stars;
+
+import eap.sky.util.*;
+
+import java.nio.charset.*;
+import java.util.*;
+import java.io.*;
+
+/*********************************************************************
+* A compact format for a single {@link ShortMagnitude}, which encodes
+* the stars of a cell together. Stars in a cell are close together on
+* the sky and sorted by magnitude, so this format stores:
+* <ul>
+* <li>a reference direction near the middle of the cell, as three ints
+*     scaled as in {@link StarFormat5},
+* <li>the position of each star as two variable length offsets from
+*     the reference in the tangent plane, in units of 2<sup>-30</sup>
+*     radians (about 0.2 milliarcsec), which rounds positions to about
+*     the same accuracy as {@link StarFormat5},
+* <li>the magnitudes as variable length differences from the previous
+*     star, which for a sorted cell are usually one byte,
+* <li>and the names, each stored as the number of leading bytes it shares
+*     with the previous name followed by the rest of its UTF-8 bytes.
+*     The names come after all the positions and magnitudes, behind
+*     their total length, so a reader which only wants the positions
+*     can skip them.
+* </ul>
+* A finished catalog cell is written without its names by
+* {@link #writeWithoutNames(List, DataOutput)}, which marks the names
+* section as empty, and the names go in a separate archive entry,
+* front coded the same way by {@link CellNames}, so loading a cell only
+* reads about 9 bytes per star.
+* A cell written with {@link #write(List, DataOutput)} is one block
+* including the names.
+* Writing a single star with {@link #write(Star, DataOutput)} produces a
+* block of one star, so a file built up a star at a time is a valid
+* sequence of blocks, and {@link #read(DataInput)} can read it back one
+* star at a time. A block of more than one star can only be read with
+* {@link #read(InputStream, List)} or {@link #read(InputStream, StarBlock)}.
+* <p>
+* If the stars of a cell are too far apart to share a tangent plane,
+* they are written as separate single star blocks.
+*********************************************************************/
+public class StarFormat7 extends StarFormat {
+
+/*********************************************************************
+* The number of position units per radian in the tangent plane.
+*********************************************************************/
+private static final double SCALE = 1073741824.0;
+
+/*********************************************************************
+* The smallest cosine of the angle between a star and the reference
+* direction for stars to be encoded in the tangent plane.
+*********************************************************************/
+private static final double MIN_COS = 0.5;
+
+Band band;
+
+/*********************************************************************
+*
+*********************************************************************/
+public StarFormat7(BandMap bands) {
+
+    List<Band> list = bands.getBands();
+    if(list.size()!=1) {
+        throw new IllegalArgumentException("More than one band in the map");
+    }
+
+    this.band = list.get(0);
+
+} // end of constructor
+
+/*********************************************************************
+*
+*********************************************************************/
+public StarFormat7(Band band) {
+
+    this.band = band;
+
+} // end of constructor
+
+/*********************************************************************
+* @return true, since a cell of stars is much smaller written as a whole.
+*********************************************************************/
+public boolean isCellEncoded() { return true; }
+
+/*********************************************************************
+* @return true, since a star has only a position, a magnitude in a
+* single band and a name, all of which fit in a block.
+*********************************************************************/
+public boolean readsBlocks() { return true; }
+
+/*********************************************************************
+* @return true, since the names take up more room than the rest of
+* each star.
+*********************************************************************/
+public boolean hasSeparateNames() { return true; }
+
+/*********************************************************************
+*
+*********************************************************************/
+public void write(Star star, DataOutput out) throws IOException {
+
+    write(Collections.singletonList(star), 0, 1, true, out);
+
+} // end of write method
+
+/*********************************************************************
+*
+*********************************************************************/
+public void write(List<Star> stars, DataOutput out) throws IOException {
+
+    write(stars, true, out);
+
+} // end of write list method
+
+/*********************************************************************
+*
+*********************************************************************/
+public void writeWithoutNames(List<Star> stars,
+                              DataOutput out) throws IOException {
+
+    write(stars, false, out);
+
+} // end of writeWithoutNames method
+
+/*********************************************************************
+* Write a cell as a block, or as single star blocks if it doesn't fit
+* in a tangent plane.
+*********************************************************************/
+private void write(List<Star> stars, boolean with_names,
+                   DataOutput out) throws IOException {
+
+    int n = stars.size();
+    if(n == 0) return;
+
+    if(fitsTangentPlane(stars)) {
+        write(stars, 0, n, with_names, out);
+    } else {
+        /******************************************
+        * the cell is too big for one tangent
+        * plane, so write the stars one at a time
+        ******************************************/
+        for(int i=0; i< n; ++i) write(stars, i, i+1, with_names, out);
+    }
+
+} // end of write cell method
+
+/*********************************************************************
+* Check if all the stars are close enough to their mean direction to
+* share a tangent plane.
+*********************************************************************/
+private boolean fitsTangentPlane(List<Star> stars) {
+
+    int[] scaled = reference(stars, 0, stars.size());
+    if(scaled == null) return false;
+
+    double[] ref = unscale(scaled);
+
+    for(Star star : stars) {
+        Direction dir = star.getDirection();
+        double cos = dir.getX()*ref[0] + dir.getY()*ref[1] + dir.getZ()*ref[2];
+        if(cos < MIN_COS) return false;
+    }
+
+    return true;
+
+} // end of fitsTangentPlane method
+
+/*********************************************************************
+* Work out the quantized reference direction of a range of stars.
+* @return the reference as ints scaled by {@link Integer#MAX_VALUE},
+* or null if the stars have no well defined mean direction.
+*********************************************************************/
+private static int[] reference(List<Star> stars, int from, int to) {
+
+    double x = 0.0;
+    double y = 0.0;
+    double z = 0.0;
+    for(int i=from; i< to; ++i) {
+        Direction dir = stars.get(i).getDirection();
+        x += dir.getX();
+        y += dir.getY();
+        z += dir.getZ();
+    }
+
+    double norm = Math.sqrt(x*x + y*y + z*z);
+    if(norm < 1e-6*(to-from)) return null;
+
+    return new int[] {(int)(x/norm*Integer.MAX_VALUE),
+                      (int)(y/norm*Integer.MAX_VALUE),
+                      (int)(z/norm*Integer.MAX_VALUE)};
+
+} // end of reference method
+
+/*********************************************************************
+* Convert a reference direction from ints to a unit vector. The reader
+* and the writer both do this so they agree on the tangent plane.
+*********************************************************************/
+private static double[] unscale(int[] scaled) {
+
+    double x = scaled[0];
+    double y = scaled[1];
+    double z = scaled[2];
+    double norm = Math.sqrt(x*x + y*y + z*z);
+
+    return new double[] {x/norm, y/norm, z/norm};
+
+} // end of unscale method
+
+/*********************************************************************
+* Returns the unit vectors along the two axes of the tangent plane at
+* a reference direction.
+* @param ref The reference unit vector.
+* @return an array of six doubles, the X, Y, and Z components of the
+* first axis followed by those of the second.
+*********************************************************************/
+private static double[] axes(double[] ref) {
+
+    double e1x, e1y, e1z;
+    if(Math.abs(ref[2]) < 0.9) {
+        /********************
+        * z cross reference *
+        ********************/
+        e1x = -ref[1];
+        e1y =  ref[0];
+        e1z = 0.0;
+    } else {
+        /********************
+        * x cross reference *
+        ********************/
+        e1x = 0.0;
+        e1y = -ref[2];
+        e1z =  ref[1];
+    }
+
+    double norm = Math.sqrt(e1x*e1x + e1y*e1y + e1z*e1z);
+    e1x /= norm;
+    e1y /= norm;
+    e1z /= norm;
+
+    /*************************************
+    * the second axis is ref cross first *
+    *************************************/
+    return new double[] {e1x, e1y, e1z,
+                         ref[1]*e1z - ref[2]*e1y,
+                         ref[2]*e1x - ref[0]*e1z,
+                         ref[0]*e1y - ref[1]*e1x};
+
+} // end of axes method
+
+/*********************************************************************
+* Returns the raw short magnitude of a star in our band, or
+* {@link ShortMagnitude#NAN_RAW} if it doesn't have one.
+*********************************************************************/
+private short getRawMagnitude(Star star) {
+
+    Magnitude mag = star.getPhotometry().getMagnitude(band);
+    if(mag == null) return ShortMagnitude.NAN_RAW;
+
+    if(mag instanceof ShortMagnitude) return ((ShortMagnitude)mag).getRawValue();
+    else return new ShortMagnitude(band, mag.getValue()).getRawValue();
+
+} // end of getRawMagnitude method
+
+/*********************************************************************
+* Write a range of stars as one block.
+*********************************************************************/
+private void write(List<Star> stars, int from, int to, boolean with_names,
+                   DataOutput out) throws IOException {
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(16*(to-from)+16);
+
+    /**********************
+    * the reference point *
+    **********************/
+    int[] scaled = reference(stars, from, to);
+    double[] ref = unscale(scaled);
+    double[] axes = axes(ref);
+
+    writeVarLong(bytes, to-from);
+    for(int i=0; i< 3; ++i) {
+        bytes.write(scaled[i] >>> 24);
+        bytes.write(scaled[i] >>> 16);
+        bytes.write(scaled[i] >>>  8);
+        bytes.write(scaled[i]       );
+    }
+
+    /********************************
+    * tangent plane offsets for all *
+    ********************************/
+    for(int i=from; i< to; ++i) {
+        Direction dir = stars.get(i).getDirection();
+        double x = dir.getX();
+        double y = dir.getY();
+        double z = dir.getZ();
+
+        double cos = x*ref[0] + y*ref[1] + z*ref[2];
+        double u = (x*axes[0] + y*axes[1] + z*axes[2])/cos;
+        double v = (x*axes[3] + y*axes[4] + z*axes[5])/cos;
+
+        writeVarLong(bytes, zigzag(Math.round(u*SCALE)));
+        writeVarLong(bytes, zigzag(Math.round(v*SCALE)));
+    }
+
+    /************************
+    * magnitude differences *
+    ************************/
+    int last = 0;
+    for(int i=from; i< to; ++i) {
+        int raw = getRawMagnitude(stars.get(i));
+        writeVarLong(bytes, zigzag(raw - last));
+        last = raw;
+    }
+
+    /************************************
+    * an empty names section means the
+    * names are stored somewhere else
+    ************************************/
+    if(!with_names) {
+        writeVarLong(bytes, 0);
+        out.write(bytes.toByteArray());
+        return;
+    }
+
+    /**********************************************
+    * front coded names, preceded by their length *
+    **********************************************/
+    ByteArrayOutputStream names = new ByteArrayOutputStream(8*(to-from));
+    byte[] previous = new byte[0];
+    for(int i=from; i< to; ++i) {
+        String name = stars.get(i).getName();
+        if(name == null) {
+            writeVarLong(names, 0);
+            writeVarLong(names, 0);
+            continue;
+        }
+
+        byte[] utf = name.getBytes(StandardCharsets.UTF_8);
+
+        int shared = 0;
+        int max = Math.min(utf.length, previous.length);
+        while(shared < max && utf[shared] == previous[shared]) ++shared;
+
+        writeVarLong(names, shared);
+        writeVarLong(names, utf.length - shared + 1);
+        names.write(utf, shared, utf.length - shared);
+
+        previous = utf;
+    }
+
+    writeVarLong(bytes, names.size());
+    names.writeTo(bytes);
+
+    out.write(bytes.toByteArray());
+
+} // end of write range method
+
+/*********************************************************************
+* Read a single star block. This is used to read back files which
+* were written a star at a time.
+* @throws IOException if the next block has more than one star.
+*********************************************************************/
+public Star read(DataInput in) throws IOException {
+
+    long n = readVarLong(in);
+    if(n != 1) {
+        throw new IOException("Block of "+n+" stars can't be read "+
+                              "one star at a time");
+    }
+
+    int[] scaled = {in.readInt(), in.readInt(), in.readInt()};
+    double[] ref = unscale(scaled);
+
+    double u = unzigzag(readVarLong(in))/SCALE;
+    double v = unzigzag(readVarLong(in))/SCALE;
+    short raw = (short)unzigzag(readVarLong(in));
+
+    String name = null;
+    if(readVarLong(in) > 0) {
+        /*************************************
+        * the name is stored with the star,
+        * and there are never any shared bytes
+        *************************************/
+        readVarLong(in);
+        int length = (int)readVarLong(in);
+
+        if(length > 0) {
+            byte[] utf = new byte[length-1];
+            in.readFully(utf);
+            name = new String(utf, StandardCharsets.UTF_8);
+        }
+    }
+
+    double[] axes = axes(ref);
+    double x = ref[0] + u*axes[0] + v*axes[3];
+    double y = ref[1] + u*axes[1] + v*axes[4];
+    double z = ref[2] + u*axes[2] + v*axes[5];
+
+    Photometry mag;
+    if(raw == ShortMagnitude.NAN_RAW) mag = new MapPhotometry(0);
+    else                              mag = new ShortMagnitude(band, raw);
+
+    return new Star(name, new Direction(x, y, z), mag);
+
+} // end of read method
+
+/*********************************************************************
+*
+*********************************************************************/
+public void read(InputStream in, List<Star> stars) throws IOException {
+
+    read(in, stars, null);
+
+} // end of read list method
+
+/*********************************************************************
+* Read a cell, giving stars which were stored without their names a
+* reference to the source of names.
+*********************************************************************/
+public void read(InputStream in, List<Star> stars,
+                 StarNames names) throws IOException {
+
+    StarBlock block = new StarBlock(band);
+    block.setNames(names);
+    read(in, block);
+
+    int n = block.getStarCount();
+    for(int i=0; i< n; ++i) stars.add(block.getStar(i));
+
+} // end of read with names method
+
+/*********************************************************************
+* Decode all the blocks in a stream directly into primitive arrays.
+*********************************************************************/
+public void read(InputStream in, StarBlock block) throws IOException {
+
+    Decoder decoder = new Decoder(readFully(in));
+    while(decoder.hasMore()) decode(decoder, block);
+
+} // end of read block method
+
+/*********************************************************************
+* Decode one block.
+*********************************************************************/
+private void decode(Decoder decoder, StarBlock block) throws IOException {
+
+    int n = (int)decoder.varLong();
+    int first = block.count;
+    block.ensureCapacity(first + n);
+
+    int[] scaled = {decoder.int32(), decoder.int32(), decoder.int32()};
+    double[] ref = unscale(scaled);
+    double[] axes = axes(ref);
+
+    /************
+    * positions *
+    ************/
+    for(int i=first; i< first+n; ++i) {
+        double u = unzigzag(decoder.varLong())/SCALE;
+        double v = unzigzag(decoder.varLong())/SCALE;
+
+        double x = ref[0] + u*axes[0] + v*axes[3];
+        double y = ref[1] + u*axes[1] + v*axes[4];
+        double z = ref[2] + u*axes[2] + v*axes[5];
+
+        double norm = Math.sqrt(x*x + y*y + z*z);
+        block.x[i] = x/norm;
+        block.y[i] = y/norm;
+        block.z[i] = z/norm;
+    }
+
+    /*************
+    * magnitudes *
+    *************/
+    int raw = 0;
+    for(int i=first; i< first+n; ++i) {
+        raw += (int)unzigzag(decoder.varLong());
+        block.raw[i] = (short)raw;
+    }
+
+    /********
+    * names *
+    ********/
+    if(decoder.varLong() == 0) {
+        /*************************************
+        * the names are stored elsewhere, so
+        * leave them for the block's source
+        *************************************/
+        for(int i=first; i< first+n; ++i) block.names[i] = null;
+        block.count = first + n;
+        return;
+    }
+
+    byte[] previous = new byte[0];
+    for(int i=first; i< first+n; ++i) {
+        int shared = (int)decoder.varLong();
+        int length = (int)decoder.varLong();
+        if(length == 0) {
+            block.names[i] = null;
+            continue;
+        }
+
+        byte[] utf = new byte[shared + length - 1];
+        System.arraycopy(previous, 0, utf, 0, shared);
+        decoder.bytes(utf, shared, length - 1);
+
+        block.names[i] = new String(utf, StandardCharsets.UTF_8);
+        previous = utf;
+    }
+
+    block.count = first + n;
+
+} // end of decode method
+
+/*********************************************************************
+* Read the rest of a stream into an array.
+*********************************************************************/
+private static byte[] readFully(InputStream in) throws IOException {
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream(1<<12);
+    byte[] buffer = new byte[1<<12];
+    int n;
+    while((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+
+    return out.toByteArray();
+
+} // end of readFully method
+
+/*********************************************************************
+* Map signed values to unsigned ones so small negative numbers
+* stay small.
+*********************************************************************/
+private static long zigzag(long value) { return (value << 1) ^ (value >> 63); }
+
+/*********************************************************************
+* The inverse of {@link #zigzag(long)}.
+*********************************************************************/
+private static long unzigzag(long value) { return (value >>> 1) ^ -(value & 1); }
+
+/*********************************************************************
+* Write an unsigned value seven bits at a time, low bits first.
+*********************************************************************/
+private static void writeVarLong(ByteArrayOutputStream out, long value) {
+
+    while((value & ~0x7fL) != 0) {
+        out.write((int)((value & 0x7f) | 0x80));
+        value >>>= 7;
+    }
+
+    out.write((int)value);
+
+} // end of writeVarLong method
+
+/*********************************************************************
+* Read a value written by {@link #writeVarLong(ByteArrayOutputStream, long)}.
+*********************************************************************/
+private static long readVarLong(DataInput in) throws IOException {
+
+    long value = 0;
+    for(int shift = 0; shift < 64; shift += 7) {
+        int b = in.readByte();
+        value |= (long)(b & 0x7f) << shift;
+        if((b & 0x80) == 0) return value;
+    }
+
+    throw new IOException("Malformed variable length value");
+
+} // end of readVarLong method
+
+/*********************************************************************
+* Reads values out of an array of encoded bytes.
+*********************************************************************/
+private static class Decoder {
+
+byte[] buffer;
+int pos;
+
+/*********************************************************************
+*
+*********************************************************************/
+public Decoder(byte[] buffer) {
+
+    this.buffer = buffer;
+    pos = 0;
+
+} // end of constructor
+
+/*********************************************************************
+*
+*********************************************************************/
+public boolean hasMore() { return pos < buffer.length; }
+
+/*********************************************************************
+*
+*********************************************************************/
+public long varLong() throws IOException {
+
+    long value = 0;
+    for(int shift = 0; shift < 64; shift += 7) {
+        if(pos >= buffer.length) throw new EOFException("Truncated block");
+
+        int b = buffer[pos++];
+        value |= (long)(b & 0x7f) << shift;
+        if((b & 0x80) == 0) return value;
+    }
+
+    throw new IOException("Malformed variable length value");
+
+} // end of varLong method
+
+/*********************************************************************
+*
+*********************************************************************/
+public int int32() throws IOException {
+
+    if(pos+4 > buffer.length) throw new EOFException("Truncated block");
+
+    int value = ((buffer[pos  ]      ) << 24) |
+                ((buffer[pos+1] & 255) << 16) |
+                ((buffer[pos+2] & 255) <<  8) |
+                ((buffer[pos+3] & 255)      );
+    pos += 4;
+
+    return value;
+
+} // end of int32 method
+
+/*********************************************************************
+*
+*********************************************************************/
+public void bytes(byte[] dest, int offset, int length) throws IOException {
+
+    if(pos+length > buffer.length) throw new EOFException("Truncated block");
+
+    System.arraycopy(buffer, pos, dest, offset, length);
+    pos += length;
+
+} // end of bytes method
+
+} // end of Decoder inner class
+
+} // end of StarFormat7 class
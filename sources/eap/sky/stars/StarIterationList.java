@@ -20,51 +20,102 @@ package eap.sky.stars;
 import java.util.*;
 
 /**************************************************************************
-*
+* A position in a sequence of stars sorted brightest first, used to merge
+* several sequences through a heap. The list runs over a
+* {@link StarCursor} and sits on the next star which has a magnitude, is
+* no dimmer than a limit and passes {@link #accept(StarCursor)}, and lists
+* are ordered by the magnitude of that star. Stars with no magnitude are
+* skipped rather than ending the list.
+* <p>
+* A new list starts before its first star, so call {@link #step()} before
+* comparing it with others. Both {@link StarIterator} and
+* {@link RegionSearch} merge with these.
 **************************************************************************/
-public class StarIterationList {
+public class StarIterationList implements Comparable<StarIterationList> {
+
+StarCursor stars;
+float dimmest;
 
-Band band;
-Star star;
-Iterator<Star> it;
+float mag;
 
 /**************************************************************************
-*
+* Create a list with no magnitude limit.
+* @param list Stars sorted brightest first.
+* @param band The band of the magnitudes to compare.
 **************************************************************************/
 public StarIterationList(List<Star> list, Band band) {
 
-    this.band = band;
+    this(StarCursor.create(list, band), Float.POSITIVE_INFINITY);
 
-    it = list.iterator();
-    step();
+} // end of constructor from a list
 
-} // end of constructor
+/**************************************************************************
+* @param stars A cursor over stars sorted brightest first. The list
+*        starts from wherever the cursor is.
+* @param dimmest The dimmest magnitude to stop at.
+**************************************************************************/
+public StarIterationList(StarCursor stars, float dimmest) {
 
+    this.stars = stars;
+    this.dimmest = dimmest;
+
+    mag = Float.NaN;
+
+} // end of constructor
 
 /**************************************************************************
 *
 **************************************************************************/
-int compareTo(StarIterationList list) {
+public int compareTo(StarIterationList list) {
 
-    return           star.getPhotometry().getMagnitude(band).compareTo(
-           list.getStar().getPhotometry().getMagnitude(band));
+    return Float.compare(mag, list.mag);
 
 } // end of compareTo method
 
 /**************************************************************************
-*
+* Returns the cursor the list runs over. It sits on the current star.
 **************************************************************************/
-public Star getStar() { return star; }
+public StarCursor getCursor() { return stars; }
 
 /**************************************************************************
-*
+* Returns the current star.
 **************************************************************************/
-public void step() {
+public Star getStar() { return stars.getStar(); }
 
-    if(it.hasNext()) star = it.next();
-    else             star = null;
+/**************************************************************************
+* Returns the magnitude of the current star.
+**************************************************************************/
+public float getMag() { return mag; }
+
+/**************************************************************************
+* Move to the next star, skipping stars with no magnitude and stars
+* which are not accepted.
+* @return false if there are no more stars within the magnitude limit.
+**************************************************************************/
+public boolean step() {
+
+    while(stars.next()) {
+        /**************************************
+        * skip stars with no data in the band *
+        **************************************/
+        mag = stars.getMagnitude();
+        if(Float.isNaN(mag)) continue;
 
-} // end of next method
+        if(mag > dimmest) return false;
 
+        if(accept(stars)) return true;
+    }
+
+    return false;
+
+} // end of step method
+
+/**************************************************************************
+* Tests whether to stop on a star. This is only called for stars within
+* the magnitude limit. The default accepts them all.
+* @param stars The cursor, sitting on the star.
+* @return true to stop on the star, or false to skip it.
+**************************************************************************/
+protected boolean accept(StarCursor stars) { return true; }
 
-} // end of StarIterationList class
\ No newline at end of file
+} // end of StarIterationList class
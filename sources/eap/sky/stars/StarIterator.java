@@ -20,28 +20,143 @@ package eap.sky.stars;
 import java.util.*;
 
 /**************************************************************************
-*
+* Merges several lists of stars, each sorted brightest first, into one
+* sequence sorted brightest first. The lists are merged through a heap
+* of {@link StarIterationList}s, so each star costs a log of the number
+* of lists, and stars are only looked at as they are returned. So you can
+* stop as soon as you have enough stars, or use a magnitude limit, without
+* touching the dimmer stars in any list. Stars with no magnitude in the
+* band are skipped.
+* <p>
+* The star lists of {@link InputCell}s are already sorted like this, but
+* note that merging cells from different levels of a catalog returns
+* duplicates, since a parent's stars are copied into its children when
+* the catalog is generated. Merge cells which don't overlap, such as the
+* leaves under a cell, or use a {@link RegionSearch}, which skips the
+* stars a cell shares with its parent.
 **************************************************************************/
-public class StarIterator {
+public class StarIterator implements Iterator<Star> {
+
+Band band;
+float dimmest;
 
-SortedSet<StarIterator> set;
+PriorityQueue<StarIterationList> queue;
 
 /**************************************************************************
-*
+* Create an iterator with no magnitude limit.
+* @param band The band used for sorting.
 **************************************************************************/
 public StarIterator(Band band) {
 
-    set = new TreeSet<StarIterator>();
+    this(band, Float.POSITIVE_INFINITY);
+
+} // end of constructor without a limit
+
+/**************************************************************************
+* @param band The band used for sorting.
+* @param dimmest The dimmest magnitude to return.
+**************************************************************************/
+public StarIterator(Band band, float dimmest) {
+
+    this.band = band;
+    this.dimmest = dimmest;
+
+    queue = new PriorityQueue<StarIterationList>();
 
 } // end of constructor
 
 /**************************************************************************
-*
+* Add a list of stars sorted brightest first.
 **************************************************************************/
 public void add(List<Star> list) {
 
-   // set.add(list);
+    add(StarCursor.create(list, band));
 
 } // end of add method
 
-} // end of StarIterator class
\ No newline at end of file
+/**************************************************************************
+* Add the stars under a cursor, sorted brightest first, starting after
+* the star the cursor is on. The cursor must report magnitudes in the
+* band of this iterator.
+**************************************************************************/
+public void add(StarCursor stars) {
+
+    add(new StarIterationList(stars, dimmest));
+
+} // end of add cursor method
+
+/**************************************************************************
+* Add the stars in a cell. This assumes the band is the sort band of
+* the cell's catalog. The cell is read through its cursor, so stars are
+* only created as they are returned.
+**************************************************************************/
+public void add(InputCell cell) {
+
+    add(cell.getCursor());
+
+} // end of add cell method
+
+/**************************************************************************
+*
+**************************************************************************/
+private void add(StarIterationList list) {
+
+    if(list.step()) queue.add(list);
+
+} // end of add list method
+
+/**************************************************************************
+* Returns the magnitude of the next star, or positive infinity if there
+* are no more.
+**************************************************************************/
+public float getNextMag() {
+
+    StarIterationList list = queue.peek();
+    if(list == null) return Float.POSITIVE_INFINITY;
+    else             return list.getMag();
+
+} // end of getNextMag method
+
+/**************************************************************************
+*
+**************************************************************************/
+public boolean hasNext() { return !queue.isEmpty(); }
+
+/**************************************************************************
+* Returns the brightest star not returned yet.
+* @throws NoSuchElementException if there are no more stars.
+**************************************************************************/
+public Star next() {
+
+    StarIterationList list = queue.poll();
+    if(list == null) throw new NoSuchElementException();
+
+    Star star = list.getStar();
+    add(list);
+
+    return star;
+
+} // end of next method
+
+/**************************************************************************
+* Returns up to a given number of the brightest stars not returned yet.
+**************************************************************************/
+public List<Star> next(int count) {
+
+    List<Star> stars = new ArrayList<Star>(count);
+    while(stars.size() < count && hasNext()) stars.add(next());
+
+    return stars;
+
+} // end of next several method
+
+/**************************************************************************
+* @throws UnsupportedOperationException always.
+**************************************************************************/
+public void remove() {
+
+    throw new UnsupportedOperationException();
+
+} // end of remove method
+
+} // end of StarIterator class
@@ -0,0 +1,37 @@
+// Copyright 2012 Edward Alan Pier
+//
+// This file is part of eap.sky
+// 
+// eap.sky is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// eap.sky is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with eap.sky.  If not, see <http://www.gnu.org/licenses/>.
+
+package eap.sky.stars;
+
+/**************************************************************************
+* A source of star names indexed by the position of each star in its
+* cell. A {@link Star} created with a name source only asks for its name
+* the first time {@link Star#getName()} is called, so code which only
+* needs positions and magnitudes never reads the names.
+* @see CellNames
+* @see ColumnCell
+**************************************************************************/
+public interface StarNames {
+
+/**************************************************************************
+* Returns the name of a star.
+* @param index The position of the star in its cell, brightest first.
+* @return The name, or null if the star has no name.
+**************************************************************************/
+public String getName(int index);
+
+} // end of StarNames interface
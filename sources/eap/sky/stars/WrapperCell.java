@@ -54,6 +54,11 @@ protected abstract WrapperCell createChild(Cell cell);
 *********************************************************************/
 public final String getName() { return cell.getName(); }
 
+/*********************************************************************
+*
+*********************************************************************/
+public final long getID() { return cell.getID(); }
+
 /*********************************************************************
 *
 *********************************************************************/
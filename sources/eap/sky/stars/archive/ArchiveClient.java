@@ -17,16 +17,32 @@
 
 package eap.sky.stars.archive;
 
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
 import java.io.*;
+import java.net.*;
 
 /***********************************************************************
-*
+* An archive whose entries are fetched from an {@link ArchiveServer}.
+* <p>
+* All the threads using a client share one connection. Each request is
+* written as soon as it is made, without waiting for the replies to
+* earlier ones, and a background thread reads the replies in order and
+* hands them to the waiting threads. Several entries can be fetched in
+* one round trip with {@link #getInputStreams(List)}. If the connection
+* breaks, the client reconnects and tries each request once more.
 ***********************************************************************/
 public class ArchiveClient extends Archive {
 
 String host;
 int port;
 
+boolean compress;
+int timeout;
+
+Connection connection;
+
 /***********************************************************************
 *
 ***********************************************************************/
@@ -42,19 +58,497 @@ public ArchiveClient(String host, int port) {
 ***********************************************************************/
 public boolean equals(Object o) {
 
+    if(!(o instanceof ArchiveClient)) return false;
+
     ArchiveClient client = (ArchiveClient)o;
 
     return host.equals(client.host) && port == client.port;
 
 } // end of equals method
 
+/***********************************************************************
+*
+***********************************************************************/
+public int hashCode() { return 31*host.hashCode() + port; }
+
+/***********************************************************************
+* Ask the server to deflate the entries it sends. This is worth doing
+* over slow links, but costs CPU time on both ends. It takes effect
+* the next time the client connects.
+***********************************************************************/
+public synchronized void setCompression(boolean compress) {
+
+    this.compress = compress;
+
+} // end of setCompression method
+
+/***********************************************************************
+* Set the socket read timeout in milliseconds. Zero, the default,
+* means wait forever. It takes effect the next time the client connects.
+***********************************************************************/
+public synchronized void setTimeout(int timeout) { this.timeout = timeout; }
+
 /**********************************************************************
 *
 **********************************************************************/
 public InputStream getInputStream(String name) throws IOException {
 
-    return null;
+    byte[] data = fetch(new Request(Collections.singletonList(name)))[0];
+    if(data == null) return null;
+    else             return new ByteArrayInputStream(data);
 
 } // end of getInputStream
 
-} // end of ArchiveServer class
\ No newline at end of file
+/**********************************************************************
+* Fetch an HTM cell by its numeric ID.
+* @return null if the server has no such cell.
+**********************************************************************/
+public InputStream getInputStream(long id) throws IOException {
+
+    byte[] data = fetch(new Request(new long[] {id}))[0];
+    if(data == null) return null;
+    else             return new ByteArrayInputStream(data);
+
+} // end of getInputStream by ID method
+
+/**********************************************************************
+* Fetch several entries in a single round trip.
+* @return a list with a stream for each name, or null for the names
+*         the server does not have.
+**********************************************************************/
+public List<InputStream> getInputStreams(List<String> names)
+                                                   throws IOException {
+
+    List<InputStream> streams = new ArrayList<InputStream>(names.size());
+
+    /*************************************
+    * split very large lists into several
+    * requests, which are all pipelined
+    *************************************/
+    List<Request> requests = new ArrayList<Request>();
+    for(int start=0; start < names.size(); start += ArchiveServer.MAX_BATCH) {
+        int end = Math.min(names.size(), start + ArchiveServer.MAX_BATCH);
+        requests.add(new Request(names.subList(start, end)));
+    }
+
+    send(requests);
+
+    for(Request request : requests) {
+        for(byte[] data : await(request)) {
+            if(data == null) streams.add(null);
+            else             streams.add(new ByteArrayInputStream(data));
+        }
+    }
+
+    return streams;
+
+} // end of getInputStreams method
+
+/**********************************************************************
+* Close the connection to the server. The client will reconnect if it
+* is used again.
+**********************************************************************/
+public void close() {
+
+    Connection connection;
+    synchronized(this) {
+        connection = this.connection;
+        this.connection = null;
+    }
+
+    if(connection != null) {
+        connection.fail(new IOException("Client closed"));
+    }
+
+} // end of close method
+
+/**********************************************************************
+* Returns the current connection, opening a new one if need be.
+**********************************************************************/
+private synchronized Connection getConnection() throws IOException {
+
+    if(connection == null || connection.isBroken()) {
+        connection = new Connection();
+    }
+
+    return connection;
+
+} // end of getConnection method
+
+/**********************************************************************
+* Send a request and wait for the reply.
+**********************************************************************/
+private byte[][] fetch(Request request) throws IOException {
+
+    send(Collections.singletonList(request));
+    return await(request);
+
+} // end of fetch method
+
+/**********************************************************************
+* Send some requests without waiting for the replies.
+**********************************************************************/
+private void send(List<Request> requests) throws IOException {
+
+    getConnection().send(requests);
+
+} // end of send method
+
+/**********************************************************************
+* Wait for the reply to a request. If the connection broke before
+* the reply arrived, for example because the server restarted since we
+* last used it, we send the request again on a new connection. We don't
+* if we or the reading thread were interrupted, since then the reply
+* would only be thrown away.
+**********************************************************************/
+private byte[][] await(Request request) throws IOException {
+
+    try { return request.await(); }
+    catch(InterruptedIOException e) { throw e; }
+    catch(IOException e) {
+        if(request.retried                              ||
+           request.error instanceof ServerException     ||
+           request.error instanceof InterruptedIOException) {
+            throw e;
+        }
+    }
+
+    Request retry = request.copy();
+    retry.retried = true;
+    getConnection().send(Collections.singletonList(retry));
+    return retry.await();
+
+} // end of await method
+
+/**********************************************************************
+* A request for some entries, and eventually the reply.
+**********************************************************************/
+private static class Request {
+
+List<String> names;
+long[] ids;
+
+byte[][] data;
+IOException error;
+boolean done;
+boolean retried;
+
+/**********************************************************************
+*
+**********************************************************************/
+Request(List<String> names) { this.names = names; }
+
+/**********************************************************************
+*
+**********************************************************************/
+Request(long[] ids) { this.ids = ids; }
+
+/**********************************************************************
+*
+**********************************************************************/
+int size() {
+
+    if(names != null) return names.size();
+    else              return ids.length;
+
+} // end of size method
+
+/**********************************************************************
+* Returns a new unanswered request for the same entries.
+**********************************************************************/
+Request copy() {
+
+    if(names != null) return new Request(names);
+    else              return new Request(ids);
+
+} // end of copy method
+
+/**********************************************************************
+*
+**********************************************************************/
+void write(DataOutputStream out) throws IOException {
+
+    if(names != null) {
+        out.writeByte(ArchiveServer.GET_NAMES);
+        out.writeInt(names.size());
+        for(String name : names) out.writeUTF(name);
+    } else {
+        out.writeByte(ArchiveServer.GET_IDS);
+        out.writeInt(ids.length);
+        for(long id : ids) out.writeLong(id);
+    }
+
+} // end of write method
+
+/**********************************************************************
+*
+**********************************************************************/
+synchronized void complete(byte[][] data, IOException error) {
+
+    if(done) return;
+
+    this.data = data;
+    this.error = error;
+    done = true;
+    notifyAll();
+
+} // end of complete method
+
+/**********************************************************************
+*
+**********************************************************************/
+synchronized byte[][] await() throws IOException {
+
+    while(!done) {
+        try { wait(); }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for "+
+                                             "archive server");
+        }
+    }
+
+    if(error != null) {
+        throw (IOException)new IOException(error.getMessage())
+                                          .initCause(error);
+    }
+
+    return data;
+
+} // end of await method
+
+} // end of Request inner class
+
+/**********************************************************************
+* A connection to the server, with a thread reading the replies.
+* Requests are written while holding a separate write lock, and the
+* reader takes them from a concurrent queue, so the reader never waits
+* for a thread which is blocked writing a large batch. Otherwise the
+* server could block writing replies nobody reads, and stop reading
+* the rest of the batch.
+**********************************************************************/
+private class Connection implements Runnable {
+
+Socket socket;
+DataInputStream in;
+DataOutputStream out;
+
+Object write_lock;
+Queue<Request> pending;
+volatile IOException broken;
+
+/**********************************************************************
+* Connect and do the handshake.
+**********************************************************************/
+Connection() throws IOException {
+
+    write_lock = new Object();
+    pending = new ConcurrentLinkedQueue<Request>();
+
+    socket = new Socket(host, port);
+    try {
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(timeout);
+
+        in  = new DataInputStream(
+              new BufferedInputStream(socket.getInputStream(), 65536));
+        out = new DataOutputStream(
+              new BufferedOutputStream(socket.getOutputStream()));
+
+        out.writeInt(ArchiveServer.MAGIC);
+        out.writeInt(ArchiveServer.VERSION);
+        out.writeInt(compress? ArchiveServer.COMPRESS: 0);
+        out.flush();
+
+        if(in.readInt() != ArchiveServer.MAGIC ||
+           in.readInt() != ArchiveServer.VERSION) {
+            throw new IOException(host+":"+port+
+                                  " is not a compatible archive server");
+        }
+
+        in.readInt(); // the accepted flags
+
+    } catch(IOException e) {
+        socket.close();
+        throw e;
+    }
+
+    Thread thread = new Thread(this, "ArchiveClient "+host+":"+port);
+    thread.setDaemon(true);
+    thread.start();
+
+} // end of constructor
+
+/**********************************************************************
+*
+**********************************************************************/
+boolean isBroken() { return broken != null; }
+
+/**********************************************************************
+* Write some requests. We hold the write lock while queueing and
+* writing, so that the pending queue is in the same order as the
+* requests on the wire. If this fails, the requests are failed along
+* with the connection.
+**********************************************************************/
+void send(List<Request> requests) {
+
+    synchronized(write_lock) {
+        if(broken != null) {
+            for(Request request : requests) request.complete(null, broken);
+            return;
+        }
+
+        pending.addAll(requests);
+        synchronized(this) { notifyAll(); }
+
+        /*********************************************
+        * if the connection broke while we were
+        * queueing, the requests may have missed
+        * being failed
+        *********************************************/
+        if(broken != null) {
+            failPending(broken);
+            return;
+        }
+
+        try {
+            for(Request request : requests) request.write(out);
+            out.flush();
+
+        } catch(IOException e) {
+            fail(e);
+        }
+    }
+
+} // end of send method
+
+/**********************************************************************
+* Close the connection and fail all the pending requests.
+**********************************************************************/
+void fail(IOException e) {
+
+    synchronized(this) {
+        if(broken == null) broken = e;
+        notifyAll();
+    }
+
+    try { socket.close(); }
+    catch(IOException ignored) {}
+
+    failPending(e);
+
+} // end of fail method
+
+/**********************************************************************
+* Fail all the requests in the pending queue.
+**********************************************************************/
+private void failPending(IOException e) {
+
+    Request request;
+    while((request = pending.poll()) != null) request.complete(null, e);
+
+} // end of failPending method
+
+/**********************************************************************
+* Read replies until the connection closes.
+**********************************************************************/
+public void run() {
+
+    try {
+        while(true) {
+            /*******************************************
+            * wait for a request, so that we know which
+            * request the next reply belongs to
+            *******************************************/
+            synchronized(this) {
+                while(pending.isEmpty() && broken == null) wait();
+            }
+
+            if(broken != null) return;
+
+            Request request = pending.peek();
+            if(request == null) continue;
+
+            byte[][] data = new byte[request.size()][];
+            IOException error = null;
+            for(int i=0; i< data.length; ++i) {
+                try { data[i] = readEntry(); }
+                catch(ServerException e) { error = e; }
+            }
+
+            pending.poll();
+            request.complete(data, error);
+
+        } // end of loop over replies
+
+    } catch(IOException e) {
+        fail(e);
+    } catch(InterruptedException e) {
+        fail(new InterruptedIOException("Archive client interrupted"));
+    }
+
+} // end of run method
+
+/**********************************************************************
+* Read one entry of a reply.
+* @return the entry contents, or null if the server doesn't have it.
+**********************************************************************/
+private byte[] readEntry() throws IOException {
+
+    int length = in.readInt();
+    if(length == ArchiveServer.MISSING) return null;
+    if(length == ArchiveServer.ERROR) {
+        throw new ServerException(in.readUTF());
+    }
+
+    byte encoding = in.readByte();
+    byte[] stored = new byte[in.readInt()];
+    in.readFully(stored);
+
+    if(encoding == ArchiveServer.RAW) return stored;
+
+    /***********************
+    * inflate the contents *
+    ***********************/
+    Inflater inflater = new Inflater();
+    inflater.setInput(stored);
+
+    byte[] data = new byte[length];
+    try {
+        int done = 0;
+        while(done < length) {
+            int n = inflater.inflate(data, done, length - done);
+            if(n == 0 && (inflater.finished() || inflater.needsInput())) {
+                throw new IOException("Truncated entry from server");
+            }
+            done += n;
+        }
+    } catch(DataFormatException e) {
+        throw (IOException)new IOException("Bad entry from server")
+                                          .initCause(e);
+    } finally {
+        inflater.end();
+    }
+
+    return data;
+
+} // end of readEntry method
+
+} // end of Connection inner class
+
+/**********************************************************************
+* An error reading an entry on the server. Unlike other errors this
+* does not break the connection.
+**********************************************************************/
+private static class ServerException extends IOException {
+
+private static final long serialVersionUID = 1L;
+
+/**********************************************************************
+*
+**********************************************************************/
+ServerException(String message) { super(message); }
+
+} // end of ServerException inner class
+
+} // end of ArchiveClient class
@@ -17,23 +17,511 @@
 
 package eap.sky.stars.archive;
 
+import eap.sky.stars.*;
+
+import java.util.*;
+import java.util.zip.*;
+import java.io.*;
+import java.net.*;
 
 /***********************************************************************
-*
+* Serves the entries of an archive over TCP to {@link ArchiveClient}s,
+* so that several machines can share one copy of a catalog.
+* <p>
+* A client opens a connection by sending a magic number, the protocol
+* version and a set of flags, and the server replies with the same
+* magic number and version, and the flags it accepts. The only flag is
+* {@link #COMPRESS}, which asks for entries to be deflated.
+* <p>
+* After that the client sends requests, each of which is an opcode, a
+* count, and then that many entry names ({@link #GET_NAMES}) or numeric
+* HTM cell IDs ({@link #GET_IDS}). For each name or ID in turn, the
+* server replies with the length of the entry, followed by an encoding
+* byte, the number of bytes stored, and the stored bytes. A length of
+* {@link #MISSING} means there is no such entry, and {@link #ERROR} is
+* followed by a UTF message. Requests are answered in the order they
+* were sent, so a client may send several before reading any replies.
+* <p>
+* Recently served entries are kept in a memory cache, along with their
+* deflated form once a client has asked for it.
+* <p>
+* Only plain entry names are served. Names which are absolute or contain
+* a path separator or ".." are answered with {@link #ERROR}, so a client
+* can't read files outside a directory archive. If the archive is a
+* {@link PackArchive}, only the names it lists can be read anyway. By
+* default the server only listens on the loopback interface. Give it an
+* address to serve other machines.
+***********************************************************************/
+public class ArchiveServer implements Runnable {
+
+static final int MAGIC = 0x53415331; // "SAS1"
+static final int VERSION = 1;
+
+/***********************************************************************
+* The connection flag asking for deflated entries.
+***********************************************************************/
+public static final int COMPRESS = 1;
+
+static final byte GET_NAMES = 1;
+static final byte GET_IDS   = 2;
+
+static final int MISSING = -1;
+static final int ERROR   = -2;
+
+static final byte RAW     = 0;
+static final byte DEFLATE = 1;
+
+/***********************************************************************
+* The largest number of entries in a single request.
+***********************************************************************/
+public static final int MAX_BATCH = 65536;
+
+/***********************************************************************
+* The cache budget used if you don't set one, 64 MB.
 ***********************************************************************/
-public class ArchiveServer {
+public static final long DEFAULT_CACHE_BUDGET = 64L*1024L*1024L;
 
 Archive archive;
+InetAddress address;
 int port;
 
+ServerSocket server;
+Thread thread;
+volatile boolean closed;
+
+Set<Socket> sockets;
+
+CellCache<String, Entry> cache;
+
+long connections;
+long requests;
+long entries;
+
 /***********************************************************************
-*
+* Create a server which only accepts connections from this machine.
+* @param archive The archive to serve.
+* @param port The port to listen on, or zero to choose a free one.
 ***********************************************************************/
 public ArchiveServer(Archive archive, int port) {
 
+    this(archive, InetAddress.getLoopbackAddress(), port);
+
+} // end of loopback constructor
+
+/***********************************************************************
+* Create a server listening on a given address.
+* @param archive The archive to serve.
+* @param address The local address to listen on, or null for all of
+*        them.
+* @param port The port to listen on, or zero to choose a free one.
+***********************************************************************/
+public ArchiveServer(Archive archive, InetAddress address, int port) {
+
     this.archive = archive;
+    this.address = address;
     this.port = port;
 
+    sockets = new HashSet<Socket>();
+    cache = new CellCache<String, Entry>(DEFAULT_CACHE_BUDGET);
+
 } // end of constructor
 
-} // end of ArchiveServer class
\ No newline at end of file
+/***********************************************************************
+* Returns the archive being served.
+***********************************************************************/
+public Archive getArchive() { return archive; }
+
+/***********************************************************************
+* Returns the port the server listens on. If the server was created
+* with port zero, this is the port chosen when it was started.
+***********************************************************************/
+public synchronized int getPort() {
+
+    if(server != null) return server.getLocalPort();
+    else               return port;
+
+} // end of getPort method
+
+/***********************************************************************
+* Set the memory budget of the entry cache. Zero turns off caching.
+* @param budget The budget in bytes.
+***********************************************************************/
+public void setCacheBudget(long budget) { cache.setBudget(budget); }
+
+/***********************************************************************
+* Start listening for connections in a background thread.
+* @throws IOException if the port could not be opened.
+***********************************************************************/
+public synchronized void start() throws IOException {
+
+    if(server != null) throw new IllegalStateException("Already started");
+
+    server = new ServerSocket(port, 50, address);
+
+    thread = new Thread(this, "ArchiveServer "+getPort());
+    thread.setDaemon(true);
+    thread.start();
+
+} // end of start method
+
+/***********************************************************************
+* Accept connections until the server is closed. Each connection is
+* handled by its own thread.
+***********************************************************************/
+public void run() {
+
+    while(!closed) {
+        try {
+            Socket socket = server.accept();
+            socket.setTcpNoDelay(true);
+
+            synchronized(this) {
+                if(closed) {
+                    socket.close();
+                    break;
+                }
+
+                sockets.add(socket);
+                ++connections;
+            }
+
+            Thread handler = new Thread(new Connection(socket),
+                                        "ArchiveServer "+
+                                        socket.getRemoteSocketAddress());
+            handler.setDaemon(true);
+            handler.start();
+
+        } catch(IOException e) {
+            if(!closed) e.printStackTrace();
+        }
+    } // end of loop over connections
+
+} // end of run method
+
+/***********************************************************************
+* Stop accepting connections and close all the open ones.
+***********************************************************************/
+public void close() throws IOException {
+
+    List<Socket> open;
+    synchronized(this) {
+        closed = true;
+        if(server != null) server.close();
+
+        open = new ArrayList<Socket>(sockets);
+        sockets.clear();
+    }
+
+    for(Socket socket : open) socket.close();
+
+} // end of close method
+
+/***********************************************************************
+* Returns an entry, from the cache if possible.
+* @return the entry, which has null data if it isn't in the archive.
+***********************************************************************/
+Entry getEntry(String name) throws IOException {
+
+    Entry entry = cache.get(name);
+    if(entry != null) return entry;
+
+    /***********************
+    * read the whole entry *
+    ***********************/
+    byte[] data = null;
+    InputStream in = archive.getInputStream(name);
+    if(in != null) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while((n = in.read(buffer)) >= 0) bytes.write(buffer, 0, n);
+            data = bytes.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /****************************************************
+    * we cache missing entries too, since a client will
+    * often ask for cells which the catalog doesn't have
+    ****************************************************/
+    entry = new Entry(data);
+    cache.put(name, entry, entry.estimateBytes());
+
+    return entry;
+
+} // end of getEntry method
+
+/***********************************************************************
+*
+***********************************************************************/
+public synchronized String toString() {
+
+    return "ArchiveServer port="+getPort()+" connections="+connections+
+           " requests="+requests+" entries="+entries+" "+cache;
+
+} // end of toString method
+
+/***********************************************************************
+* Returns true if a name can be served. This rejects anything which
+* could name a file outside a directory archive.
+***********************************************************************/
+static boolean isSafeName(String name) {
+
+    if(name.length() == 0 || name.equals(".") || name.contains("..")) {
+        return false;
+    }
+
+    if(name.indexOf('/') >= 0 || name.indexOf('\\') >= 0 ||
+       name.indexOf(File.separatorChar) >= 0 ||
+       name.indexOf(File.pathSeparatorChar) >= 0 ||
+       name.indexOf('\0') >= 0) return false;
+
+    return !new File(name).isAbsolute();
+
+} // end of isSafeName method
+
+/***********************************************************************
+* Serve a directory or pack archive. Without an address, the server
+* only listens on the loopback interface.
+* Usage: ArchiveServer archive port [address]
+***********************************************************************/
+public static void main(String[] args) throws Exception {
+
+    if(args.length != 2 && args.length != 3) {
+        System.err.println("Usage: ArchiveServer archive port [address]");
+        System.exit(1);
+    }
+
+    File file = new File(args[0]);
+    Archive archive;
+    if(file.isDirectory()) archive = new DirectoryArchive(file);
+    else                   archive = new PackArchive(file);
+
+    InetAddress address = InetAddress.getLoopbackAddress();
+    if(args.length == 3) address = InetAddress.getByName(args[2]);
+
+    ArchiveServer server = new ArchiveServer(archive, address,
+                                             Integer.parseInt(args[1]));
+    server.start();
+    System.out.println("serving "+file+" on "+address+" port "+
+                       server.getPort());
+
+    server.thread.join();
+
+} // end of main method
+
+/***********************************************************************
+* The cached contents of an entry.
+***********************************************************************/
+static class Entry {
+
+byte[] data;
+byte[] deflated;
+
+/***********************************************************************
+*
+***********************************************************************/
+Entry(byte[] data) { this.data = data; }
+
+/***********************************************************************
+* Returns the deflated contents, compressing them the first time.
+***********************************************************************/
+synchronized byte[] getDeflated() {
+
+    if(deflated == null) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length);
+        byte[] buffer = new byte[8192];
+        while(!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            bytes.write(buffer, 0, n);
+        }
+        deflater.end();
+
+        deflated = bytes.toByteArray();
+    }
+
+    return deflated;
+
+} // end of getDeflated method
+
+/***********************************************************************
+* Returns a rough size for the cache, counting room for the deflated
+* form.
+***********************************************************************/
+long estimateBytes() {
+
+    if(data == null) return 64L;
+    else             return 64L + data.length + data.length/2;
+
+} // end of estimateBytes method
+
+} // end of Entry inner class
+
+/***********************************************************************
+* Handles the requests from one client.
+***********************************************************************/
+private class Connection implements Runnable {
+
+Socket socket;
+DataInputStream in;
+DataOutputStream out;
+boolean compress;
+
+/***********************************************************************
+*
+***********************************************************************/
+Connection(Socket socket) { this.socket = socket; }
+
+/***********************************************************************
+*
+***********************************************************************/
+public void run() {
+
+    try {
+        in  = new DataInputStream(
+              new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(
+              new BufferedOutputStream(socket.getOutputStream(), 65536));
+
+        /****************
+        * the handshake *
+        ****************/
+        int magic   = in.readInt();
+        int version = in.readInt();
+        int flags   = in.readInt();
+        if(magic != MAGIC || version != VERSION) {
+            throw new IOException("Bad handshake from "+
+                                  socket.getRemoteSocketAddress());
+        }
+
+        flags &= COMPRESS;
+        compress = (flags & COMPRESS) != 0;
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(flags);
+        out.flush();
+
+        /****************************************************
+        * answer requests until the client hangs up. We only
+        * flush when no more requests are waiting, so the
+        * replies to pipelined requests go out together
+        ****************************************************/
+        int op;
+        while((op = in.read()) >= 0) {
+            serve((byte)op);
+            if(in.available() == 0) out.flush();
+        }
+
+    } catch(IOException e) {
+        if(!closed && !(e instanceof EOFException) &&
+           !(e instanceof SocketException)) e.printStackTrace();
+    } finally {
+        synchronized(ArchiveServer.this) { sockets.remove(socket); }
+        try { socket.close(); }
+        catch(IOException e) {}
+    }
+
+} // end of run method
+
+/***********************************************************************
+* Read one request and write the reply.
+***********************************************************************/
+private void serve(byte op) throws IOException {
+
+    int count = in.readInt();
+    if(count < 0 || count > MAX_BATCH) {
+        throw new IOException("Bad request size "+count);
+    }
+
+    if(op != GET_NAMES && op != GET_IDS) {
+        throw new IOException("Unknown request "+op);
+    }
+
+    synchronized(ArchiveServer.this) {
+        ++requests;
+        entries += count;
+    }
+
+    for(int i=0; i< count; ++i) {
+        /******************************************
+        * reject names which could escape the
+        * archive and IDs which aren't cells
+        ******************************************/
+        String name;
+        if(op == GET_NAMES) {
+            name = in.readUTF();
+            if(!isSafeName(name)) {
+                error("Bad entry name "+name);
+                continue;
+            }
+        } else {
+            long id = in.readLong();
+            if(!HTMId.isValid(id)) {
+                error("Bad cell ID "+id);
+                continue;
+            }
+
+            name = HTMId.toName(id);
+        }
+
+        Entry entry;
+        try { entry = getEntry(name); }
+        catch(IOException e) {
+            error(String.valueOf(e.getMessage()));
+            continue;
+        }
+
+        write(entry);
+
+    } // end of loop over entries
+
+} // end of serve method
+
+/***********************************************************************
+* Write an error in place of one entry of a reply.
+***********************************************************************/
+private void error(String message) throws IOException {
+
+    out.writeInt(ERROR);
+    out.writeUTF(message);
+
+} // end of error method
+
+/***********************************************************************
+* Write one entry of a reply. We only send the deflated form if it
+* is actually smaller.
+***********************************************************************/
+private void write(Entry entry) throws IOException {
+
+    if(entry.data == null) {
+        out.writeInt(MISSING);
+        return;
+    }
+
+    byte[] stored = entry.data;
+    byte encoding = RAW;
+    if(compress) {
+        byte[] deflated = entry.getDeflated();
+        if(deflated.length < stored.length) {
+            stored = deflated;
+            encoding = DEFLATE;
+        }
+    }
+
+    out.writeInt(entry.data.length);
+    out.writeByte(encoding);
+    out.writeInt(stored.length);
+    out.write(stored);
+
+} // end of write method
+
+} // end of Connection inner class
+
+} // end of ArchiveServer class
@@ -17,31 +17,152 @@
 
 package eap.sky.stars.archive;
 
+import java.util.*;
 import java.io.*;
 
 /**********************************************************************
-*
+* An archive which keeps local copies of the entries of a slower one,
+* typically an {@link ArchiveClient} or a {@link URLArchive}.
+* <p>
+* The cached entries are files in a data directory, and the client keeps
+* an index of them in memory, along with the names which the source
+* archive does not have, so a lookup never has to ask the file system or
+* the source whether an entry exists. The total size of the cached files
+* is kept under a limit by deleting the least recently used ones, and
+* only the most recent missing names are remembered. The index,
+* including the access times, is saved in the background after every so
+* many additions and removals, when the archive is closed, and when the
+* JVM exits, so the cache and its recency order survive a restart.
+* Closing the archive also lets it be garbage collected.
+* <p>
+* If several threads miss the same entry at once, only one of them
+* reads it from the source. The others wait for that copy to finish and
+* then read the cached file. The copy is finished even if the first
+* thread stops reading early; see {@link CachingInputStream}.
 **********************************************************************/
 public class CachedArchive extends Archive {
 
+/**********************************************************************
+* The limit on the size of the cached files if you don't set one, 4 GB.
+**********************************************************************/
+public static final long DEFAULT_LIMIT = 4L*1024L*1024L*1024L;
+
+private static final int MAGIC = 0x43414931; // "CAI1"
+private static final int VERSION = 1;
+
+/**********************************************************************
+* How many changes to the index we allow before saving it. Cache hits
+* only change access times, so they don't count.
+**********************************************************************/
+private static final int SAVE_INTERVAL = 1000;
+
+/**********************************************************************
+* How many names the source archive does not have we remember.
+**********************************************************************/
+private static final int MAX_MISSING = 100000;
+
 Archive archive;
 File dir;
 
 Cache data;
-Cache have;
-Cache have_not;
+File index_file;
+
+long limit;
+long bytes;
+
+LinkedHashMap<String, Entry> index;
+Set<String> missing;
+Map<String, Fetch> fetches;
+
+int changes;
+Object save_lock;
+boolean save_pending;
+Thread saver;
+Thread hook;
+
+long hits;
+long misses;
+long negative_hits;
+long evictions;
 
 /**********************************************************************
 *
 **********************************************************************/
 public CachedArchive(Archive archive, File dir) {
 
+    this(archive, dir, DEFAULT_LIMIT);
+
+} // end of constructor with the default limit
+
+/**********************************************************************
+* @param archive The source archive.
+* @param dir The cache directory. This will be created if need be.
+* @param limit The limit on the total size of the cached files in bytes.
+**********************************************************************/
+public CachedArchive(Archive archive, File dir, long limit) {
+
+    if(limit < 0) {
+        throw new IllegalArgumentException("Negative cache limit "+limit);
+    }
+
     this.archive = archive;
     this.dir = dir;
+    this.limit = limit;
+
+    data = new Cache(new File(dir, "data"));
+    index_file = new File(dir, "index");
+
+    index = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    missing = Collections.newSetFromMap(
+                  new LinkedHashMap<String, Boolean>() {
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> e) {
+            return size() > MAX_MISSING;
+        }
+    });
+    fetches = new HashMap<String, Fetch>();
+    save_lock = new Object();
+
+    /******************************************
+    * the old layout marked entries with empty
+    * files, which we no longer need
+    ******************************************/
+    for(String name : new String[] {"have", "have_not"}) {
+        File old = new File(dir, name);
+        if(old.exists()) new DeleteThread(old).start();
+    }
+
+    /*****************************************
+    * read the saved index, and delete files
+    * which are not in it. These were being
+    * written when the JVM stopped
+    *****************************************/
+    try { readIndex(); }
+    catch(IOException e) {
+        e.printStackTrace();
+        index.clear();
+        missing.clear();
+        bytes = 0;
+    }
 
-    data     = new Cache(new File(dir, "data"));
-    have     = new Cache(new File(dir, "have"));
-    have_not = new Cache(new File(dir, "have_not"));
+    File[] files = data.getDirectory().listFiles();
+    if(files != null) {
+        for(File file : files) {
+            if(!index.containsKey(file.getName())) file.delete();
+        }
+    }
+
+    trim();
+
+    /**************************************
+    * save the index when the JVM exits
+    **************************************/
+    hook = new Thread() {
+        public void run() {
+            try { saveIndex(); }
+            catch(IOException e) { e.printStackTrace(); }
+        }
+    };
+    Runtime.getRuntime().addShutdownHook(hook);
 
 } // end of constructor
 
@@ -57,68 +178,537 @@ public boolean equals(Object o) {
 
 } // end of equals method
 
+/**********************************************************************
+*
+**********************************************************************/
+public int hashCode() { return 31*archive.hashCode() + dir.hashCode(); }
+
 /**********************************************************************
 *
 **********************************************************************/
 public File getCacheDirectory() { return dir; }
 
+/**********************************************************************
+* Set the limit on the total size of the cached files. Least recently
+* used files are deleted right away if the cache is over the new limit.
+* @param limit The limit in bytes.
+**********************************************************************/
+public synchronized void setLimit(long limit) {
+
+    if(limit < 0) {
+        throw new IllegalArgumentException("Negative cache limit "+limit);
+    }
+
+    this.limit = limit;
+    trim();
+
+} // end of setLimit method
 
 /**********************************************************************
 *
 **********************************************************************/
-// public boolean has(String name) throws IOException {
-// 
-// 
-//     if(data.has(name) || have.has(name)) return true;
-//     else if(         have_not.has(name)) return false;
-//     else {
-//         /**************************************************
-//         * no cached information, check the source archive *
-//         **************************************************/
-//         boolean has = archive.has(name);
-// 
-//         /******************
-//         * save the status *
-//         ******************/
-//         if(has)  have.create(name);
-//         else have_not.create(name);
-// 
-//         return has;
-// 
-//     } // end if we needed to check the source archive
-// 
-// 
-// } // end of has method
+public synchronized long getLimit() { return limit; }
+
+/**********************************************************************
+* Returns the total size of the cached files in bytes.
+**********************************************************************/
+public synchronized long getBytes() { return bytes; }
+
+/**********************************************************************
+* Returns the number of cached entries.
+**********************************************************************/
+public synchronized int getEntryCount() { return index.size(); }
+
+/**********************************************************************
+*
+**********************************************************************/
+public boolean has(String name) throws IOException {
+
+    synchronized(this) {
+        if(index.containsKey(name)) return true;
+        if(missing.contains(name))  return false;
+    }
+
+    InputStream in = getInputStream(name);
+    if(in == null) return false;
+
+    in.close();
+    return true;
+
+} // end of has method
 
 /**********************************************************************
 *
 **********************************************************************/
 public InputStream getInputStream(String name) throws IOException {
 
-    InputStream in = data.getInputStream(name);
-    if(in != null) return in;
+    while(true) {
+        Fetch fetch;
+        File file;
+        boolean owner = false;
+        synchronized(this) {
+            /*****************************************
+            * look in the index. Getting the entry
+            * makes it the most recently used one
+            *****************************************/
+            Entry entry = index.get(name);
+            if(entry != null) {
+                ++hits;
+                entry.access = System.currentTimeMillis();
+                file = data.getFile(name);
+                fetch = null;
 
-    in = archive.getInputStream(name);
-    if(in == null) {
-        have_not.create(name);
-        return null;
-    }
+            } else if(missing.contains(name)) {
+                ++negative_hits;
+                return null;
+
+            } else {
+                /**************************************
+                * see if another thread is already
+                * fetching this entry. If not, we will
+                **************************************/
+                file = null;
+                fetch = fetches.get(name);
+                if(fetch == null) {
+                    ++misses;
+                    fetch = new Fetch();
+                    fetches.put(name, fetch);
+                    owner = true;
+                }
+            }
+        } // end of synchronized block
+
+        if(owner) return fill(name, fetch);
+
+        if(file != null) {
+            /***********************************************
+            * the file may have been evicted since we
+            * looked, in which case we go round again
+            ***********************************************/
+            try { return new FileInputStream(file); }
+            catch(FileNotFoundException e) {
+                synchronized(this) {
+                    if(!file.exists()) remove(name);
+                }
+                continue;
+            }
+        }
 
-    return data.createCachingInputStream(name, in);
+        /*******************************************************
+        * wait for the other thread. If that is us, then we are
+        * reading the entry again before closing the first
+        * stream, so just go to the source
+        *******************************************************/
+        if(fetch.owner == Thread.currentThread()) {
+            return archive.getInputStream(name);
+        }
+
+        fetch.await();
+
+    } // end of loop until we get an answer
 
 } // end of getInputStream method
 
 /**********************************************************************
-*
+* Start copying an entry from the source archive. The fetch has already
+* been registered, so other threads wanting the same entry will wait
+* for us.
+**********************************************************************/
+private InputStream fill(String name, Fetch fetch) throws IOException {
+
+    InputStream in = null;
+    boolean started = false;
+    try {
+        in = archive.getInputStream(name);
+
+        if(in == null) {
+            synchronized(this) {
+                missing.add(name);
+                changed();
+            }
+            return null;
+        }
+
+        InputStream fill = new Fill(in, name, fetch);
+        started = true;
+        return fill;
+
+    } finally {
+        if(!started) finish(name, fetch, -1L);
+        if(!started && in != null) in.close();
+    }
+
+} // end of fill method
+
+/**********************************************************************
+* Record the end of a fetch and wake up any threads waiting for it.
+* @param size The size of the cached file, or -1 if it wasn't cached.
+**********************************************************************/
+private void finish(String name, Fetch fetch, long size) {
+
+    synchronized(this) {
+        fetches.remove(name);
+
+        if(size >= 0) {
+            index.put(name, new Entry(size, System.currentTimeMillis()));
+            bytes += size;
+            trim();
+            changed();
+        }
+    }
+
+    fetch.done();
+
+} // end of finish method
+
+/**********************************************************************
+* Remove an entry from the index. The caller must hold the lock.
+**********************************************************************/
+private void remove(String name) {
+
+    Entry entry = index.remove(name);
+    if(entry != null) {
+        bytes -= entry.size;
+        changed();
+    }
+
+} // end of remove method
+
+/**********************************************************************
+* Delete least recently used files until we are under the limit. The
+* caller must hold the lock.
+**********************************************************************/
+private void trim() {
+
+    Iterator<Map.Entry<String, Entry>> it = index.entrySet().iterator();
+    while(bytes > limit && it.hasNext()) {
+        Map.Entry<String, Entry> entry = it.next();
+        it.remove();
+
+        bytes -= entry.getValue().size;
+        data.getFile(entry.getKey()).delete();
+
+        ++evictions;
+        changed();
+    }
+
+} // end of trim method
+
+/**********************************************************************
+* Note a change to the index, and save it if there have been enough.
+* The caller must hold the lock, so the saving is done by the saver
+* thread, which we start the first time we need it.
+**********************************************************************/
+private void changed() {
+
+    if(++changes < SAVE_INTERVAL) return;
+    changes = 0;
+
+    save_pending = true;
+    if(saver == null) {
+        saver = new Saver();
+        saver.start();
+    } else {
+        notifyAll();
+    }
+
+} // end of changed method
+
+/**********************************************************************
+* Read the saved index, if there is one. The entries are saved in
+* order of use, so adding them in order restores the LRU order.
+**********************************************************************/
+private void readIndex() throws IOException {
+
+    if(!index_file.exists()) return;
+
+    DataInputStream in = new DataInputStream(
+                         new BufferedInputStream(
+                         new FileInputStream(index_file)));
+    try {
+        if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException(index_file+" is not a cache index");
+        }
+
+        int count = in.readInt();
+        for(int i=0; i< count; ++i) {
+            String name = in.readUTF();
+            long size   = in.readLong();
+            long access = in.readLong();
+
+            index.put(name, new Entry(size, access));
+            bytes += size;
+        }
+
+        count = in.readInt();
+        for(int i=0; i< count; ++i) missing.add(in.readUTF());
+
+    } finally {
+        in.close();
+    }
+
+} // end of readIndex method
+
+/**********************************************************************
+* Save the index. This writes to a temporary file and then renames it,
+* so a crash while saving leaves the previous index.
+**********************************************************************/
+public void saveIndex() throws IOException {
+
+    /*************************
+    * copy the index quickly *
+    *************************/
+    String[] names;
+    Entry[] entries;
+    String[] missing;
+    synchronized(this) {
+        names   = index.keySet().toArray(new String[index.size()]);
+        entries = index.values().toArray(new Entry[index.size()]);
+        missing = this.missing.toArray(new String[this.missing.size()]);
+        changes = 0;
+    }
+
+    /*******************
+    * and write it out *
+    *******************/
+    synchronized(save_lock) {
+        File tmp = File.createTempFile(index_file.getName(), ".tmp", dir);
+        DataOutputStream out = new DataOutputStream(
+                               new BufferedOutputStream(
+                               new FileOutputStream(tmp)));
+        boolean written = false;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            out.writeInt(names.length);
+            for(int i=0; i< names.length; ++i) {
+                out.writeUTF(names[i]);
+                out.writeLong(entries[i].size);
+                out.writeLong(entries[i].access);
+            }
+
+            out.writeInt(missing.length);
+            for(String name : missing) out.writeUTF(name);
+
+            out.close();
+            written = true;
+
+        } finally {
+            if(!written) {
+                out.close();
+                tmp.delete();
+            }
+        }
+
+        if(!tmp.renameTo(index_file)) {
+            index_file.delete();
+            if(!tmp.renameTo(index_file)) {
+                throw new IOException("Could not rename "+tmp+" to "+
+                                      index_file);
+            }
+        }
+    } // end of synchronized block
+
+} // end of saveIndex method
+
+/**********************************************************************
+* Save the index, stop the saver thread, and stop saving the index when
+* the JVM exits, so nothing refers to this archive any more. The
+* archive may still be used after this, but should be closed again
+* afterwards.
+**********************************************************************/
+public void close() throws IOException {
+
+    synchronized(this) {
+        if(hook != null) {
+            try { Runtime.getRuntime().removeShutdownHook(hook); }
+            catch(IllegalStateException e) {} // already shutting down
+            hook = null;
+        }
+
+        if(saver != null) {
+            saver.interrupt();
+            saver = null;
+        }
+    }
+
+    saveIndex();
+
+} // end of close method
+
+/**********************************************************************
+* Forget everything in the cache.
 **********************************************************************/
 public void clear() {
 
-    data.clear();
-    have.clear();
-    have_not.clear();
+    synchronized(this) {
+        data.clear();
+        index.clear();
+        missing.clear();
+        bytes = 0;
+    }
+
+    try { saveIndex(); }
+    catch(IOException e) { e.printStackTrace(); }
 
 } // end of clear method
 
+/**********************************************************************
+*
+**********************************************************************/
+public synchronized String toString() {
+
+    return "CachedArchive "+dir+" entries="+index.size()+
+           " bytes="+bytes+"/"+limit+" missing="+missing.size()+
+           " hits="+hits+" misses="+misses+
+           " negative_hits="+negative_hits+" evictions="+evictions;
+
+} // end of toString method
+
+/**********************************************************************
+* The size and last access time of a cached file.
+**********************************************************************/
+private static class Entry {
+
+long size;
+long access;
+
+/**********************************************************************
+*
+**********************************************************************/
+Entry(long size, long access) {
+
+    this.size = size;
+    this.access = access;
+
+} // end of constructor
+
+} // end of Entry inner class
+
+/**********************************************************************
+* A fetch from the source archive which other threads can wait for.
+**********************************************************************/
+private static class Fetch {
+
+volatile Thread owner;
+boolean done;
+
+/**********************************************************************
+*
+**********************************************************************/
+Fetch() { owner = Thread.currentThread(); }
+
+/**********************************************************************
+*
+**********************************************************************/
+synchronized void done() {
+
+    done = true;
+    notifyAll();
+
+} // end of done method
+
+/**********************************************************************
+*
+**********************************************************************/
+synchronized void await() throws IOException {
+
+    while(!done) {
+        try { wait(); }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for "+
+                                             "cache");
+        }
+    }
+
+} // end of await method
+
+} // end of Fetch inner class
+
+/**********************************************************************
+* A stream which copies an entry into the cache as it is read. The
+* entry is added to the index once the whole of it has been copied,
+* which may be after the reader has closed the stream.
+**********************************************************************/
+private class Fill extends CachingInputStream {
+
+String name;
+Fetch fetch;
+
+/**********************************************************************
+*
+**********************************************************************/
+Fill(InputStream in, String name, Fetch fetch) throws IOException {
+
+    super(in, data.getFile(name));
+
+    this.name = name;
+    this.fetch = fetch;
+
+} // end of constructor
+
+/**********************************************************************
+* Once the reader has closed the stream, the copy doesn't depend on its
+* thread any more, so that thread may wait for it like any other.
+**********************************************************************/
+public void close() throws IOException {
+
+    fetch.owner = null;
+    super.close();
+
+} // end of close method
+
+/**********************************************************************
+*
+**********************************************************************/
+protected void finished(boolean complete) {
+
+    if(complete) finish(name, fetch, file.length());
+    else         finish(name, fetch, -1L);
+
+} // end of finished method
+
+} // end of Fill inner class
+
+/**********************************************************************
+* A thread which saves the index whenever there have been enough
+* changes, until the archive is closed.
+**********************************************************************/
+private class Saver extends Thread {
+
+/**********************************************************************
+*
+**********************************************************************/
+Saver() {
+
+    super("CachedArchive save "+dir);
+    setDaemon(true);
+
+} // end of constructor
+
+/**********************************************************************
+*
+**********************************************************************/
+public void run() {
+
+    while(true) {
+        synchronized(CachedArchive.this) {
+            while(!save_pending) {
+                if(saver != this) return;
+                try { CachedArchive.this.wait(); }
+                catch(InterruptedException e) { return; }
+            }
+            save_pending = false;
+        }
+
+        try { saveIndex(); }
+        catch(IOException e) { e.printStackTrace(); }
+    }
+
+} // end of run method
 
+} // end of Saver inner class
 
 } // end of CachedArchive class
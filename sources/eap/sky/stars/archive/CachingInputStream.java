@@ -17,26 +17,53 @@
 
 package eap.sky.stars.archive;
 
+import java.util.concurrent.*;
 import java.io.*;
 
 /**********************************************************************
-*
+* A stream which copies everything read from another stream to an
+* output stream, typically a file in a {@link Cache}.
+* <p>
+* When caching to a file, the copy is written to a temporary file in
+* the same directory, which is renamed to the real name once the whole
+* stream has been copied. So anyone looking for the file either finds
+* all of it or nothing. If the reader closes this stream before the end,
+* the rest of the copy is finished by a background thread, so closing
+* doesn't wait for a slow source. Subclasses can override
+* {@link #finished(boolean)} to find out when the copy is done.
 **********************************************************************/
 public class CachingInputStream extends InputStream {
 
+/**********************************************************************
+* The number of threads finishing copies in the background.
+**********************************************************************/
+private static final int BACKGROUND_THREADS = 4;
+
+private static ExecutorService background;
+
 InputStream in;
 OutputStream out;
 
+File file;
+File tmp;
+
 byte[] buffer;
 int size;
 int index;
 
+boolean eof;
+boolean done;
+boolean closed;
+
 /**********************************************************************
 *
 **********************************************************************/
 public CachingInputStream(InputStream in, File file) throws IOException {
 
-    this(in, new FileOutputStream(file));
+    this(in, createTemporaryFile(file));
+
+    this.file = file;
+    this.tmp = ((TemporaryFileOutputStream)out).getFile();
 
     System.out.println("caching "+file.getName());
 
@@ -56,22 +83,124 @@ public CachingInputStream(InputStream in, OutputStream out) {
 
 } // end of constructor
 
+/**********************************************************************
+* Open a temporary file next to the one we will eventually create.
+**********************************************************************/
+private static OutputStream createTemporaryFile(File file)
+                                                  throws IOException {
+
+    File dir = file.getAbsoluteFile().getParentFile();
+    File tmp = File.createTempFile("."+file.getName()+".", ".part", dir);
+
+    return new TemporaryFileOutputStream(tmp);
+
+} // end of createTemporaryFile method
+
+/**********************************************************************
+* Returns the thread pool used to finish copies in the background.
+**********************************************************************/
+private static synchronized ExecutorService getBackground() {
+
+    if(background == null) {
+        background = Executors.newFixedThreadPool(BACKGROUND_THREADS,
+                                                  new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "CachingInputStream");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    return background;
+
+} // end of getBackground method
+
+/**********************************************************************
+* Called once when the copy is complete or has failed. By then the
+* cached file has been renamed into place, or the temporary file has
+* been deleted. This does nothing by default.
+* @param complete true if the whole stream was copied.
+**********************************************************************/
+protected void finished(boolean complete) {}
+
+/**********************************************************************
+* Move the finished copy into place.
+**********************************************************************/
+private void complete() throws IOException {
+
+    if(done) return;
+
+    out.close();
+
+    if(tmp != null && !tmp.renameTo(file)) {
+        /****************************************************
+        * some platforms won't rename over an existing file *
+        ****************************************************/
+        file.delete();
+        if(!tmp.renameTo(file)) {
+            throw new IOException("Could not rename "+tmp+" to "+file);
+        }
+    }
+
+    done = true;
+    finished(true);
+
+} // end of complete method
+
+/**********************************************************************
+* Give up on the copy after an error. If the error was in writing the
+* copy, the stream can still be read.
+**********************************************************************/
+private void abandon() {
+
+    if(done) return;
+    done = true;
+
+    try { out.close(); }
+    catch(IOException e) {}
+
+    if(tmp != null) tmp.delete();
+
+    finished(false);
+
+} // end of abandon method
+
 /**********************************************************************
 *
 **********************************************************************/
 private boolean readBuffer() throws IOException {
 
-    index = 0;
-    size = in.read(buffer);
+    if(eof) return true;
 
-  //  System.out.println("read buffer size="+size);
+    index = 0;
+    try { size = in.read(buffer); }
+    catch(IOException e) {
+        size = 0;
+        eof = true;
+        abandon();
+        throw e;
+    }
 
-    if(size == -1) {
-        out.close();
-        return true;
-    } else {
-        out.write(buffer, 0, size);
-        return false;
+    /*******************************************************
+    * a problem with the copy shouldn't stop us reading, so
+    * we just give up on caching if we can't write it
+    *******************************************************/
+    try {
+        if(size == -1) {
+            size = 0;
+            eof = true;
+            complete();
+            return true;
+        } else {
+            if(!done) out.write(buffer, 0, size);
+            return false;
+        }
+
+    } catch(IOException e) {
+        e.printStackTrace();
+        abandon();
+        return eof;
     }
 
 } // end of readBuffer method
@@ -104,8 +233,6 @@ public int available() {
 **********************************************************************/
 public int read(byte[] b, int offset, int length) throws IOException {
 
-   // System.out.println("requesting "+length+" from "+offset);
-
     int available = available();
     if(available <=0) {
         boolean eof = readBuffer();
@@ -115,8 +242,6 @@ public int read(byte[] b, int offset, int length) throws IOException {
 
     if(length > available) length = available;
 
-  //  System.out.println("reading length "+length+" available="+available);
-
     System.arraycopy(buffer, index, b, offset, length);
     index += length;
 
@@ -125,14 +250,68 @@ public int read(byte[] b, int offset, int length) throws IOException {
 } // end of read array method
 
 /**********************************************************************
-*
+* Close the stream. If the source hasn't been read to the end, the rest
+* is copied in the background and the source is closed after that.
 **********************************************************************/
 public void close() throws IOException {
 
-    while(!readBuffer());
-    in.close();
+    if(closed) return;
+    closed = true;
+
+    if(eof || done) {
+        in.close();
+        return;
+    }
+
+    try {
+        getBackground().execute(new Runnable() {
+            public void run() { drain(); }
+        });
+    } catch(RejectedExecutionException e) {
+        drain();
+    }
 
 } // end of close method
 
+/**********************************************************************
+* Copy the rest of the source and close it.
+**********************************************************************/
+private void drain() {
+
+    try {
+        while(!readBuffer() && !done);
+    } catch(IOException e) {
+        e.printStackTrace();
+    } finally {
+        abandon();
+        try { in.close(); }
+        catch(IOException e) {}
+    }
+
+} // end of drain method
+
+/**********************************************************************
+* A file output stream which remembers its file.
+**********************************************************************/
+private static class TemporaryFileOutputStream extends FileOutputStream {
+
+File file;
+
+/**********************************************************************
+*
+**********************************************************************/
+TemporaryFileOutputStream(File file) throws IOException {
+
+    super(file);
+    this.file = file;
+
+} // end of constructor
+
+/**********************************************************************
+*
+**********************************************************************/
+File getFile() { return file; }
+
+} // end of TemporaryFileOutputStream inner class
 
 } // end of CachingInputStream class
@@ -0,0 +1,647 @@
+// Copyright 2012 Edward Alan Pier
+//
+// This file is part of eap.sky
+// 
+// eap.sky is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// eap.sky is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with eap.sky.  If not, see <http://www.gnu.org/licenses/>.
+
+package eap.sky.stars.archive;
+
+import eap.sky.stars.*;
+
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.io.*;
+
+/**************************************************************************
+* A read-only archive held in a single pack file. This avoids the cost
+* of looking up hundreds of thousands of small cell files in a directory
+* or in the central directory of a zip file, and uses one inode per catalog.
+* <p>
+* The file consists of a header, an index of the entries sorted by name,
+* and then the contents of each entry stored contiguously. The index is
+* read once when the archive is opened, so finding an entry is a binary
+* search in memory. Entries named after HTM cells are stored in order of
+* their numeric {@link HTMId} in one block, and entries with a cell name
+* and a suffix, such as the separate star names, come after that block
+* in the same order. So the cells in a range of IDs at one depth are next
+* to each other in the file, and {@link #readCells(HTMCover)} can read
+* them with one read. Entries are read with positional
+* {@link FileChannel#read(ByteBuffer, long)} calls, so many threads can
+* read from the same archive at once without locking.
+* <p>
+* Use {@link #write(File, File)} to pack a directory archive.
+**************************************************************************/
+public class PackArchive extends Archive {
+
+private static final int MAGIC = 0x53504B31; // "SPK1"
+private static final int VERSION = 1;
+
+private static final int HEADER_SIZE = 16;
+
+private static final int BUFFER_SIZE = 65536;
+
+/** The most we read at once when reading a run of cells **/
+private static final int MAX_RUN = 16*1024*1024;
+
+File file;
+volatile FileChannel channel;
+volatile boolean closed;
+
+String[] names;
+long[] offsets;
+long[] lengths;
+
+/******************************
+* entries named after cells,
+* in order of their IDs. This
+* doesn't include the entries
+* with a suffix
+******************************/
+long[] cell_ids;
+int[] cell_entries;
+int max_depth;
+
+/**************************************************************************
+* Open an existing pack file.
+* @param file The pack file.
+* @throws IOException if the file could not be read or is not a pack.
+**************************************************************************/
+public PackArchive(File file) throws IOException {
+
+    this.file = file;
+
+    channel = new RandomAccessFile(file, "r").getChannel();
+    try {
+        /******************
+        * read the header *
+        ******************/
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0L);
+        header.flip();
+
+        if(header.getInt() != MAGIC) {
+            throw new IOException(file+" is not a pack archive");
+        }
+
+        int version = header.getInt();
+        if(version != VERSION) {
+            throw new IOException("Unsupported pack archive version "+
+                                  version);
+        }
+
+        int count = header.getInt();
+        int index_size = header.getInt();
+
+        /*******************************
+        * read the index in one go and
+        * unpack it into sorted arrays
+        *******************************/
+        ByteBuffer index = ByteBuffer.allocate(index_size);
+        readFully(index, HEADER_SIZE);
+
+        DataInputStream in = new DataInputStream(
+                             new ByteArrayInputStream(index.array()));
+
+        names   = new String[count];
+        offsets = new long[count];
+        lengths = new long[count];
+        for(int i=0; i< count; ++i) {
+            names[i]   = in.readUTF();
+            offsets[i] = in.readLong();
+            lengths[i] = in.readLong();
+        }
+
+        findCells();
+
+    } catch(IOException e) {
+        channel.close();
+        throw e;
+    }
+
+} // end of constructor
+
+/**************************************************************************
+* Returns the ID of the cell an entry belongs to. This is the part of the
+* name before the first dot.
+* @return the ID, or -1 if the name does not start with a cell name.
+**************************************************************************/
+private static long getCellID(String name) {
+
+    int dot = name.indexOf('.');
+    if(dot >= 0) name = name.substring(0, dot);
+
+    try { return HTMId.fromName(name); }
+    catch(IllegalArgumentException e) { return -1L; }
+
+} // end of getCellID method
+
+/**************************************************************************
+* Tells where an entry goes when the entries are laid out in the file.
+* @return 0 for an entry which doesn't belong to a cell, 1 for a cell,
+* or 2 for an entry with a cell name and a suffix.
+**************************************************************************/
+private static int getGroup(String name) {
+
+    if(getCellID(name) < 0)    return 0;
+    if(name.indexOf('.') >= 0) return 2;
+    else                       return 1;
+
+} // end of getGroup method
+
+/**************************************************************************
+* Sort the entries named after cells by ID. This is also the order in
+* which they are written. The entries with a suffix are left out, so a
+* run of cells never has to read them.
+**************************************************************************/
+private void findCells() {
+
+    final long[] ids = new long[names.length];
+    List<Integer> cells = new ArrayList<Integer>();
+    for(int i=0; i< names.length; ++i) {
+        ids[i] = getCellID(names[i]);
+        if(getGroup(names[i]) == 1) cells.add(i);
+    }
+
+    Collections.sort(cells, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+            if(ids[a] != ids[b]) return ids[a] < ids[b] ? -1 : 1;
+            return a.compareTo(b);
+        }
+    });
+
+    cell_ids = new long[cells.size()];
+    cell_entries = new int[cells.size()];
+    max_depth = 0;
+    for(int i=0; i< cell_ids.length; ++i) {
+        cell_entries[i] = cells.get(i);
+        cell_ids[i] = ids[cell_entries[i]];
+        max_depth = Math.max(max_depth, HTMId.getDepth(cell_ids[i]));
+    }
+
+} // end of findCells method
+
+/**************************************************************************
+* Returns the pack file.
+**************************************************************************/
+public File getFile() { return file; }
+
+/**************************************************************************
+* Returns the number of entries in this archive.
+**************************************************************************/
+public int getEntryCount() { return names.length; }
+
+/**************************************************************************
+* Returns the names of all the entries, in sorted order.
+**************************************************************************/
+public List<String> getNames() {
+
+    return Collections.unmodifiableList(Arrays.asList(names));
+
+} // end of getNames method
+
+/**************************************************************************
+*
+**************************************************************************/
+public boolean equals(Object o) {
+
+    if(!(o instanceof PackArchive)) return false;
+
+    PackArchive archive = (PackArchive)o;
+    return file.equals(archive.file);
+
+} // end of equals method
+
+/**************************************************************************
+*
+**************************************************************************/
+public int hashCode() { return file.hashCode(); }
+
+/**************************************************************************
+* Returns the position of an entry in the index.
+* @return a negative value if there is no entry with the given name.
+**************************************************************************/
+private int find(String name) {
+
+    return Arrays.binarySearch(names, name);
+
+} // end of find method
+
+/**************************************************************************
+*
+**************************************************************************/
+public boolean has(String name) {
+
+    return find(name) >= 0;
+
+} // end of has method
+
+/**************************************************************************
+* Returns the size of an entry in bytes.
+* @return the size, or -1 if there is no entry with the given name.
+**************************************************************************/
+public long getSize(String name) {
+
+    int entry = find(name);
+    if(entry < 0) return -1L;
+    else          return lengths[entry];
+
+} // end of getSize method
+
+/**************************************************************************
+*
+**************************************************************************/
+public InputStream getInputStream(String name) throws IOException {
+
+    int entry = find(name);
+    if(entry < 0) return null;
+
+    return new EntryInputStream(offsets[entry], lengths[entry]);
+
+} // end of getInputStream method
+
+/**************************************************************************
+* Read the entries for all the cells which overlap a cover, down to the
+* depth of the cover. For each range in the cover, the cells at each
+* depth are next to each other in the file, so they are read in one go,
+* rather than with one read per cell. Entries with a suffix, such as the
+* separate star names, are not read. Packs written with the cells in
+* another order still work, but take more reads.
+* @param cover The cells to read.
+* @return The contents of the entries read, by name, in the order they are
+* stored in the file.
+* @throws IOException if there is trouble reading the file.
+**************************************************************************/
+public Map<String, byte[]> readCells(HTMCover cover) throws IOException {
+
+    Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+
+    int deepest = Math.min(max_depth, cover.getDepth());
+    for(int depth = 0; depth <= deepest; ++depth) {
+
+        HTMCover ranges = cover.atDepth(depth);
+        for(int r=0; r< ranges.getRangeCount(); ++r) {
+            long high = ranges.getHigh(r);
+
+            /************************************
+            * find the first entry in the range *
+            ************************************/
+            int first = Arrays.binarySearch(cell_ids, ranges.getLow(r));
+            if(first < 0) first = -first - 1;
+            else while(first > 0 && cell_ids[first-1] == cell_ids[first]) --first;
+
+            /**********************************************
+            * gather runs of entries which are next to
+            * each other in the file and read each run
+            **********************************************/
+            while(first < cell_ids.length && cell_ids[first] < high) {
+                int last = first;
+                long start = offsets[cell_entries[first]];
+                long end = start + lengths[cell_entries[first]];
+                while(last+1 < cell_ids.length && cell_ids[last+1] < high) {
+                    int next = cell_entries[last+1];
+                    if(offsets[next] != end ||
+                       end + lengths[next] - start > MAX_RUN) break;
+
+                    end += lengths[next];
+                    ++last;
+                }
+
+                readRun(first, last, start, end, entries);
+                first = last + 1;
+            }
+
+        } // end of loop over ranges
+    } // end of loop over depths
+
+    return entries;
+
+} // end of readCells method
+
+/**************************************************************************
+* Read a run of cell entries which are stored next to each other.
+* @param first The position in the cell order of the first entry.
+* @param last The position in the cell order of the last entry.
+* @param start The offset of the first entry in the file.
+* @param end The offset just past the last entry.
+* @param entries Where to put the contents of each entry.
+**************************************************************************/
+private void readRun(int first, int last, long start, long end,
+                     Map<String, byte[]> entries) throws IOException {
+
+    ByteBuffer buffer = ByteBuffer.allocate((int)(end - start));
+    readFully(buffer, start);
+
+    byte[] run = buffer.array();
+    for(int i=first; i<= last; ++i) {
+        int entry = cell_entries[i];
+        int from = (int)(offsets[entry] - start);
+        entries.put(names[entry],
+                    Arrays.copyOfRange(run, from, from + (int)lengths[entry]));
+    }
+
+} // end of readRun method
+
+/**************************************************************************
+* Close the underlying file. The archive can't be read after this.
+**************************************************************************/
+public synchronized void close() throws IOException {
+
+    closed = true;
+    channel.close();
+
+} // end of close method
+
+/**************************************************************************
+* Returns an open channel for the pack file. A thread which is
+* interrupted during a read closes the channel for every other thread,
+* so in that case we reopen it.
+**************************************************************************/
+private FileChannel getChannel() throws IOException {
+
+    FileChannel channel = this.channel;
+    if(channel.isOpen()) return channel;
+
+    synchronized(this) {
+        if(closed) throw new ClosedChannelException();
+
+        if(!this.channel.isOpen()) {
+            this.channel = new RandomAccessFile(file, "r").getChannel();
+        }
+
+        return this.channel;
+    }
+
+} // end of getChannel method
+
+/**************************************************************************
+* Fill a buffer starting at a given position in the file.
+* @throws EOFException if the file ends first.
+**************************************************************************/
+private void readFully(ByteBuffer buffer, long position) throws IOException {
+
+    while(buffer.hasRemaining()) {
+        int n;
+        try { n = getChannel().read(buffer, position); }
+        catch(AsynchronousCloseException e) {
+            /*****************************************
+            * another thread was interrupted, so try
+            * again unless we were interrupted too
+            *****************************************/
+            if(Thread.currentThread().isInterrupted() || closed) throw e;
+            continue;
+        }
+
+        if(n < 0) throw new EOFException("Truncated pack file "+file);
+        position += n;
+    }
+
+} // end of readFully method
+
+/**************************************************************************
+* Pack the files in a directory. Subdirectories are ignored. The pack
+* file may be in the directory being packed.
+* @param dir The directory to pack, typically a generated catalog.
+* @param file The pack file to create.
+* @throws IOException if there is a problem reading the files or
+*         writing the pack.
+**************************************************************************/
+public static void write(File dir, File file) throws IOException {
+
+    /*******************************
+    * find the files to pack, in
+    * the same order as the index
+    *******************************/
+    File[] list = dir.listFiles();
+    if(list == null) throw new IOException("Could not list "+dir);
+
+    SortedMap<String, File> files = new TreeMap<String, File>();
+    for(File entry : list) {
+        if(entry.isFile() && !entry.equals(file)) {
+            files.put(entry.getName(), entry);
+        }
+    }
+
+    /**********************************************
+    * build the index. We need its size before we
+    * can know where the first entry will be
+    **********************************************/
+    int index_size = 0;
+    for(String name : files.keySet()) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeUTF(name);
+        index_size += bytes.size() + 16;
+    }
+
+    ByteArrayOutputStream index_bytes = new ByteArrayOutputStream(index_size);
+    DataOutputStream index = new DataOutputStream(index_bytes);
+
+    /***********************************************
+    * lay out the entries which don't belong to a
+    * cell first, then the cells in ID order, and
+    * then their suffixed entries in the same order
+    ***********************************************/
+    List<String> order = new ArrayList<String>(files.keySet());
+    Collections.sort(order, new Comparator<String>() {
+        public int compare(String a, String b) {
+            int group_a = getGroup(a);
+            int group_b = getGroup(b);
+            if(group_a != group_b) return group_a - group_b;
+
+            long id_a = getCellID(a);
+            long id_b = getCellID(b);
+            if(id_a != id_b) return id_a < id_b ? -1 : 1;
+            return a.compareTo(b);
+        }
+    });
+
+    long position = HEADER_SIZE + index_size;
+    long[] lengths = new long[order.size()];
+    Map<String, Long> offsets = new HashMap<String, Long>();
+    Map<String, Long> sizes = new HashMap<String, Long>();
+    int count = 0;
+    for(String name : order) {
+        long length = files.get(name).length();
+        offsets.put(name, position);
+        sizes.put(name, length);
+
+        lengths[count++] = length;
+        position += length;
+    }
+
+    for(String name : files.keySet()) {
+        index.writeUTF(name);
+        index.writeLong(offsets.get(name));
+        index.writeLong(sizes.get(name));
+    }
+
+    index.close();
+
+    /*********************************
+    * write the header and the index *
+    *********************************/
+    FileOutputStream stream = new FileOutputStream(file);
+    FileChannel channel = stream.getChannel();
+    try {
+        DataOutputStream out = new DataOutputStream(
+                               new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(files.size());
+        out.writeInt(index_size);
+        index_bytes.writeTo(out);
+        out.flush();
+
+        /***************************
+        * append each of the files *
+        ***************************/
+        count = 0;
+        for(String name : order) {
+            File entry = files.get(name);
+            FileChannel in = new FileInputStream(entry).getChannel();
+            try {
+                long size = lengths[count++];
+                if(in.size() != size) {
+                    throw new IOException(entry+" changed while packing");
+                }
+
+                long done = 0;
+                while(done < size) {
+                    done += in.transferTo(done, size - done, channel);
+                }
+            } finally {
+                in.close();
+            }
+
+        } // end of loop over files
+    } finally {
+        channel.close();
+    }
+
+} // end of write method
+
+/**************************************************************************
+* A stream reading one entry of the pack. Each stream has its own
+* position, so streams from different threads don't interfere.
+**************************************************************************/
+private class EntryInputStream extends InputStream {
+
+long position;
+long end;
+ByteBuffer buffer;
+
+/**************************************************************************
+*
+**************************************************************************/
+EntryInputStream(long position, long length) {
+
+    this.position = position;
+    this.end = position + length;
+
+    buffer = ByteBuffer.allocate((int)Math.min(length, BUFFER_SIZE));
+    buffer.limit(0);
+
+} // end of constructor
+
+/**************************************************************************
+* Read the next chunk of the entry into the buffer.
+* @return false if we are at the end of the entry.
+**************************************************************************/
+private boolean fill() throws IOException {
+
+    if(position >= end) return false;
+
+    buffer.clear();
+    buffer.limit((int)Math.min(buffer.capacity(), end - position));
+    readFully(buffer, position);
+    position += buffer.limit();
+    buffer.flip();
+
+    return true;
+
+} // end of fill method
+
+/**************************************************************************
+*
+**************************************************************************/
+public int read() throws IOException {
+
+    if(!buffer.hasRemaining() && !fill()) return -1;
+
+    return buffer.get() & 0xff;
+
+} // end of read method
+
+/**************************************************************************
+*
+**************************************************************************/
+public int read(byte[] bytes, int offset, int length) throws IOException {
+
+    if(length == 0) return 0;
+
+    if(!buffer.hasRemaining()) {
+        if(position >= end) return -1;
+
+        /**************************************
+        * large reads go straight to the caller
+        * without copying through the buffer
+        **************************************/
+        if(length >= buffer.capacity()) {
+            int n = (int)Math.min(length, end - position);
+            readFully(ByteBuffer.wrap(bytes, offset, n), position);
+            position += n;
+            return n;
+        }
+
+        fill();
+    }
+
+    int n = Math.min(length, buffer.remaining());
+    buffer.get(bytes, offset, n);
+    return n;
+
+} // end of read array method
+
+/**************************************************************************
+*
+**************************************************************************/
+public long skip(long n) throws IOException {
+
+    if(n <= 0) return 0;
+
+    long skipped = Math.min(n, buffer.remaining() + end - position);
+    if(skipped <= buffer.remaining()) {
+        buffer.position(buffer.position() + (int)skipped);
+    } else {
+        position += skipped - buffer.remaining();
+        buffer.limit(0);
+    }
+
+    return skipped;
+
+} // end of skip method
+
+/**************************************************************************
+*
+**************************************************************************/
+public int available() {
+
+    return (int)Math.min(Integer.MAX_VALUE,
+                         buffer.remaining() + end - position);
+
+} // end of available method
+
+} // end of EntryInputStream inner class
+
+} // end of PackArchive class
@@ -25,11 +25,19 @@ import java.io.*;
 * Represents a star catalog encoded in a plain ASCII text file with one
 * star per line in the file. This is a very common format for star catalogs,
 * despite FITS being a standard file format for astronomy.
+* <p>
+* If the source is created from an InputStream, lines are read as raw
+* bytes and split into fields with a {@link DelimitedLine}, and
+* subclasses parse them with {@link #parseLine(DelimitedLine)}. This
+* avoids creating Strings for fields which are never used.
 *************************************************************************/
 public abstract class ASCIISource implements CatalogSource {
 
 BufferedReader reader;
 
+ByteLineReader lines;
+DelimitedLine fields;
+
 /*************************************************************************
 * Create a new catalog which can be read from the given source.
 * @param reader The data source for this catalog.
@@ -40,6 +48,18 @@ public ASCIISource(BufferedReader reader) {
     
 } // end of constructor
 
+/*************************************************************************
+* Create a new catalog which is read as raw bytes.
+* @param in The data source for this catalog.
+* @param delimiter The character which separates the fields in each line.
+*************************************************************************/
+public ASCIISource(InputStream in, char delimiter) {
+
+    lines = new ByteLineReader(in);
+    fields = new DelimitedLine(delimiter);
+
+} // end of byte stream constructor
+
 /**************************************************************************
 *
 ***************************************************************************/
@@ -49,6 +69,19 @@ public final Star nextStar() throws IOException {
     * read lines until we find one with a star in it *
     *************************************************/
     while(true) {
+        if(lines != null) {
+            /******************************
+            * parse the line as raw bytes *
+            ******************************/
+            if(!lines.next()) return null;
+
+            fields.set(lines.getBytes(), 0, lines.getLength());
+            Star star = parseLine(fields);
+            if(star != null) return star;
+
+            continue;
+        }
+
         String line = reader.readLine();
         if(line == null) return null;
 
@@ -66,4 +99,24 @@ public final Star nextStar() throws IOException {
 ***************************************************************************/
 protected abstract Star parseLine(String line);
 
+/***************************************************************************
+* Extract the data for a star from a line which has been split into fields.
+* By default this converts the line to a String and calls
+* {@link #parseLine(String)}, but subclasses should override it to read
+* the fields directly.
+* @param fields The fields of a line from the data source.
+* @return the star parsed from this line or null, if this line should be skipped.
+***************************************************************************/
+protected Star parseLine(DelimitedLine fields) {
+
+    StringBuilder line = new StringBuilder();
+    for(int i=0; i< fields.getFieldCount(); ++i) {
+        if(i > 0) line.append((char)fields.delimiter);
+        line.append(fields.getString(i));
+    }
+
+    return parseLine(line.toString());
+
+} // end of parseLine from fields method
+
 } // end of ASCIISource class
@@ -0,0 +1,138 @@
+// Copyright 2012 Edward Alan Pier
+//
+// This file is part of eap.sky
+// 
+// eap.sky is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// eap.sky is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with eap.sky.  If not, see <http://www.gnu.org/licenses/>.
+
+package eap.sky.stars.ingest;
+
+import java.io.*;
+
+/*************************************************************************
+* Reads lines of text from a stream as raw bytes, without decoding them
+* into Strings. The same buffer is reused for every line, so reading a
+* file does not create any objects once the buffer has grown to the
+* length of the longest line. This is meant for ASCII catalogs, which are
+* then parsed with a {@link DelimitedLine}.
+*************************************************************************/
+public class ByteLineReader {
+
+InputStream in;
+
+byte[] buffer;
+int start;
+int end;
+
+byte[] line;
+int length;
+
+boolean eof;
+
+/*************************************************************************
+* Create a new reader.
+* @param in The stream to read. This does not need to be buffered.
+*************************************************************************/
+public ByteLineReader(InputStream in) {
+
+    this.in = in;
+
+    buffer = new byte[1<<16];
+    line = new byte[256];
+
+} // end of constructor
+
+/*************************************************************************
+* Read the next line. The line terminator, either a new line or a carriage
+* return and a new line, is not included.
+* @return false if there are no more lines.
+*************************************************************************/
+public boolean next() throws IOException {
+
+    length = 0;
+    boolean found = false;
+
+    while(true) {
+        /*******************************
+        * look for the end of the line *
+        *******************************/
+        int i = start;
+        while(i < end && buffer[i] != '\n') ++i;
+
+        append(start, i);
+
+        if(i < end) {
+            start = i+1;
+            found = true;
+            break;
+        }
+
+        /********************
+        * refill the buffer *
+        ********************/
+        start = 0;
+        end = eof ? -1 : in.read(buffer);
+        if(end < 0) {
+            end = 0;
+            eof = true;
+            break;
+        }
+
+    } // end of loop over buffer fills
+
+    if(!found && length == 0) return false;
+
+    if(length > 0 && line[length-1] == '\r') --length;
+
+    return true;
+
+} // end of next method
+
+/*************************************************************************
+* Copy part of the buffer to the end of the line.
+*************************************************************************/
+private void append(int from, int to) {
+
+    int n = to - from;
+    if(n <= 0) return;
+
+    if(length + n > line.length) {
+        byte[] bigger = new byte[Math.max(2*line.length, length + n)];
+        System.arraycopy(line, 0, bigger, 0, length);
+        line = bigger;
+    }
+
+    System.arraycopy(buffer, from, line, length, n);
+    length += n;
+
+} // end of append method
+
+/*************************************************************************
+* Returns the buffer holding the current line. The line starts at the
+* beginning of the buffer. The contents change when you read the next line.
+* @return The line buffer.
+*************************************************************************/
+public byte[] getBytes() { return line; }
+
+/*************************************************************************
+* Returns the length of the current line.
+* @return The number of bytes in the current line.
+*************************************************************************/
+public int getLength() { return length; }
+
+/*************************************************************************
+* Close the underlying stream.
+*************************************************************************/
+public void close() throws IOException { in.close(); }
+
+} // end of ByteLineReader class
@@ -98,10 +98,12 @@ private void flush() throws IOException {
     if(flushed)    throw(new IllegalStateException("Already flushed"));
     if(isClosed()) throw(new IllegalStateException("Already closed" ));
 
-    /*************************
-    * create the child cells *
-    *************************/
-    initChildren();
+    /**************************************************
+    * create the child cells. Going through hasChildren
+    * makes sure they are only created once, otherwise
+    * closeAll would find a second, empty set of them
+    **************************************************/
+    hasChildren();
 
     /*************************************
     * copy all our stars to our children *
@@ -139,7 +141,12 @@ protected final void doClose() throws IOException {
     ************************************************/
     if(have_stars) save();
     else {
+        /********************************************
+        * an empty cell has no children either, so
+        * stop closeAll from descending any further
+        ********************************************/
         abortSave();
+        markAsLeaf();
         return;
     }
 
@@ -183,6 +190,90 @@ protected abstract void save() throws IOException;
 *********************************************************************/
 protected abstract void abortSave() throws IOException;
 
+/*********************************************************************
+* Read back all the stars in this cell's file. The file may have been
+* written as a whole or built up a star at a time.
+* @return A new list of the stars in the file.
+* @throws IOException If there is trouble reading the file.
+*********************************************************************/
+protected List<Star> readFile() throws IOException {
+
+    List<Star> list = new ArrayList<Star>(getListSize());
+
+    InputStream in = new FileInputStream(getFile());
+    try { generator.getStarFormat().read(in, list); }
+    finally { in.close(); }
+
+    return list;
+
+} // end of readFile method
+
+/*********************************************************************
+* Write the finished contents of this cell to its file. If the star
+* format stores names separately, they are written to a second file
+* named after the cell with {@link StarFormat#NAMES_SUFFIX} appended.
+* @param stars The stars in this cell, brightest first.
+* @throws IOException If there is trouble writing the files.
+*********************************************************************/
+protected void writeCell(List<Star> stars) throws IOException {
+
+    StarFormat format = generator.getStarFormat();
+
+    DataOutputStream out = new DataOutputStream(
+                           new BufferedOutputStream(
+                           new FileOutputStream(getFile())));
+
+    if(format.hasSeparateNames()) {
+        format.writeWithoutNames(stars, out);
+
+        File file = new File(getFile().getPath()+StarFormat.NAMES_SUFFIX);
+        DataOutputStream names = new DataOutputStream(
+                                 new BufferedOutputStream(
+                                 new FileOutputStream(file)));
+        CellNames.write(stars, names);
+        names.close();
+
+    } else {
+        format.write(stars, out);
+    }
+
+    out.close();
+
+} // end of writeCell method
+
+/*********************************************************************
+* If the star format packs a cell more tightly when it is written as a
+* whole, or stores names separately, rewrite this cell's file, which was
+* built up a star at a time, as one piece.
+* @throws IOException If there is trouble reading or writing the file.
+*********************************************************************/
+protected void compactFile() throws IOException {
+
+    StarFormat format = generator.getStarFormat();
+    if(!format.isCellEncoded() && !format.hasSeparateNames()) return;
+
+    writeCell(readFile());
+
+} // end of compactFile method
+
+/*********************************************************************
+* Write the stars held in memory to disk to free memory. This is called
+* by the generator's {@link SpillManager} when it is over budget. Cells
+* which don't hold their stars in memory can ignore it, so the default
+* does nothing.
+* @throws IOException If there is trouble writing the stars.
+*********************************************************************/
+protected void spill() throws IOException {}
+
+/*********************************************************************
+* Returns the estimated size of the stars this cell holds in memory.
+* The generator's {@link SpillManager} calls this while holding its own
+* lock, so it must not wait for the lock on this cell.
+* @return The size in bytes, or -1 if the stars are not in memory. The
+* default returns -1.
+*********************************************************************/
+protected long getMemoryBytes() { return -1L; }
+
 /***********************************************************************
 * Add a star to this cell. If the resulting number of stars in this cell
 * exceeds the maximum that it can hold, then this star will be added
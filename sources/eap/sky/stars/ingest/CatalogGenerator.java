@@ -41,6 +41,8 @@ CellPropagator propagator;
 
 CellInfoTable cell_info;
 
+SpillManager spill_manager;
+StreamCache streams;
 
 
 /************************************************************************
@@ -92,6 +94,7 @@ public void generate() throws IOException {
     ********/
     cell_info = new CellInfoTable();
     binStars();
+    if(streams != null) streams.closeAll();
 
     /******************
     * cell info table *
@@ -101,6 +104,9 @@ public void generate() throws IOException {
 //     info.add(new DirectoryArchive(dir), format, band, root);
     cell_info.write(new File(dir, "cell_info"));
 
+    if(spill_manager != null) System.out.println(spill_manager);
+    if(streams       != null) System.out.println(streams);
+
 } // end of generate method
 
 /************************************************************************
@@ -138,4 +144,56 @@ public CellInfoTable getCellInfoTable() { return cell_info; }
 ************************************************************************/
 public Band getSortBand() { return band; }
 
+/************************************************************************
+* Returns the manager which limits the memory used by output cells
+* which hold their stars in memory. A manager with the default budget
+* is created the first time this is called.
+* @return The spill manager shared by all the cells of this generator.
+************************************************************************/
+public synchronized SpillManager getSpillManager() {
+
+    if(spill_manager == null) {
+        spill_manager = new SpillManager(SpillManager.DEFAULT_BUDGET);
+    }
+
+    return spill_manager;
+
+} // end of getSpillManager method
+
+/************************************************************************
+* Replace the spill manager. This should be done before generating
+* the catalog.
+* @param spill_manager The new manager.
+************************************************************************/
+public synchronized void setSpillManager(SpillManager spill_manager) {
+
+    this.spill_manager = spill_manager;
+
+} // end of setSpillManager method
+
+/************************************************************************
+* Returns the pool of streams used by output cells which append their
+* stars to files. A pool with the default limit is created the first
+* time this is called.
+* @return The stream pool shared by all the cells of this generator.
+************************************************************************/
+public synchronized StreamCache getStreamCache() {
+
+    if(streams == null) streams = new StreamCache();
+
+    return streams;
+
+} // end of getStreamCache method
+
+/************************************************************************
+* Replace the stream pool. This should be done before generating
+* the catalog.
+* @param streams The new pool.
+************************************************************************/
+public synchronized void setStreamCache(StreamCache streams) {
+
+    this.streams = streams;
+
+} // end of setStreamCache method
+
 } // end of CatalogGenerator class
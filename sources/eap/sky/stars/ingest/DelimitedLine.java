@@ -0,0 +1,462 @@
+// Copyright 2012 Edward Alan Pier
+//
+// This file is part of eap.sky
+// 
+// eap.sky is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// eap.sky is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with eap.sky.  If not, see <http://www.gnu.org/licenses/>.
+
+package eap.sky.stars.ingest;
+
+import java.nio.charset.*;
+
+/*************************************************************************
+* Parses a line of text made of fields separated by a delimiter, working
+* directly on the bytes of the line. Setting a line only records where
+* each field starts and ends. Numbers are then parsed from the bytes of
+* just the fields you ask for, so the fields you skip cost almost nothing
+* and no Strings are created except by {@link #getString(int)}.
+* <p>
+* Every delimiter ends a field, so two delimiters in a row make an empty
+* field. Space around each field is ignored. A field which is empty or
+* holds the database null marker <code>\N</code> is null.
+*************************************************************************/
+public class DelimitedLine {
+
+/*************************************************************************
+* Exact powers of ten which can be represented as doubles.
+*************************************************************************/
+private static final double[] POWERS = {
+    1e0,  1e1,  1e2,  1e3,  1e4,  1e5,  1e6,  1e7,  1e8,  1e9,  1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+};
+
+/*************************************************************************
+* Largest mantissa which can be represented exactly as a double.
+*************************************************************************/
+private static final long MAX_EXACT = 1L<<53;
+
+/*************************************************************************
+* Exact powers of ten which can be represented as floats.
+*************************************************************************/
+private static final float[] FLOAT_POWERS = {
+    1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f
+};
+
+/*************************************************************************
+* Largest mantissa which can be represented exactly as a float.
+*************************************************************************/
+private static final long MAX_EXACT_FLOAT = 1L<<24;
+
+byte delimiter;
+
+byte[] data;
+
+int nfields;
+int[] starts;
+int[] ends;
+
+int parsed;
+
+long mantissa;
+int scale;
+boolean negative;
+
+/*************************************************************************
+* Create a new parser.
+* @param delimiter The character separating the fields.
+*************************************************************************/
+public DelimitedLine(char delimiter) {
+
+    this.delimiter = (byte)delimiter;
+
+    starts = new int[32];
+    ends = new int[32];
+
+} // end of constructor
+
+/*************************************************************************
+* Set the line to parse. The parser refers to the given array, so you
+* should not change it while you are still reading fields from this line.
+* @param data An array holding the line.
+* @param offset The index of the first byte of the line.
+* @param length The number of bytes in the line.
+*************************************************************************/
+public void set(byte[] data, int offset, int length) {
+
+    this.data = data;
+
+    nfields = 0;
+    int end = offset + length;
+    int start = offset;
+    for(int i=offset; i<= end; ++i) {
+        if(i == end || data[i] == delimiter) {
+            addField(start, i);
+            start = i+1;
+        }
+    }
+
+} // end of set method
+
+/*************************************************************************
+* Set the line to parse from a String. This is a convenience for code
+* which already has the line as a String, and is not allocation free.
+* @param line The line to parse.
+*************************************************************************/
+public void set(String line) {
+
+    byte[] bytes = new byte[line.length()];
+    for(int i=0; i< bytes.length; ++i) bytes[i] = (byte)line.charAt(i);
+
+    set(bytes, 0, bytes.length);
+
+} // end of set from a String method
+
+/*************************************************************************
+* Record the boundaries of a field, trimming space from each end.
+*************************************************************************/
+private void addField(int start, int end) {
+
+    while(start < end && (data[start  ] & 0xff) <= ' ') ++start;
+    while(end > start && (data[end - 1] & 0xff) <= ' ') --end;
+
+    if(nfields == starts.length) {
+        int[] bigger_starts = new int[2*nfields];
+        int[] bigger_ends   = new int[2*nfields];
+
+        System.arraycopy(starts, 0, bigger_starts, 0, nfields);
+        System.arraycopy(ends,   0, bigger_ends,   0, nfields);
+
+        starts = bigger_starts;
+        ends   = bigger_ends;
+    }
+
+    starts[nfields] = start;
+    ends[nfields] = end;
+    ++nfields;
+
+} // end of addField method
+
+/*************************************************************************
+* Returns the number of fields in the line.
+* @return The number of fields.
+*************************************************************************/
+public int getFieldCount() { return nfields; }
+
+/*************************************************************************
+* Returns true if a field is empty, apart from space.
+* @param field The index of the field, starting from zero.
+* @return true if the field is empty.
+*************************************************************************/
+public boolean isEmpty(int field) {
+
+    check(field);
+    return starts[field] == ends[field];
+
+} // end of isEmpty method
+
+/*************************************************************************
+* Returns true if a field is empty or holds the null marker <code>\N</code>.
+* @param field The index of the field, starting from zero.
+* @return true if the field has no value.
+*************************************************************************/
+public boolean isNull(int field) {
+
+    check(field);
+
+    int start = starts[field];
+    int length = ends[field] - start;
+
+    return length == 0 ||
+           (length == 2 && data[start] == '\\' && data[start+1] == 'N');
+
+} // end of isNull method
+
+/*************************************************************************
+* Parse a field as a double. Plain decimal numbers with up to 18
+* significant digits are converted directly from the bytes, which gives
+* the same result as {@link Double#parseDouble(String)}. Anything else is
+* passed to that method.
+* @param field The index of the field, starting from zero.
+* @return The value of the field.
+* @throws NumberFormatException if the field is not a number.
+*************************************************************************/
+public double getDouble(int field) {
+
+    check(field);
+
+    int start = starts[field];
+    int end = ends[field];
+
+    /**************************************************
+    * a single multiply or divide of two exact values
+    * is correctly rounded
+    **************************************************/
+    if(!parseDecimal(start, end) ||
+       mantissa > MAX_EXACT || scale < -22 || scale > 22) {
+        return slowDouble(start, end);
+    }
+
+    double value = mantissa;
+    if(scale < 0) value /= POWERS[-scale];
+    else          value *= POWERS[ scale];
+
+    return negative ? -value : value;
+
+} // end of getDouble method
+
+/*************************************************************************
+* Scan a plain decimal number, leaving its digits as an integer in the
+* mantissa field, the power of ten to multiply them by in the scale
+* field, and its sign in the negative field.
+* @return false if this isn't a plain decimal number with up to 18
+* significant digits.
+*************************************************************************/
+private boolean parseDecimal(int start, int end) {
+
+    int i = start;
+
+    /*******
+    * sign *
+    *******/
+    negative = false;
+    if(i < end && (data[i] == '-' || data[i] == '+')) {
+        negative = data[i] == '-';
+        ++i;
+    }
+
+    /**********************************************
+    * digits before and after the decimal point.
+    * Leading zeros are not significant
+    **********************************************/
+    mantissa = 0;
+    scale = 0;
+    int significant = 0;
+    boolean any = false;
+
+    for(; i < end && data[i] >= '0' && data[i] <= '9'; ++i) {
+        if(significant == 18) return false;
+        mantissa = mantissa*10 + (data[i] - '0');
+        if(mantissa != 0) ++significant;
+        any = true;
+    }
+
+    if(i < end && data[i] == '.') {
+        for(++i; i < end && data[i] >= '0' && data[i] <= '9'; ++i) {
+            if(significant == 18) return false;
+            mantissa = mantissa*10 + (data[i] - '0');
+            if(mantissa != 0) ++significant;
+            --scale;
+            any = true;
+        }
+    }
+
+    if(!any) return false;
+
+    /***********
+    * exponent *
+    ***********/
+    if(i < end && (data[i] == 'e' || data[i] == 'E')) {
+        ++i;
+
+        boolean negative_exponent = false;
+        if(i < end && (data[i] == '-' || data[i] == '+')) {
+            negative_exponent = data[i] == '-';
+            ++i;
+        }
+
+        if(i == end) return false;
+
+        int exponent = 0;
+        for(; i < end && data[i] >= '0' && data[i] <= '9'; ++i) {
+            if(exponent > 1000) return false;
+            exponent = exponent*10 + (data[i] - '0');
+        }
+
+        scale += negative_exponent ? -exponent : exponent;
+    }
+
+    /**************************************************
+    * anything left over means this isn't a plain
+    * decimal number
+    **************************************************/
+    return i == end;
+
+} // end of parseDecimal method
+
+/*************************************************************************
+* Parse a number which getDouble can't handle directly.
+*************************************************************************/
+private double slowDouble(int start, int end) {
+
+    return Double.parseDouble(new String(data, start, end - start,
+                                        StandardCharsets.ISO_8859_1));
+
+} // end of slowDouble method
+
+/*************************************************************************
+* Parse a field as a float. This parses the float directly rather than
+* rounding a double, which could round twice. Plain decimal numbers whose
+* digits fit exactly in a float and whose exponents are small are converted
+* directly from the bytes, which gives the same result as
+* {@link Float#parseFloat(String)}. Anything else is passed to that
+* method.
+* @param field The index of the field, starting from zero.
+* @return The value of the field.
+* @throws NumberFormatException if the field is not a number.
+* @see #getDouble(int)
+*************************************************************************/
+public float getFloat(int field) {
+
+    check(field);
+
+    int start = starts[field];
+    int end = ends[field];
+
+    if(!parseDecimal(start, end) ||
+       mantissa > MAX_EXACT_FLOAT || scale < -10 || scale > 10) {
+        return slowFloat(start, end);
+    }
+
+    float value = mantissa;
+    if(scale < 0) value /= FLOAT_POWERS[-scale];
+    else          value *= FLOAT_POWERS[ scale];
+
+    return negative ? -value : value;
+
+} // end of getFloat method
+
+/*************************************************************************
+* Parse a number which getFloat can't handle directly.
+*************************************************************************/
+private float slowFloat(int start, int end) {
+
+    return Float.parseFloat(new String(data, start, end - start,
+                                      StandardCharsets.ISO_8859_1));
+
+} // end of slowFloat method
+
+/*************************************************************************
+* Parse a field as an integer.
+* @param field The index of the field, starting from zero.
+* @return The value of the field.
+* @throws NumberFormatException if the field is not an integer.
+*************************************************************************/
+public int getInt(int field) {
+
+    check(field);
+
+    int start = starts[field];
+    int end = ends[field];
+
+    if(parseInt(start, end) != end) {
+        throw new NumberFormatException("Not an integer: "+
+                                        getString(field));
+    }
+
+    return parsed;
+
+} // end of getInt method
+
+/*************************************************************************
+* Parse a list of integers separated by space from a single field,
+* such as the three parts of a Tycho identifier.
+* @param field The index of the field, starting from zero.
+* @param values An array to fill with the integers.
+* @return The number of integers found. This is at most the length of the
+*         array.
+* @throws NumberFormatException if the field holds something other than
+*         integers and space.
+*************************************************************************/
+public int getInts(int field, int[] values) {
+
+    check(field);
+
+    int end = ends[field];
+
+    int count = 0;
+    for(int i = starts[field]; i < end && count < values.length; ++count) {
+        i = parseInt(i, end);
+        values[count] = parsed;
+
+        if(i < end && (data[i] & 0xff) > ' ') {
+            throw new NumberFormatException("Not an integer list: "+
+                                            getString(field));
+        }
+
+        while(i < end && (data[i] & 0xff) <= ' ') ++i;
+    }
+
+    return count;
+
+} // end of getInts method
+
+/*************************************************************************
+* Parse an integer starting at the given position, leaving the value in
+* the parsed field.
+* @return The position after the last digit.
+*************************************************************************/
+private int parseInt(int i, int end) {
+
+    boolean negative = false;
+    if(i < end && (data[i] == '-' || data[i] == '+')) {
+        negative = data[i] == '-';
+        ++i;
+    }
+
+    int first = i;
+    long value = 0;
+    for(; i < end && data[i] >= '0' && data[i] <= '9'; ++i) {
+        value = value*10 + (data[i] - '0');
+        if(value > Integer.MAX_VALUE + 1L) {
+            throw new NumberFormatException("Integer too large");
+        }
+    }
+
+    if(i == first) throw new NumberFormatException("Missing integer");
+
+    if(negative) value = -value;
+    if(value > Integer.MAX_VALUE) {
+        throw new NumberFormatException("Integer too large");
+    }
+
+    parsed = (int)value;
+    return i;
+
+} // end of parseInt method
+
+/*************************************************************************
+* Returns the contents of a field, without the surrounding space.
+* @param field The index of the field, starting from zero.
+* @return The field as a String.
+*************************************************************************/
+public String getString(int field) {
+
+    check(field);
+    return new String(data, starts[field], ends[field] - starts[field],
+                      StandardCharsets.ISO_8859_1);
+
+} // end of getString method
+
+/*************************************************************************
+* Make sure a field exists.
+*************************************************************************/
+private void check(int field) {
+
+    if(field < 0 || field >= nfields) {
+        throw new IndexOutOfBoundsException("No field "+field+" in line with "+
+                                            nfields+" fields");
+    }
+
+} // end of check method
+
+} // end of DelimitedLine class
@@ -20,16 +20,23 @@ package eap.sky.stars.ingest;
 import eap.sky.stars.*;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 /**************************************************************************
-*
+* Generates a catalog by cascading stars through a limited number of
+* memory cells. Stars which fall below the limit are written to dead end
+* files, and each dead end is later cascaded into its own subtree.
+* The subtrees don't share any cells, so with more than one thread they
+* are generated in parallel in a fork-join pool.
 **************************************************************************/
 public class DepthFirstGenerator extends CatalogGenerator {
 
 CatalogSource source;
 Cell root;
 
+int nthreads;
+
 /************************************************************************
 *
 ************************************************************************/
@@ -43,15 +50,35 @@ public DepthFirstGenerator(CatalogSource source, File dir, int max_stars,
     this.source = source;
     this.root = root;
 
+    nthreads = 1;
+
 } // end of constructor
 
+/************************************************************************
+* Set the number of threads used to generate dead end subtrees.
+* The initial pass over the source always uses one thread.
+* Each thread holds its own set of memory cells, so memory use grows
+* with the number of threads.
+* @param nthreads The number of threads. One, the default, means
+* generate the subtrees one after another in this thread.
+************************************************************************/
+public void setThreadCount(int nthreads) {
+
+    if(nthreads < 1) {
+        throw new IllegalArgumentException("Invalid thread count "+nthreads);
+    }
+
+    this.nthreads = nthreads;
+
+} // end of setThreadCount method
+
 /************************************************************************
 *
 ************************************************************************/
 protected void binStars() throws IOException {
 
-
-    binStars(source, root);
+    if(nthreads > 1) binStarsInParallel();
+    else             binStars(source, root);
    // binDeadEnds(root);
 
 } // end of binStars method
@@ -61,6 +88,23 @@ protected void binStars() throws IOException {
 ************************************************************************/
 protected void binStars(CatalogSource source, Cell cell) throws IOException {
 
+    binCell(source, cell);
+
+    /******************************************
+    * now recursively propagate the dead ends *
+    ******************************************/
+    binDeadEnds(cell);
+
+} // end of binStars method
+
+/************************************************************************
+* Cascade the stars from a source into a cell and its descendants,
+* leaving dead end files for the cells below the propagator's limit.
+* @param source The stars to cascade.
+* @param cell The tessellation cell containing all the stars in the source.
+************************************************************************/
+private void binCell(CatalogSource source, Cell cell) throws IOException {
+
     ((LimitedDepthPropagator)propagator).reset();
 
     OutputCell root = propagator.createRoot(this, cell);
@@ -93,12 +137,7 @@ protected void binStars(CatalogSource source, Cell cell) throws IOException {
     ***************************************************/
     root = null;
 
-    /******************************************
-    * now recursively propagate the dead ends *
-    ******************************************/
-    binDeadEnds(cell);
-
-} // end of binStars method
+} // end of binCell method
 
 /************************************************************************
 *
@@ -139,4 +178,118 @@ private void binDeadEnds(Cell cell) throws IOException {
 
 } // end of binCells method
 
+/************************************************************************
+* Find the cells under a given cell which have dead end files waiting
+* to be cascaded. This searches the same way as {@link #binDeadEnds(Cell)},
+* but collects the cells instead of binning them.
+* @param cell The cell to search under.
+* @param list The list to which to add the cells with dead ends.
+************************************************************************/
+private void findDeadEnds(Cell cell, List<Cell> list) {
+
+    File file = new File(dir, cell.getName());
+    if(file.exists()) {
+        for(Cell child : new ArrayList<Cell>(cell.getChildren())) {
+            findDeadEnds(child, list);
+        }
+
+        return;
+    }
+
+    file = new File(dir, cell.getName()+DeadEndCell.SUFFIX);
+    if(file.exists()) list.add(cell);
+
+} // end of findDeadEnds method
+
+/************************************************************************
+* Cascade the source in this thread, and then generate the dead end
+* subtrees in a fork-join pool.
+************************************************************************/
+private void binStarsInParallel() throws IOException {
+
+    binCell(source, root);
+
+    ForkJoinPool pool = new ForkJoinPool(nthreads);
+    try { pool.invoke(new SubtreeTask(root, false)); }
+    catch(RuntimeException e) {
+        /**********************************************
+        * unwrap any I/O error thrown by a subtree.
+        * The pool may wrap the task's exception in
+        * another one, so look down the cause chain
+        **********************************************/
+        for(Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if(cause instanceof IOException) throw (IOException)cause;
+        }
+
+        throw e;
+
+    } finally {
+        pool.shutdown();
+    }
+
+} // end of binStarsInParallel method
+
+/************************************************************************
+* A fork-join task which cascades the dead end file of a cell, and then
+* forks a task for each dead end this leaves under the cell.
+* Each task runs its own cascade from start to finish before forking,
+* so the per-thread state of the {@link LimitedDepthPropagator} is never
+* shared between two cascades.
+************************************************************************/
+private class SubtreeTask extends RecursiveAction {
+
+private static final long serialVersionUID = 1L;
+
+Cell cell;
+boolean dead_end;
+
+/************************************************************************
+* @param cell The cell to generate.
+* @param dead_end true if the cell has a dead end file to cascade,
+* false if the cell has already been generated and we only need to
+* look for dead ends under it.
+************************************************************************/
+public SubtreeTask(Cell cell, boolean dead_end) {
+
+    this.cell = cell;
+    this.dead_end = dead_end;
+
+} // end of constructor
+
+/************************************************************************
+*
+************************************************************************/
+protected void compute() {
+
+    try {
+        if(dead_end) {
+            /*********************
+            * rebin the dead end *
+            *********************/
+            System.out.println(cell.getName());
+            File file = new File(dir, cell.getName()+DeadEndCell.SUFFIX);
+            binCell(new NativeSource(file, format), cell);
+            file.delete();
+        }
+
+        /**************************************
+        * generate the subtrees under us
+        * which the cascade left as dead ends
+        **************************************/
+        List<Cell> cells = new ArrayList<Cell>();
+        findDeadEnds(cell, cells);
+
+        List<SubtreeTask> tasks = new ArrayList<SubtreeTask>(cells.size());
+        for(Cell child : cells) tasks.add(new SubtreeTask(child, true));
+
+        invokeAll(tasks);
+
+    } catch(IOException e) {
+        throw new UncheckedIOException(e);
+    }
+
+} // end of compute method
+
+} // end of SubtreeTask inner class
+
 } // end of DepthFirstGenerator class
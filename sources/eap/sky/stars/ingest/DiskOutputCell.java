@@ -23,7 +23,9 @@ import java.util.*;
 import java.io.*;
 
 /********************************************************************
-*
+* An output cell which keeps its stars in a file. Stars are appended
+* through the generator's {@link StreamCache}, so the file is only
+* opened and closed when the pool runs short of streams.
 ********************************************************************/
 public class DiskOutputCell extends CascadeOutputCell {
 
@@ -31,9 +33,6 @@ private static int instances =0;
 private static int nclosed = 0;
 
 int count;
-DataOutputStream out;
-
-boolean keep_open;
 
 /*********************************************************************
 *
@@ -55,18 +54,8 @@ public DiskOutputCell(CatalogGenerator generator, Cell cell) {
 *********************************************************************/
 protected List<Star> getList() throws IOException {
 
-    if(out != null) out.flush();
-
-    NativeSource source = new NativeSource(getFile(),
-                                           generator.getStarFormat());
-
-    List<Star> list = new ArrayList<Star>(count);
-    Star star;
-    while((star = source.nextStar()) != null) {
-        list.add(star);
-    }
-
-    return list;
+    generator.getStreamCache().flush(getFile());
+    return readFile();
 
 } // end of getList method
 
@@ -75,20 +64,16 @@ protected List<Star> getList() throws IOException {
 *********************************************************************/
 protected void addToList(Star star) throws IOException {
 
-    ++count;
-
-    if(out == null) {
-        out = new DataOutputStream(
-            new FileOutputStream(getFile(), !keep_open));
+    /***********************************************
+    * the pool appends, so get rid of any leftover
+    * file from an earlier run before the first star
+    ***********************************************/
+    if(count == 0) getFile().delete();
 
-    }
-
-    generator.getStarFormat().write(star, out);
+    ++count;
 
-    if(!keep_open) {
-        out.close();
-        out = null;
-    }
+    generator.getStreamCache().write(getFile(), star,
+                                     generator.getStarFormat());
 
 } // end of addToList method
 
@@ -102,8 +87,8 @@ protected int getListSize() { return count; }
 *********************************************************************/
 protected void save() throws IOException {
 
-    if(keep_open) out.close();
-    out = null;
+    generator.getStreamCache().close(getFile());
+    compactFile();
 
     ++nclosed;
 
@@ -115,9 +100,9 @@ protected void save() throws IOException {
 *********************************************************************/
 protected void abortSave() throws IOException {
 
+    generator.getStreamCache().close(getFile());
     getFile().delete();
 
-    out = null;
     ++nclosed;
 
 } // end of abortSave method
@@ -20,6 +20,7 @@ package eap.sky.stars.ingest;
 import eap.sky.stars.*;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.text.*;
 import java.io.*;
 
@@ -28,6 +29,21 @@ import java.io.*;
 *********************************************************************/
 public class DiskSorter {
 
+/*********************************************************************
+* Number of stars handed to a worker thread at a time.
+*********************************************************************/
+private static final int BATCH_SIZE = 4096;
+
+/*********************************************************************
+* A worker writes a bin's buffer to its file when it gets this big.
+*********************************************************************/
+private static final int CHUNK_SIZE = 256*1024;
+
+/*********************************************************************
+* A worker writes all its buffers when together they get this big.
+*********************************************************************/
+private static final long WORKER_BUFFER_SIZE = 16L*1024L*1024L;
+
 CatalogSource source;
 File dir;
 Band band;
@@ -88,13 +104,140 @@ public void binStars() throws IOException {
 
 
 
+/*********************************************************************
+* Sort the stars into bins using several threads. The stars are read
+* from the source on the calling thread and handed to the workers in
+* batches. Each worker encodes its stars into a buffer for each bin, and
+* appends a buffer to the bin file when it gets large. The bin files
+* hold the same stars as with {@link #binStars()}, though stars within
+* a bin may be in a different order. That doesn't matter, since each
+* bin is sorted when it is read back.
+* @param nthreads The number of worker threads. If this is one or less,
+*        this is the same as {@link #binStars()}.
+*********************************************************************/
+public void binStars(int nthreads) throws IOException {
+
+    if(nthreads <= 1) {
+        binStars();
+        return;
+    }
+
+    BlockingQueue<List<Star>> queue =
+                                 new ArrayBlockingQueue<List<Star>>(2*nthreads);
+
+    ExecutorService pool = Executors.newFixedThreadPool(nthreads);
+    List<Future<Object>> workers = new ArrayList<Future<Object>>();
+    for(int i=0; i< nthreads; ++i) {
+        workers.add(pool.submit(new Binner(queue)));
+    }
+
+    boolean finished = false;
+    try {
+        /****************************************************
+        * read the stars and pass them to the workers in
+        * batches
+        ****************************************************/
+        List<Star> batch = new ArrayList<Star>(BATCH_SIZE);
+        Star star;
+        while((star=source.nextStar())!=null) {
+
+            batch.add(star);
+            if(batch.size() == BATCH_SIZE) {
+                put(queue, batch, workers);
+                batch = new ArrayList<Star>(BATCH_SIZE);
+            }
+
+        } // end of loop over stars
+
+        if(batch.size() > 0) put(queue, batch, workers);
+
+        /*********************************************
+        * an empty batch tells a worker to finish up *
+        *********************************************/
+        for(int i=0; i< nthreads; ++i) {
+            put(queue, new ArrayList<Star>(), workers);
+        }
+
+        /*********************************
+        * wait for the workers to finish *
+        *********************************/
+        for(Future<Object> worker : workers) finish(worker);
+        finished = true;
+
+    } finally {
+        /*************************************************
+        * stop the workers and close the bin files even
+        * if we failed, but don't let an error closing
+        * them hide the one that stopped us
+        *************************************************/
+        pool.shutdownNow();
+        if(finished) close();
+        else {
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                close();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch(IOException e) {}
+        }
+    }
+
+} // end of parallel binStars method
+
+/*********************************************************************
+* Hand a batch of stars to the workers, checking that they are all
+* still running while we wait for room in the queue.
+*********************************************************************/
+private void put(BlockingQueue<List<Star>> queue, List<Star> batch,
+                 List<Future<Object>> workers) throws IOException {
+
+    try {
+        while(!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            for(Future<Object> worker : workers) {
+                if(worker.isDone()) finish(worker);
+            }
+        }
+    } catch(InterruptedException e) {
+        throw (IOException)(new IOException("Interrupted while binning")
+                                           .initCause(e));
+    }
+
+} // end of put method
+
+/*********************************************************************
+* Wait for a worker to finish and pass on any exception it threw.
+* A worker should only finish early if it failed.
+*********************************************************************/
+private void finish(Future<Object> worker) throws IOException {
+
+    try { worker.get(); }
+    catch(InterruptedException e) {
+        throw (IOException)(new IOException("Interrupted while binning")
+                                           .initCause(e));
+    } catch(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if(cause instanceof IOException) throw (IOException)cause;
+        if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+        throw (IOException)(new IOException("Binning failed")
+                                           .initCause(cause));
+    }
+
+} // end of finish method
+
 /*********************************************************************
 *
 *********************************************************************/
 private OutputBinFile getBin(Star star) throws IOException {
 
     float mag = star.getMagnitude(band);
-    int index = layout.getBin(mag);
+    return getBin(layout.getBin(mag));
+
+} // end of getBin method
+
+/*********************************************************************
+* Returns the file for a bin, opening it if necessary.
+*********************************************************************/
+private synchronized OutputBinFile getBin(int index) throws IOException {
 
     OutputBinFile bin = files[index];
     if(bin == null) {
@@ -173,5 +316,101 @@ public void close() throws IOException {
 
 } // end of close method
 
+/*********************************************************************
+* A worker thread for parallel binning. It keeps a buffer of encoded
+* stars for each bin it has seen.
+*********************************************************************/
+private class Binner implements Callable<Object> {
+
+BlockingQueue<List<Star>> queue;
+
+ByteArrayOutputStream[] buffers;
+DataOutputStream[] outs;
+int[] counts;
+
+long buffered;
+
+/*********************************************************************
+*
+*********************************************************************/
+Binner(BlockingQueue<List<Star>> queue) {
+
+    this.queue = queue;
+
+    buffers = new ByteArrayOutputStream[files.length];
+    outs = new DataOutputStream[files.length];
+    counts = new int[files.length];
+
+} // end of constructor
+
+/*********************************************************************
+*
+*********************************************************************/
+public Object call() throws IOException, InterruptedException {
+
+    while(true) {
+        List<Star> batch = queue.take();
+        if(batch.isEmpty()) break;
+
+        for(Star star : batch) addStar(star);
+    }
+
+    flushAll();
+    return null;
+
+} // end of call method
+
+/*********************************************************************
+* Encode a star into the buffer for its bin.
+*********************************************************************/
+private void addStar(Star star) throws IOException {
+
+    int index = layout.getBin(star.getMagnitude(band));
+
+    if(outs[index] == null) {
+        buffers[index] = new ByteArrayOutputStream(CHUNK_SIZE/8);
+        outs[index] = new DataOutputStream(buffers[index]);
+    }
+
+    ByteArrayOutputStream buffer = buffers[index];
+    int before = buffer.size();
+
+    format.write(star, outs[index]);
+    ++counts[index];
+
+    buffered += buffer.size() - before;
+
+    if(buffer.size() >= CHUNK_SIZE) flush(index);
+    if(buffered >= WORKER_BUFFER_SIZE) flushAll();
+
+} // end of addStar method
+
+/*********************************************************************
+* Append the buffer for a bin to the bin file.
+*********************************************************************/
+private void flush(int index) throws IOException {
+
+    if(counts[index] == 0) return;
+
+    ByteArrayOutputStream buffer = buffers[index];
+    getBin(index).addStars(buffer, counts[index]);
+
+    buffered -= buffer.size();
+    buffer.reset();
+    counts[index] = 0;
+
+} // end of flush method
+
+/*********************************************************************
+* Append all the buffers to their bin files.
+*********************************************************************/
+private void flushAll() throws IOException {
+
+    for(int i=0; i< counts.length; ++i) flush(i);
+
+} // end of flushAll method
+
+} // end of Binner inner class
+
 
 } // end of MagBinner class
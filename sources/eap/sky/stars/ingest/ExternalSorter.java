@@ -0,0 +1,313 @@
+// Copyright 2012 Edward Alan Pier
+//
+// This file is part of eap.sky
+// 
+// eap.sky is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// eap.sky is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with eap.sky.  If not, see <http://www.gnu.org/licenses/>.
+
+package eap.sky.stars.ingest;
+
+import eap.sky.stars.*;
+
+import java.util.*;
+import java.text.*;
+import java.io.*;
+
+/********************************************************************
+* Sorts a catalog by magnitude using a fixed amount of memory. Stars are
+* read from the source until they fill the memory budget, then sorted
+* and written to a run file in a scratch directory. When the source is
+* exhausted the runs are merged with a priority queue as the stars are
+* requested. So sorting takes one pass to write the runs and one to
+* merge them, and needs no histogram of the magnitudes in advance.
+* <p>
+* Stars with the same magnitude come out in the order they were read, so
+* the result is the same as with a {@link MemorySorter}. If the whole
+* catalog fits in the budget, nothing is written to disk.
+********************************************************************/
+public class ExternalSorter implements CatalogSource {
+
+/********************************************************************
+* Rough memory used by a star in a run, not counting its name.
+********************************************************************/
+private static final long STAR_BYTES = 200;
+
+/********************************************************************
+* The most runs we merge at once. If there are more, we merge them in
+* groups first, so we don't run out of file handles.
+********************************************************************/
+private static final int MAX_FAN_IN = 128;
+
+private static final String prefix = "run";
+private static final NumberFormat run_format = new DecimalFormat("0000");
+
+File dir;
+Band band;
+StarFormat format;
+long budget;
+
+Comparator<Star> comparator;
+
+int nruns;
+List<File> runs;
+
+List<Star> memory;
+int memory_index;
+
+PriorityQueue<Run> queue;
+
+/********************************************************************
+* Read and sort a catalog.
+* @param source The stars to sort.
+* @param band The band to sort by.
+* @param format The format for the run files.
+* @param dir A scratch directory for the run files. It will be created if
+*        necessary.
+* @param budget The amount of memory to use for sorting in bytes.
+********************************************************************/
+public ExternalSorter(CatalogSource source, Band band, StarFormat format,
+                      File dir, long budget) throws IOException {
+
+    this.band = band;
+    this.format = format;
+    this.dir = dir;
+    this.budget = budget;
+
+    comparator = new MagComparator(band);
+    runs = new ArrayList<File>();
+
+    /***********************************
+    * read the source into sorted runs *
+    ***********************************/
+    List<Star> stars = new ArrayList<Star>();
+    long bytes = 0;
+
+    Star star;
+    while((star = source.nextStar()) != null) {
+
+        stars.add(star);
+
+        bytes += STAR_BYTES;
+        if(star.getName() != null) bytes += 2*star.getName().length();
+
+        if(bytes >= budget) {
+            writeRun(stars);
+            stars.clear();
+            bytes = 0;
+        }
+
+    } // end of loop over stars
+
+    /**************************************************
+    * if everything fit in memory, just use the list
+    **************************************************/
+    if(runs.isEmpty()) {
+        Collections.sort(stars, comparator);
+        memory = stars;
+        return;
+    }
+
+    if(stars.size() > 0) writeRun(stars);
+    stars = null;
+
+    /*********************************************
+    * reduce the number of runs until we can
+    * merge them all at once
+    *********************************************/
+    while(runs.size() > MAX_FAN_IN) {
+
+        List<File> merged = new ArrayList<File>();
+        for(int i=0; i< runs.size(); i += MAX_FAN_IN) {
+
+            List<File> group = runs.subList(i, Math.min(i+MAX_FAN_IN,
+                                                        runs.size()));
+
+            merged.add(mergeRuns(group));
+
+        } // end of loop over groups
+
+        runs = merged;
+
+    } // end of loop over merge passes
+
+    queue = openRuns(runs);
+
+} // end of constructor
+
+/********************************************************************
+* Sort a list of stars and write it to a new run file.
+********************************************************************/
+private void writeRun(List<Star> stars) throws IOException {
+
+    Collections.sort(stars, comparator);
+
+    File file = nextRunFile();
+    System.out.println("writing "+stars.size()+" stars to "+file);
+
+    DataOutputStream out = new DataOutputStream(
+                           new BufferedOutputStream(
+                           new FileOutputStream(file), 1<<16));
+
+    try {
+        for(Star star : stars) format.write(star, out);
+    } finally {
+        out.close();
+    }
+
+    runs.add(file);
+
+} // end of writeRun method
+
+/********************************************************************
+* Returns the name for a new run file.
+********************************************************************/
+private File nextRunFile() {
+
+    if(!dir.exists()) dir.mkdirs();
+
+    return new File(dir, prefix+run_format.format(nruns++));
+
+} // end of nextRunFile method
+
+/********************************************************************
+* Merge a group of runs into a single new run and delete the old ones.
+********************************************************************/
+private File mergeRuns(List<File> group) throws IOException {
+
+    File file = nextRunFile();
+    System.out.println("merging "+group.size()+" runs into "+file);
+
+    PriorityQueue<Run> queue = openRuns(group);
+
+    DataOutputStream out = new DataOutputStream(
+                           new BufferedOutputStream(
+                           new FileOutputStream(file), 1<<16));
+
+    try {
+        Star star;
+        while((star = nextStar(queue)) != null) format.write(star, out);
+    } finally {
+        out.close();
+    }
+
+    return file;
+
+} // end of mergeRuns method
+
+/********************************************************************
+* Open a set of runs for merging.
+********************************************************************/
+private PriorityQueue<Run> openRuns(List<File> files) throws IOException {
+
+    PriorityQueue<Run> queue = new PriorityQueue<Run>(files.size());
+
+    for(int i=0; i< files.size(); ++i) {
+        Run run = new Run(files.get(i), i);
+        if(run.advance()) queue.add(run);
+    }
+
+    return queue;
+
+} // end of openRuns method
+
+/********************************************************************
+* Returns the brightest star at the head of a set of runs.
+********************************************************************/
+private Star nextStar(PriorityQueue<Run> queue) throws IOException {
+
+    Run run = queue.poll();
+    if(run == null) return null;
+
+    Star star = run.star;
+    if(run.advance()) queue.add(run);
+
+    return star;
+
+} // end of nextStar method
+
+/********************************************************************
+* Returns the next star in magnitude order.
+* @return The next star, or null if all the stars have been returned.
+********************************************************************/
+public Star nextStar() throws IOException {
+
+    if(memory != null) {
+        if(memory_index < memory.size()) return memory.get(memory_index++);
+
+        memory = null;
+        return null;
+    }
+
+    if(queue == null) return null;
+
+    Star star = nextStar(queue);
+    if(star == null) queue = null;
+
+    return star;
+
+} // end of nextStar method
+
+/********************************************************************
+* A sorted run file being merged.
+********************************************************************/
+private class Run implements Comparable<Run> {
+
+File file;
+int order;
+
+NativeSource source;
+Star star;
+
+/********************************************************************
+*
+********************************************************************/
+Run(File file, int order) throws IOException {
+
+    this.file = file;
+    this.order = order;
+
+    source = new NativeSource(file, format, 1<<16);
+
+} // end of constructor
+
+/********************************************************************
+* Read the next star from the run, deleting the file when we
+* reach the end.
+* @return false if there are no more stars in the run.
+********************************************************************/
+boolean advance() throws IOException {
+
+    star = source.nextStar();
+    if(star != null) return true;
+
+    file.delete();
+    return false;
+
+} // end of advance method
+
+/********************************************************************
+* Order by magnitude, and then by the order of the runs, so that
+* stars with the same magnitude keep their original order.
+********************************************************************/
+public int compareTo(Run run) {
+
+    int result = comparator.compare(star, run.star);
+    if(result != 0) return result;
+
+    return order - run.order;
+
+} // end of compareTo method
+
+} // end of Run inner class
+
+} // end of ExternalSorter class
@@ -46,72 +46,58 @@ public HipparcosSource(BufferedReader reader) {
 
 } // end of constructor
 
+/*************************************************************************
+* Create a new catalog which parses the raw bytes of each line.
+* @param in The data source.
+*************************************************************************/
+public HipparcosSource(InputStream in) {
+
+    super(in, '|');
+
+    ra_format = SexigesimalFormat.HMS;
+    dec_format = SexigesimalFormat.DMS;
+
+} // end of byte stream constructor
+
 /***************************************************************************
 * Parse a single star from a line in the catalog.
 ***************************************************************************/
 protected Star parseLine(String line) {
 
+    DelimitedLine fields = new DelimitedLine('|');
+    fields.set(line);
 
+    return parseLine(fields);
 
-    String name = null;
-    double ra=0.0;
-    double dec=0.0;
+} // end of parseLine method
 
-    Photometry photometry = null;
+/***************************************************************************
+* Parse a single star from a line in the catalog which has been split into
+* fields. We only read the HIP number, the RA and Dec in degrees, and the
+* Hp magnitude.
+***************************************************************************/
+protected Star parseLine(DelimitedLine fields) {
 
-    /*******************
-    * loop over fields *
-    *******************/
-    StringTokenizer tokens = new StringTokenizer(line, "|");
-    for(int field = 0; tokens.hasMoreTokens(); ++field) {
-
-        String token = tokens.nextToken().trim();
-
-        if(field ==  1) name = "HIP"+token;
-        else if(field == 8) {
-            /*****
-            * RA *
-            *****/
-            if(token.equals("")) return null;
-            ra = Double.parseDouble(token);
-
-        } else if(field == 9) {
-            /******
-            * Dec *
-            ******/
-            if(token.equals("")) return null;
-            dec = Double.parseDouble(token);
-
-//         } else if(field ==5 && !token.equals("")) {
-//             /***************
-//             * V magnitude *
-//             **************/
-//             double mag = Double.parseDouble(token);
-//             photometry.addMagnitude(new Magnitude(Johnson.V, mag));
-//         } else if(field ==32 && !token.equals("")) {
-//             /***************
-//             * BT magnitude *
-//             **************/
-//             double mag = Double.parseDouble(token);
-//             photometry.addMagnitude(new Magnitude(TychoBand.B, mag));
-// 
-//         } else if(field ==34 && !token.equals("")) {
-//             /***************
-//             * VT magnitude *
-//             **************/
-//             double mag = Double.parseDouble(token);
-//             photometry.addMagnitude(new Magnitude(TychoBand.V, mag));
+    if(fields.getFieldCount() < 10) return null;
 
-        } else if(field ==44 && !token.equals("")) {
-            /***************
-            * Hp magnitude *
-            **************/
-            float mag = Float.parseFloat(token);
-            photometry = new FloatMagnitude(HipparcosBand.Hp, mag);
-        }
+    String name = "HIP"+fields.getString(1);
 
+    /*************
+    * RA and Dec *
+    *************/
+    if(fields.isEmpty(8) || fields.isEmpty(9)) return null;
 
-    } // end of loop over tokens;
+    double ra  = fields.getDouble(8);
+    double dec = fields.getDouble(9);
+
+    /***************
+    * Hp magnitude *
+    ***************/
+    Photometry photometry = null;
+    if(fields.getFieldCount() > 44 && !fields.isEmpty(44)) {
+        photometry = new FloatMagnitude(HipparcosBand.Hp,
+                                        fields.getFloat(44));
+    }
 
     /********************
     * assemble the star *
@@ -122,7 +108,7 @@ protected Star parseLine(String line) {
 
     return star;
 
-} // end of parseLine method
+} // end of parseLine from fields method
 
 /*************************************************************************
 *
@@ -135,9 +121,7 @@ public static void main(String[] args) throws Exception {
     bands.add(band);
 
     File file = new File("hip_main.dat");
-    BufferedReader reader = new BufferedReader(new FileReader(file));
-
-    HipparcosSource source = new HipparcosSource(reader);
+    HipparcosSource source = new HipparcosSource(new FileInputStream(file));
     MemorySorter sorter = new MemorySorter(source, band);
 
 
@@ -19,18 +19,29 @@ package eap.sky.stars.ingest;
 
 import eap.sky.stars.*;
 
-import java.lang.ref.*;
 import java.util.*;
 import java.io.*;
 
 /*******************************************************************
-*
+* An output cell which holds its stars in memory until the generator's
+* {@link SpillManager} runs out of room, and then keeps them in a file.
+* Each new star adds an estimate of its size to the manager's total,
+* and the manager calls {@link #spill()} to write the stars to disk
+* when the total goes over budget. Once spilled, new stars are appended
+* to the file through the generator's {@link StreamCache}.
 *******************************************************************/
 public class HybridOutputCell extends CascadeOutputCell {
 
-SoftReference<StarCache> cache_ref;
-boolean dumped;
+/*******************************************************************
+* The estimated memory used by a star, not counting its name.
+*******************************************************************/
+private static final long STAR_BYTES = 200;
+
+StarCache cache;
 int count;
+volatile long bytes;
+
+SpillManager manager;
 
 /*******************************************************************
 *
@@ -39,71 +50,25 @@ public HybridOutputCell(CatalogGenerator generator, Cell cell) {
 
     super(generator, cell);
 
-    dumped = false;
-    cache_ref = new SoftReference<StarCache>(new StarCache(this));
-
+    cache = new StarCache(this);
+    manager = generator.getSpillManager();
 
 } // end of constructor
 
 /*******************************************************************
-*
-*******************************************************************/
-public synchronized void markDumped() {
-
-   // System.out.println("marking dumped for "+getName());
-    dumped = true;
-    notifyAll();
-
-} // end of markDumped method
-
-/*******************************************************************
-*
+* @return true if the stars of this cell have been written to disk.
 *******************************************************************/
-private StarCache getStarCache() {
-
-    if(dumped) return null;
-
-    StarCache cache = (StarCache)cache_ref.get();
-    if(cache != null) return cache;
-
-    /**********************************************
-    * if we get here the cache has been cleared
-    * wait until it has been finalized
-    **********************************************/
-    synchronized(this) {
-       // Runtime.getRuntime().runFinalization();
-        while(!dumped) {
-            System.out.println("waiting until dumped "+getName());
-            try { wait(); }
-            catch(InterruptedException e) {}
-        }
-
-    } // end of synchronized block
-
-    return null;
-
-
-
-} // end of getStarCache method
+public synchronized boolean isSpilled() { return cache == null; }
 
 /*********************************************************************
 *
 *********************************************************************/
-protected List<Star> getList() throws IOException {
+protected synchronized List<Star> getList() throws IOException {
 
-    StarCache cache = getStarCache();
     if(cache != null) return cache.getStars();
     else {
-        NativeSource source = new NativeSource(getFile(),
-                                            generator.getStarFormat());
-
-        List<Star> list = new ArrayList<Star>(count);
-        Star star;
-        while((star = source.nextStar()) != null) {
-            list.add(star);
-        }
-
-        return list;
+        generator.getStreamCache().flush(getFile());
+        return readFile();
     } // end if the cache has been dumped
 
 } // end of getList method
@@ -113,37 +78,82 @@ protected List<Star> getList() throws IOException {
 *********************************************************************/
 protected void addToList(Star star) throws IOException {
 
-    ++count;
+    boolean resident;
+    synchronized(this) {
 
-    StarCache cache = getStarCache();
-    if(cache != null) cache.addStar(star);
-    else {
+        ++count;
 
-        DataOutputStream out = new DataOutputStream(
-                               new FileOutputStream(getFile(), true));
+        resident = cache != null;
+        if(resident) {
+            cache.addStar(star);
 
-        generator.getStarFormat().write(star, out);
-        out.close();
+            long size = bytes + STAR_BYTES;
+            if(star.getName() != null) size += 2*star.getName().length();
+            bytes = size;
 
-    } // end if the cache has been dumped
+        } else {
+
+            generator.getStreamCache().write(getFile(), star,
+                                             generator.getStarFormat());
+
+        } // end if the cache has been dumped
+    } // end of synchronized block
+
+    /*********************************************
+    * tell the manager outside the lock, since
+    * it may decide to spill this or another cell.
+    * It reads our size itself, so if we have been
+    * spilled or saved since, it just forgets us
+    *********************************************/
+    if(resident) manager.update(this);
 
 } // end of addToList method
 
+/*********************************************************************
+* @return The estimated size of the stars in memory, or -1 once they
+* have been spilled or saved.
+*********************************************************************/
+protected long getMemoryBytes() { return bytes; }
+
 /*********************************************************************
 *
 *********************************************************************/
-protected int getListSize() { return count; }
+protected synchronized int getListSize() { return count; }
+
+/*********************************************************************
+* Write the stars to disk and release the memory they use.
+*********************************************************************/
+protected void spill() throws IOException {
+
+    synchronized(this) {
+        if(cache == null) return;
+
+        cache.dump();
+        cache = null;
+        bytes = -1L;
+    }
+
+    manager.remove(this);
+
+} // end of spill method
 
 /*********************************************************************
 *
 *********************************************************************/
 protected void save() throws IOException {
 
-    StarCache cache = getStarCache();
-    if(cache != null) {
-        cache_ref.clear();
+    synchronized(this) {
+        if(cache != null) writeCell(cache.getStars());
+        else {
+            generator.getStreamCache().close(getFile());
+            compactFile();
+        }
+        cache = null;
+        bytes = -1L;
     }
 
+    manager.remove(this);
+
 } // end of close method
 
 /*********************************************************************
@@ -151,7 +161,13 @@ protected void save() throws IOException {
 *********************************************************************/
 protected void abortSave() throws IOException {
 
-    cache_ref.clear(); // ?? is this the right thing to do???
+    synchronized(this) {
+        cache = null;
+        bytes = -1L;
+    }
+
+    manager.remove(this);
+    generator.getStreamCache().close(getFile());
     getFile().delete();
 
 } // end of close method
@@ -18,6 +18,7 @@
 package eap.sky.stars.ingest;
 
 import eap.sky.stars.*;
+import eap.sky.stars.archive.*;
 
 import java.io.*;
 
@@ -34,6 +35,9 @@ CatalogSource source;
 String catalog_name;
 String version;
 
+int nthreads;
+long sort_budget;
+
 /***************************************************************
 * A tool for reading a star catalog and grouping stars into cells.
 * @param dir A work directory. The ingest will write scratch files and
@@ -55,10 +59,29 @@ public Ingester(File dir, Band band, CatalogSource source,
     bands.add(band);
     format = new StarFormat5(bands);
 
+    nthreads = 1;
+
     if(!dir.exists()) dir.mkdir();
 
 } // end of constructor
 
+/*************************************************************************
+* Set the number of threads used for the binning step and for generating
+* the cells. This defaults to one, which does all the work on the calling
+* thread. The number of processors is usually a good choice otherwise.
+* @param nthreads The number of threads. One means don't use extra threads.
+*************************************************************************/
+public void setThreadCount(int nthreads) { this.nthreads = nthreads; }
+
+/*************************************************************************
+* Sort the catalog with an {@link ExternalSorter} instead of binning it
+* by magnitude. This skips the histogram and binning steps, so the
+* original catalog is only read once. By default the budget is zero,
+* which means use the binning steps.
+* @param budget The memory to use for sorting in bytes.
+*************************************************************************/
+public void setSortBudget(long budget) { this.sort_budget = budget; }
+
 /*************************************************************************
 *
 *************************************************************************/
@@ -84,6 +107,16 @@ public File getSortedFile() { return new File(dir, "sorted"); }
 *************************************************************************/
 public File getCellsDirectory() { return new File(dir, "cells"); }
 
+/*************************************************************************
+*
+*************************************************************************/
+public File getRunsDirectory() { return new File(dir, "runs"); }
+
+/*************************************************************************
+*
+*************************************************************************/
+public File getPackFile() { return new File(dir, "cells.pack"); }
+
 /*************************************************************************
 *
 *************************************************************************/
@@ -144,7 +177,7 @@ public void bin() throws IOException {
     bins_dir.mkdir();
     DiskSorter sorter = new DiskSorter(source, bins_dir, format, hist, size);
 
-    sorter.binStars();
+    sorter.binStars(nthreads);
 
 } // end of bin method
 
@@ -170,6 +203,30 @@ public void sort() throws IOException {
 
 } // end of sort method
 
+/*************************************************************************
+* Sort the original catalog directly into the sorted file, using a
+* limited amount of memory.
+* @see #setSortBudget(long)
+*************************************************************************/
+public void externalSort() throws IOException {
+
+    File sorted_file = getSortedFile();
+    if(sorted_file.exists()) return;
+
+    ExternalSorter sorter = new ExternalSorter(source, band, format,
+                                               getRunsDirectory(),
+                                               sort_budget);
+
+    /*****************************
+    * write out the sorted stars *
+    *****************************/
+    NativeSaver saver = new NativeSaver(sorter, sorted_file, format);
+    saver.save();
+
+    getRunsDirectory().delete();
+
+} // end of externalSort method
+
 /*************************************************************************
 *
 *************************************************************************/
@@ -188,27 +245,56 @@ public void generate() throws IOException {
     * generate the catalog *
     ***********************/
     cells_dir.mkdir();
-    CatalogGenerator generator = new DepthFirstGenerator(source,
-                                                         cells_dir,
-                                                         1000,
-                                                         bands,
-                                                         band,
-                                                         format,
-                                                         catalog_name,
-                                                         version,
-                                                         new HTMRoot());
+    DepthFirstGenerator generator = new DepthFirstGenerator(source,
+                                                            cells_dir,
+                                                            1000,
+                                                            bands,
+                                                            band,
+                                                            format,
+                                                            catalog_name,
+                                                            version,
+                                                            new HTMRoot());
+    generator.setThreadCount(nthreads);
     generator.generate();
 
 } // end of generate method
 
+/*************************************************************************
+* Pack the generated cells into a single file, which can be opened with
+* a {@link PackArchive}. This isn't part of {@link #ingest()}, since
+* the pack is a copy of the cells directory.
+*************************************************************************/
+public void pack() throws IOException {
+
+    File pack_file = getPackFile();
+    if(pack_file.exists()) return;
+
+    /***********************************************
+    * write to a temporary name, so that a partial
+    * pack won't be mistaken for a finished one
+    ***********************************************/
+    File tmp = new File(dir, pack_file.getName()+".tmp");
+    PackArchive.write(getCellsDirectory(), tmp);
+
+    if(!tmp.renameTo(pack_file)) {
+        throw new IOException("Could not rename "+tmp+" to "+pack_file);
+    }
+
+} // end of pack method
+
 /**************************************************************************
 *
 **************************************************************************/
 public void ingest() throws IOException {
 
-    histogram();
-    bin();
-    sort();
+    if(sort_budget > 0) {
+        externalSort();
+    } else {
+        histogram();
+        bin();
+        sort();
+    }
+
     generate();
 
 } // end of ingest method
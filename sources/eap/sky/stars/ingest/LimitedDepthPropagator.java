@@ -24,12 +24,16 @@ import eap.sky.stars.*;
 * It starts out creating memory cells, and then after it reaches a
 * maximum number, it switches to dead end cells. The DepthFirstGenerator
 * uses this propagator. Other CatalogGenerators probably shouldn't.
+* <p>
+* The count of cells created is kept separately for each thread, so that
+* a generator may run several cascades at once, one per thread, with
+* each call to {@link #reset()} only affecting the calling thread.
 * @see DepthFirstGenerator
 ***********************************************************************/
 public class LimitedDepthPropagator extends CellPropagator {
 
 int max_cells;
-int ncells;
+ThreadLocal<int[]> ncells;
 
 /***********************************************************************
 *
@@ -37,21 +41,24 @@ int ncells;
 public LimitedDepthPropagator(int max_cells) {
 
     this.max_cells = max_cells;
-    ncells = 0;
+
+    ncells = new ThreadLocal<int[]>() {
+        protected int[] initialValue() { return new int[1]; }
+    };
 
 } // end of constructor
 
 /***********************************************************************
 *
 ***********************************************************************/
-public void reset() { ncells = 0; }
+public void reset() { ncells.get()[0] = 0; }
 
 /***********************************************************************
 *
 ***********************************************************************/
 public OutputCell createRoot(CatalogGenerator generator, Cell cell) {
 
-    ++ncells;
+    ++ncells.get()[0];
     return new MemoryOutputCell(generator, cell);
 
 } // end of createRoot method
@@ -63,11 +70,13 @@ public OutputCell createChild(OutputCell parent, Cell cell) {
 
     CatalogGenerator generator = parent.getCatalogGenerator();
 
-    if(ncells <= max_cells) {
-        ++ncells;
+    int[] count = ncells.get();
+
+    if(count[0] <= max_cells) {
+        ++count[0];
         return new MemoryOutputCell(generator, cell);
     } else {
-        ++ncells;
+        ++count[0];
         return new DeadEndCell(generator, cell);
     }
 
@@ -27,9 +27,6 @@ import java.io.*;
 **********************************************************************/
 public class MemoryOutputCell extends CascadeOutputCell {
 
-private static int instances=0;
-private static int nclosed = 0;
-
 List<Star> stars;
 
 /**********************************************************************
@@ -41,22 +38,8 @@ public MemoryOutputCell(CatalogGenerator generator, Cell cell) {
 
     stars = new ArrayList<Star>(generator.getStarsPerCell());
 
-    ++instances;
-//     System.out.println("memory instances="+instances+
-//                        " open="+(instances-nclosed));
-
 } // end of constructor
 
-/**********************************************************************
-*
-**********************************************************************/
-protected void finalize() {
-
-    --instances;
-    --nclosed;
-
-} // end of finalize method
-
 
 /*********************************************************************
 *
@@ -90,27 +73,11 @@ protected void save() throws IOException {
         throw new IllegalStateException("No stars");
     }
 
-    ++nclosed;
-
-    /************************************
-    * open a file named after this cell *
-    ************************************/
-    DataOutputStream out = new DataOutputStream(
-                           new BufferedOutputStream(
-                           new FileOutputStream(getFile())));
-
-    /**********************
-    * write all the stars *
-    **********************/
-    StarFormat format = generator.getStarFormat();
-    for(Star star : stars) {
-        format.write(star, out);
-    }
-
-    /*****************
-    * close the file *
-    *****************/
-    out.close();
+    /*****************************************
+    * write all the stars to a file named
+    * after this cell
+    *****************************************/
+    writeCell(stars);
 
     /*********************************************
     * set the list to null to release its memory *
@@ -124,7 +91,6 @@ protected void save() throws IOException {
 *********************************************************************/
 protected void abortSave() throws IOException {
 
-    ++nclosed;
     stars = null;
 
 } // end of abortSave method
@@ -45,7 +45,7 @@ public NativeSource(File file, StarFormat format, int buffer_size) throws IOExce
 
     this(new DataInputStream(
          new BufferedInputStream(
-         new FileInputStream(file), 2048)),
+         new FileInputStream(file), buffer_size)),
          format);
 
 } // end of file constructor
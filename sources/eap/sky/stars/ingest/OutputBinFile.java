@@ -50,7 +50,7 @@ public OutputBinFile(File dir, int index, StarFormat format) throws IOException
 /*********************************************************************
 *
 *********************************************************************/
-public int getCount() { return count; }
+public synchronized int getCount() { return count; }
 
 /*********************************************************************
 *
@@ -62,14 +62,29 @@ public void addStar(Star star) throws IOException {
 
 } // end of addStar method
 
+/*********************************************************************
+* Append a block of stars which have already been encoded in this
+* file's format. This is used when several threads bin stars at once,
+* so that each thread can write large blocks.
+* @param data The encoded stars.
+* @param nstars The number of stars in the data.
+*********************************************************************/
+public synchronized void addStars(ByteArrayOutputStream data, int nstars)
+                    throws IOException {
+
+    data.writeTo(out);
+    count += nstars;
+
+} // end of addStars method
+
 /*********************************************************************
 *
 *********************************************************************/
-public void flush() throws IOException { out.flush(); }
+public synchronized void flush() throws IOException { out.flush(); }
 
 /*********************************************************************
 *
 *********************************************************************/
-public void close() throws IOException { out.close(); }
+public synchronized void close() throws IOException { out.close(); }
 
 } // end of OutputBinFile class
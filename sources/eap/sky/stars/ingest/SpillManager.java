@@ -0,0 +1,280 @@
+// Copyright 2012 Edward Alan Pier
+//
+// This file is part of eap.sky
+// 
+// eap.sky is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// eap.sky is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with eap.sky.  If not, see <http://www.gnu.org/licenses/>.
+
+package eap.sky.stars.ingest;
+
+import java.util.*;
+import java.io.*;
+
+/**************************************************************************
+* Keeps the star lists of in-memory output cells within a fixed memory
+* budget. Each {@link CascadeOutputCell} which holds its stars in memory
+* calls {@link #update(CascadeOutputCell)} when its list grows, and the
+* manager reads the estimated size of the list from the cell.
+* Whenever the total goes over the budget, the manager asks cells to
+* write their stars to disk with {@link CascadeOutputCell#spill()} until
+* it is back under budget. Cells are chosen either by size or by how
+* long it has been since a star was added to them.
+* <p>
+* This replaces the old scheme of holding star lists through soft references
+* and dumping them from a finalizer, so the amount of memory used and the
+* time taken to generate a catalog no longer depend on the garbage collector.
+* <p>
+* All methods are thread safe. Cells are never spilled while the manager
+* holds its own lock, so a cell may call the manager from within its own
+* synchronized methods.
+**************************************************************************/
+public class SpillManager {
+
+/**************************************************************************
+* The budget used by a catalog generator when you don't set one, 256 MB.
+**************************************************************************/
+public static final long DEFAULT_BUDGET = 256L*1024L*1024L;
+
+/**************************************************************************
+* Spill the cells holding the most bytes first.
+**************************************************************************/
+public static final int LARGEST = 0;
+
+/**************************************************************************
+* Spill the cells which have gone longest without a new star first.
+**************************************************************************/
+public static final int COLDEST = 1;
+
+long budget;
+int policy;
+
+long bytes;
+long peak;
+
+long spills;
+long spilled_bytes;
+
+LinkedHashMap<CascadeOutputCell, Long> cells;
+
+/**************************************************************************
+* Create a new manager.
+* @param budget The maximum number of bytes of stars to hold in memory.
+* @param policy Either {@link #LARGEST} or {@link #COLDEST}.
+**************************************************************************/
+public SpillManager(long budget, int policy) {
+
+    if(budget < 0) {
+        throw new IllegalArgumentException("Negative spill budget "+budget);
+    }
+
+    if(policy != LARGEST && policy != COLDEST) {
+        throw new IllegalArgumentException("Unknown spill policy "+policy);
+    }
+
+    this.budget = budget;
+    this.policy = policy;
+
+    cells = new LinkedHashMap<CascadeOutputCell, Long>(16, 0.75f, true);
+
+} // end of constructor
+
+/**************************************************************************
+* Create a new manager which spills the largest cells first.
+* @param budget The maximum number of bytes of stars to hold in memory.
+**************************************************************************/
+public SpillManager(long budget) { this(budget, LARGEST); }
+
+/**************************************************************************
+* Record the current size of a cell's in-memory star list. This also
+* marks the cell as the most recently used. The size is read from the
+* cell while holding the manager's lock, so a cell which has been spilled
+* or saved since it last added a star is not tracked again, and a late
+* call can't record an out of date size. If this puts the total over
+* the budget, cells are spilled before this method returns, possibly
+* including the cell passed to it.
+* @param cell The cell holding the stars.
+* @throws IOException If there was trouble spilling a cell to disk.
+**************************************************************************/
+public void update(CascadeOutputCell cell) throws IOException {
+
+    List<CascadeOutputCell> victims = null;
+
+    synchronized(this) {
+
+        long size = cell.getMemoryBytes();
+
+        Long old;
+        if(size < 0) old = cells.remove(cell);
+        else         old = cells.put(cell, size);
+
+        if(old != null) bytes -= old;
+        if(size > 0) bytes += size;
+
+        if(bytes > peak) peak = bytes;
+
+        if(bytes > budget) victims = chooseVictims();
+
+    } // end of synchronized block
+
+    /*****************************************************
+    * spill outside the lock, so that a cell which is
+    * busy adding a star can't deadlock with the manager
+    *****************************************************/
+    if(victims != null) spill(victims);
+
+} // end of update method
+
+/**************************************************************************
+* Stop tracking a cell. Cells call this when they are saved, discarded,
+* or spilled.
+* @param cell The cell to forget.
+**************************************************************************/
+public synchronized void remove(CascadeOutputCell cell) {
+
+    Long size = cells.remove(cell);
+    if(size != null) bytes -= size;
+
+} // end of remove method
+
+/**************************************************************************
+* Pick the cells to spill to bring the total back under budget, and stop
+* tracking them. The caller must hold the lock.
+* @return The cells to spill.
+**************************************************************************/
+private List<CascadeOutputCell> chooseVictims() {
+
+    List<CascadeOutputCell> victims = new ArrayList<CascadeOutputCell>();
+
+    while(bytes > budget && !cells.isEmpty()) {
+
+        Map.Entry<CascadeOutputCell, Long> victim = null;
+        if(policy == COLDEST) {
+            /******************************************
+            * the map is in access order, so the
+            * first entry is the least recently used
+            ******************************************/
+            victim = cells.entrySet().iterator().next();
+
+        } else {
+            /************************
+            * find the largest cell *
+            ************************/
+            for(Map.Entry<CascadeOutputCell, Long> entry : cells.entrySet()) {
+                if(victim == null || entry.getValue() > victim.getValue()) {
+                    victim = entry;
+                }
+            }
+        }
+
+        CascadeOutputCell cell = victim.getKey();
+        long size = victim.getValue();
+
+        cells.remove(cell);
+        bytes -= size;
+
+        ++spills;
+        spilled_bytes += size;
+
+        victims.add(cell);
+
+    } // end of loop while over budget
+
+    return victims;
+
+} // end of chooseVictims method
+
+/**************************************************************************
+* Ask each of a list of cells to write its stars to disk.
+* @param victims The cells to spill.
+* @throws IOException If there was trouble writing one of the cells.
+**************************************************************************/
+private void spill(List<CascadeOutputCell> victims) throws IOException {
+
+    IOException error = null;
+    for(CascadeOutputCell cell : victims) {
+        /********************************************
+        * keep going after an error so that every
+        * victim gets a chance to free its memory
+        ********************************************/
+        try { cell.spill(); }
+        catch(IOException e) {
+            if(error == null) error = e;
+        }
+    }
+
+    if(error != null) throw error;
+
+} // end of spill method
+
+/**************************************************************************
+* Change the budget. The new budget is enforced the next time a cell
+* reports its size.
+* @param budget The maximum number of bytes of stars to hold in memory.
+**************************************************************************/
+public synchronized void setBudget(long budget) {
+
+    if(budget < 0) {
+        throw new IllegalArgumentException("Negative spill budget "+budget);
+    }
+
+    this.budget = budget;
+
+} // end of setBudget method
+
+/**************************************************************************
+* @return The maximum number of bytes of stars to hold in memory.
+**************************************************************************/
+public synchronized long getBudget() { return budget; }
+
+/**************************************************************************
+* @return Either {@link #LARGEST} or {@link #COLDEST}.
+**************************************************************************/
+public int getPolicy() { return policy; }
+
+/**************************************************************************
+* @return The estimated number of bytes currently held by in-memory cells.
+**************************************************************************/
+public synchronized long getResidentBytes() { return bytes; }
+
+/**************************************************************************
+* @return The largest value {@link #getResidentBytes()} has reached.
+**************************************************************************/
+public synchronized long getPeakBytes() { return peak; }
+
+/**************************************************************************
+* @return The number of cells currently held in memory.
+**************************************************************************/
+public synchronized int getCellCount() { return cells.size(); }
+
+/**************************************************************************
+* @return The number of times a cell has been spilled to disk.
+**************************************************************************/
+public synchronized long getSpillCount() { return spills; }
+
+/**************************************************************************
+* @return The total estimated size of all the cells spilled to disk.
+**************************************************************************/
+public synchronized long getSpilledBytes() { return spilled_bytes; }
+
+/**************************************************************************
+* @return A summary of the memory use and spill counts.
+**************************************************************************/
+public synchronized String toString() {
+
+    return "SpillManager budget="+budget+" resident="+bytes+
+           " peak="+peak+" cells="+cells.size()+
+           " spills="+spills+" spilled="+spilled_bytes;
+
+} // end of toString method
+
+} // end of SpillManager class
@@ -23,6 +23,8 @@ import java.util.*;
 import java.io.*;
 
 /**********************************************************************
+* The in-memory star list of a {@link HybridOutputCell}. The cell's
+* {@link SpillManager} decides when the list is written to disk.
 * @see HybridOutputCell
 **********************************************************************/
 public class StarCache {
@@ -51,48 +53,22 @@ public void addStar(Star star) { list.add(star); }
 public List<Star> getStars() { return list; }
 
 /**********************************************************************
-*
+* Write all the stars in this cache to the cell's file, replacing
+* anything already there.
+* @throws IOException If there was trouble writing the file.
 **********************************************************************/
 public void dump() throws IOException {
 
-  //  System.out.println("dumping "+cell.getName());
-
     DataOutputStream out = new DataOutputStream(
-                           new FileOutputStream(cell.getFile()));
+                           new BufferedOutputStream(
+                           new FileOutputStream(cell.getFile())));
 
     StarFormat format = cell.getCatalogGenerator().getStarFormat();
 
-    for(Iterator it = list.iterator(); it.hasNext(); ) {
-        Star star = (Star)it.next();
-
-        format.write(star, out);
-
-
-
-    } // end of loop over stars
+    format.write(list, out);
 
     out.close();
 
-   // System.out.println("done dumping "+cell.getName());
-    cell.markDumped();
-
 } // end of dump method
 
-
-/**********************************************************************
-*
-**********************************************************************/
-public void finalize() throws Throwable {
-
-    System.out.println("Finalizing cache for "+cell.getName()+" "+list.size());
-
-    try { dump(); }
-    catch(Exception e) {
-        e.printStackTrace();
-    }
-
-} // end of finalized method
-
-
-
 } // end of StarCache class
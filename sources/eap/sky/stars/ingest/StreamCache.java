@@ -17,40 +17,77 @@
 
 package eap.sky.stars.ingest;
 
+import eap.sky.stars.*;
+
+import java.lang.management.*;
 import java.util.*;
 import java.io.*;
 
 /************************************************************************
-* A virtual collection of output streams associated with files.
-* This class is an attempt to get around the operating system
-* restriction on the number of files which can be open at one time.
-* it automatically closes streams should there be too manyand
-* reopens them if needed.
-* There are likely some problems with the implementation, and this class
-* is currently not used. for a while it was used with DeadEndCell.
+* A pool of buffered output streams for appending stars to files.
+* The operating system limits the number of files which may be open at
+* one time, so the pool keeps at most a fixed number of streams open and
+* closes the least recently used one when it needs another. A closed
+* stream is reopened in append mode the next time its file is written.
+* If opening a file fails anyway, the pool closes a stream, lowers its
+* limit to the number still open, and tries again.
+* <p>
+* Streams belong to the pool, so cells write through
+* {@link #write(File, Star, StarFormat)} instead of holding on to them.
+* Call {@link #flush(File)} before reading a file which may have
+* buffered data, and {@link #close(File)} when it is finished.
+* All methods are synchronized, so one pool may be shared by all the cells
+* of a {@link CatalogGenerator}.
 ************************************************************************/
 public class StreamCache {
 
-Map<File, OutputStream> map;
+/************************************************************************
+* The largest number of streams to hold open by default.
+************************************************************************/
+public static final int DEFAULT_LIMIT = 1024;
+
+/************************************************************************
+* The size of the buffer for each stream.
+************************************************************************/
+private static final int BUFFER_SIZE = 1<<13;
+
+Map<File, DataOutputStream> map;
 int limit;
 
+long opens;
+long evictions;
+
 private static StreamCache INSTANCE;
 
 /************************************************************************
-*
+* Create a new empty pool.
+* @param limit The maximum number of streams to hold open at once.
 ************************************************************************/
-private StreamCache() {
+public StreamCache(int limit) {
 
-    map = new LinkedHashMap<File, OutputStream>();
+    if(limit < 1) {
+        throw new IllegalArgumentException("Stream limit must be positive "+
+                                           limit);
+    }
+
+    map = new LinkedHashMap<File, DataOutputStream>(16, 0.75f, true);
 
-    limit = Integer.MAX_VALUE;
+    this.limit = limit;
 
 } // end of constructor
 
 /************************************************************************
-*
+* Create a new pool with a limit which leaves room for other open files.
+* @see #getDefaultLimit()
 ************************************************************************/
-public static StreamCache getInstance() {
+public StreamCache() { this(getDefaultLimit()); }
+
+/************************************************************************
+* Returns a shared pool for code which doesn't have a generator
+* to hand.
+* @return The shared pool.
+************************************************************************/
+public static synchronized StreamCache getInstance() {
 
     if(INSTANCE == null) INSTANCE = new StreamCache();
     return INSTANCE;
@@ -58,66 +95,178 @@ public static StreamCache getInstance() {
 } // end of getInstance method
 
 /************************************************************************
-*
+* Works out how many streams a pool should hold open. This is half the
+* file descriptor limit of the process if the JVM reports it, but no
+* more than {@link #DEFAULT_LIMIT}.
+* @return The default stream limit.
 ************************************************************************/
-public DataOutputStream getStream(File file) throws IOException {
+public static int getDefaultLimit() {
+
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if(os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+        /*************************************
+        * leave half the descriptors for the
+        * rest of the program and the JVM
+        *************************************/
+        long max = ((com.sun.management.UnixOperatingSystemMXBean)os)
+                   .getMaxFileDescriptorCount();
+
+        if(max > 0) return (int)Math.max(1, Math.min(DEFAULT_LIMIT, max/2));
+    }
 
-    DataOutputStream out = (DataOutputStream)map.get(file);
-    if(out != null) return out;
+    return DEFAULT_LIMIT;
 
+} // end of getDefaultLimit method
 
+/************************************************************************
+* Returns an open stream appending to a file, opening it if needed.
+* The stream may be closed by any later call to this pool, so write to
+* it straight away and don't keep it.
+* @param file The file to append to.
+* @return The stream for the file.
+* @throws IOException If the file could not be opened.
+************************************************************************/
+public synchronized DataOutputStream getStream(File file) throws IOException {
+
+    DataOutputStream out = map.get(file);
+    if(out != null) return out;
 
     while(true) {
 
-        while(map.size()>= limit) closeOldest();
+        while(map.size() >= limit) closeOldest();
 
         try {
             out = new DataOutputStream(
-                new BufferedOutputStream(
-                new FileOutputStream(file, true)));
+                  new BufferedOutputStream(
+                  new FileOutputStream(file, true), BUFFER_SIZE));
 
+            ++opens;
             map.put(file, out);
             return out;
 
         } catch(FileNotFoundException e) {
+            /******************************************
+            * this is probably "too many open files",
+            * so give up a stream and lower the limit.
+            * If there is nothing left to close,
+            * the problem is something else
+            ******************************************/
+            if(map.isEmpty()) throw e;
+
             closeOldest();
-            limit = map.size();
-            System.out.println("set limit to "+limit);
+            limit = Math.max(1, map.size());
+            System.out.println("set stream limit to "+limit);
         }
 
     } // end of loop over trials
 
-
 } // end of getStream method
 
 /************************************************************************
-*
+* Append a star to a file.
+* @param file The file to append to.
+* @param star The star to write.
+* @param format The format in which to encode the star.
+* @throws IOException If there was trouble writing the star.
+************************************************************************/
+public synchronized void write(File file, Star star, StarFormat format)
+                         throws IOException {
+
+    format.write(star, getStream(file));
+
+} // end of write method
+
+/************************************************************************
+* Write any buffered data for a file, so that it can be read. The stream
+* stays open.
+* @param file The file to flush.
+* @throws IOException If there was trouble writing the data.
 ************************************************************************/
-public void close(File file) throws IOException {
+public synchronized void flush(File file) throws IOException {
 
-    DataOutputStream out = (DataOutputStream)map.remove(file);
+    DataOutputStream out = map.get(file);
+    if(out != null) out.flush();
+
+} // end of flush method
+
+/************************************************************************
+* Close the stream for a file, if it is open.
+* @param file The file to close.
+* @throws IOException If there was trouble writing buffered data.
+************************************************************************/
+public synchronized void close(File file) throws IOException {
+
+    DataOutputStream out = map.remove(file);
     if(out != null) out.close();
 
 } // end of close method
 
 /************************************************************************
-*
+* Close all the open streams.
+* @throws IOException If there was trouble writing buffered data.
 ************************************************************************/
-private void closeOldest() throws IOException {
+public synchronized void closeAll() throws IOException {
+
+    IOException error = null;
+    for(DataOutputStream out : map.values()) {
+        try { out.close(); }
+        catch(IOException e) {
+            if(error == null) error = e;
+        }
+    }
+
+    map.clear();
 
-   // System.out.println("size="+map.size()+" limit="+limit);
+    if(error != null) throw error;
+
+} // end of closeAll method
+
+/************************************************************************
+* Close the least recently used stream.
+************************************************************************/
+private void closeOldest() throws IOException {
 
     if(map.size() ==0) {
         throw new IllegalStateException("No streams to close");
     }
 
-    File file = (File)map.keySet().iterator().next();
-  //  System.out.println("closing "+file);
-    DataOutputStream out = (DataOutputStream)map.remove(file);
+    Iterator<DataOutputStream> it = map.values().iterator();
+    DataOutputStream out = it.next();
+    it.remove();
+
+    ++evictions;
     out.close();
 
 } // end of closeOldest method
 
+/************************************************************************
+* @return The maximum number of streams held open at once.
+************************************************************************/
+public synchronized int getLimit() { return limit; }
+
+/************************************************************************
+* @return The number of streams currently open.
+************************************************************************/
+public synchronized int getOpenCount() { return map.size(); }
+
+/************************************************************************
+* @return The number of times a file has been opened.
+************************************************************************/
+public synchronized long getOpenedCount() { return opens; }
+
+/************************************************************************
+* @return The number of streams closed to make room for others.
+************************************************************************/
+public synchronized long getEvictionCount() { return evictions; }
+
+/************************************************************************
+* @return A summary of the pool's state.
+************************************************************************/
+public synchronized String toString() {
+
+    return "StreamCache limit="+limit+" open="+map.size()+
+           " opened="+opens+" evicted="+evictions;
 
+} // end of toString method
 
 } // end of StreamCache class
@@ -21,6 +21,7 @@ import eap.sky.stars.*;
 import eap.sky.util.*;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.zip.*;
 import java.io.*;
 
@@ -34,10 +35,28 @@ import java.io.*;
 * also available on a set of DVD-ROMs See the Data Access link on the
 * <a href="http://www.ipac.caltech.edu/2mass/">IPAC 2MASS home page</a>
 * for more information.
+* <p>
+* The source can read several files at once in background threads.
+* Each thread decompresses and parses one file and passes the stars on
+* in batches through a bounded queue, so memory use stays fixed however
+* far ahead the threads get. By default stars come out in whatever order
+* the threads produce them. In ordered mode they come out in the same
+* order as a single threaded read, so that repeated builds are identical.
 *********************************************************************/
 public class TwoMassSource implements CatalogSource {
 
-BufferedReader reader;
+/*********************************************************************
+* Number of stars passed from a reading thread at a time.
+*********************************************************************/
+private static final int BATCH_SIZE = 4096;
+
+/*********************************************************************
+* Number of batches which may wait in each queue.
+*********************************************************************/
+private static final int QUEUE_BATCHES = 8;
+
+ByteLineReader reader;
+DelimitedLine fields;
 
 File[] files;
 int index;
@@ -45,6 +64,16 @@ int index;
 Band band;
 int mag_col;
 
+int nthreads;
+boolean ordered;
+
+ExecutorService pool;
+List<BlockingQueue<Batch>> queues;
+int remaining;
+
+List<Star> batch;
+int batch_index;
+
 /*********************************************************************
 *
 *********************************************************************/
@@ -60,8 +89,28 @@ public TwoMassSource(File dir, Band band) {
 //     else if(band.equals(Johnson.Ks)) mag_col = 14;
 //     else throw new IllegalArgumentException("Invalid band "+band);
 
+    nthreads = 1;
+
 } // end of constructor
 
+/*********************************************************************
+* Create a source which reads several files at once.
+* @param dir The directory holding the gzipped PSC files.
+* @param band The band to use for the star magnitudes.
+* @param nthreads The number of files to read at once. One means read
+*        the files in the calling thread.
+* @param ordered If true, return the stars in the same order as a
+*        single thread would.
+*********************************************************************/
+public TwoMassSource(File dir, Band band, int nthreads, boolean ordered) {
+
+    this(dir, band);
+
+    this.nthreads = nthreads;
+    this.ordered = ordered;
+
+} // end of multi-threaded constructor
+
 /*********************************************************************
 *
 *********************************************************************/
@@ -71,10 +120,11 @@ private boolean nextFile() throws IOException {
 
     System.out.println("opening "+files[index]);
 
-    reader = new BufferedReader(
-             new InputStreamReader(
+    reader = new ByteLineReader(
              new GZIPInputStream(
-             new FileInputStream(files[index]))));
+             new FileInputStream(files[index]), 1<<16));
+
+    if(fields == null) fields = new DelimitedLine('|');
 
     ++index;
 
@@ -87,6 +137,8 @@ private boolean nextFile() throws IOException {
 *********************************************************************/
 public Star nextStar() throws IOException {
 
+    if(nthreads > 1) return nextQueuedStar();
+
     while(true) {
         /**************************************
         * check if we need to open a new file *
@@ -96,8 +148,7 @@ public Star nextStar() throws IOException {
         /*********************
         * read the next line *
         *********************/
-        String line = reader.readLine();
-        if(line == null) {
+        if(!reader.next()) {
             /***************************************************
             * end of file - so close this one up and try again *
             ***************************************************/
@@ -106,7 +157,8 @@ public Star nextStar() throws IOException {
             continue;
         }
 
-        Star star = parseLine(line);
+        fields.set(reader.getBytes(), 0, reader.getLength());
+        Star star = parseLine(fields);
 
         if(star != null) return star;
 
@@ -114,84 +166,154 @@ public Star nextStar() throws IOException {
 
 } // end of nextStar method
 
+/*********************************************************************
+* Start a thread for each file, up to the thread limit. The files are
+* queued in order, so in ordered mode the file we are waiting for is
+* always either running or finished.
+*********************************************************************/
+private void startThreads() {
+
+    pool = Executors.newFixedThreadPool(nthreads, new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "2MASS reader");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    queues = new ArrayList<BlockingQueue<Batch>>(files.length);
+
+    BlockingQueue<Batch> shared = null;
+    if(!ordered) {
+        shared = new ArrayBlockingQueue<Batch>(QUEUE_BATCHES*nthreads);
+    }
+
+    for(int i=0; i< files.length; ++i) {
+        BlockingQueue<Batch> queue = shared;
+        if(ordered) queue = new ArrayBlockingQueue<Batch>(QUEUE_BATCHES);
+
+        queues.add(queue);
+        pool.execute(new PSCReader(files[i], queue));
+    }
+
+    remaining = files.length;
+    index = 0;
+
+} // end of startThreads method
 
 /*********************************************************************
-*
+* Returns the next star from the reading threads.
 *********************************************************************/
-public Star parseLine(String line) {
+private Star nextQueuedStar() throws IOException {
 
-    /*****************
-    * parse the line *
-    *****************/
-    String name = null;
-    double ra = 0.0;
-    double dec = 0.0;
-
-    float mag_j  = Float.NaN;
-    float mag_h  = Float.NaN;
-    float mag_ks = Float.NaN;
-
-
-
-    StringTokenizer tokens = new StringTokenizer(line, "|");
-    for(int field = 0; field<=28; ++field) {
-
-        String token = tokens.nextToken().trim();
-
-        if(field == 0) {
-            /*****
-            * RA *
-            *****/
-            if(token.equals("\\N")) return null;
-            ra = Double.parseDouble(token);
-
-        } else if(field == 1) {
-            /******
-            * Dec *
-            ******/
-            if(token.equals("\\N")) return null;
-            dec = Double.parseDouble(token);
-
-//         } else if(field == mag_col) {
-//             /************
-//             * magnitude *
-//             ************/
-//             if(token.equals("\\N")) return null;
-//             float mag = Float.parseFloat(token);
-//             photometry = new ShortMagnitude(band, mag);
-
-        } else if(field == 6) {
-            /**************
-            * J magnitude *
-            **************/
-            if(!token.equals("\\N")) {
-                mag_j = Float.parseFloat(token);
-            }
+    if(queues == null) startThreads();
 
-        } else if(field == 10) {
-            /**************
-            * H magnitude *
-            **************/
-            if(!token.equals("\\N")) {
-                mag_j = Float.parseFloat(token);
-            }
+    while(true) {
+        /************************************
+        * return the next star in the batch *
+        ************************************/
+        if(batch != null && batch_index < batch.size()) {
+            return batch.get(batch_index++);
+        }
 
-        } else if(field == 14) {
-            /***************
-            * Ks magnitude *
-            ***************/
-            if(!token.equals("\\N")) {
-                mag_ks = Float.parseFloat(token);
-            }
+        batch = null;
 
-        }  else if(field == 28) {
-            /***********************
-            * sequential numbering *
-            ***********************/
-            name = token;
+        if(remaining == 0) {
+            close();
+            return null;
         }
 
-    } // end of loop over fields
+        /**************************
+        * wait for the next batch *
+        **************************/
+        Batch next;
+        try { next = queues.get(index).take(); }
+        catch(InterruptedException e) {
+            close();
+            throw (IOException)(new IOException("Interrupted reading 2MASS")
+                                               .initCause(e));
+        }
+
+        if(next.error != null) {
+            close();
+            throw next.error;
+        }
+
+        if(next.stars == null) {
+            /**********************************
+            * a file has been completely read *
+            **********************************/
+            --remaining;
+            if(ordered) ++index;
+            continue;
+        }
+
+        batch = next.stars;
+        batch_index = 0;
+
+    } // end of loop over batches
+
+} // end of nextQueuedStar method
+
+/*********************************************************************
+* Stop any reading threads. You only need to call this if you stop
+* reading before the end of the catalog.
+*********************************************************************/
+public void close() {
+
+    if(pool != null) pool.shutdownNow();
+
+    if(reader != null) {
+        try { reader.close(); }
+        catch(IOException e) {}
+        reader = null;
+    }
+
+} // end of close method
+
+
+/*********************************************************************
+* Parse a line of the PSC. This is a convenience method, since it
+* creates a new parser for each line.
+* @param line A line from a PSC file.
+* @return The star, or null if the line has no position or no magnitude
+*         in the sort band.
+*********************************************************************/
+public Star parseLine(String line) {
+
+    DelimitedLine fields = new DelimitedLine('|');
+    fields.set(line);
+
+    return parseLine(fields);
+
+} // end of parseLine from a String method
+
+/*********************************************************************
+* Parse a line of the PSC. Only the position, the J, H, and Ks
+* magnitudes, and the sequence number are read. The other fields are
+* skipped without parsing them.
+* @param fields A parser holding the line.
+* @return The star, or null if the line has no position or no magnitude
+*         in the sort band.
+*********************************************************************/
+public Star parseLine(DelimitedLine fields) {
+
+    if(fields.getFieldCount() < 29) return null;
+
+    /*************
+    * RA and Dec *
+    *************/
+    if(fields.isNull(0) || fields.isNull(1)) return null;
+
+    double ra  = fields.getDouble(0);
+    double dec = fields.getDouble(1);
+
+    /**************************
+    * J, H, and Ks magnitudes *
+    **************************/
+    float mag_j  = fields.isNull( 6) ? Float.NaN : fields.getFloat( 6);
+    float mag_h  = fields.isNull(10) ? Float.NaN : fields.getFloat(10);
+    float mag_ks = fields.isNull(14) ? Float.NaN : fields.getFloat(14);
 
     /*******************************************
     * determine the magnitude in the sort band *
@@ -200,6 +322,11 @@ public Star parseLine(String line) {
     if(Float.isNaN(mag)) return null;
     Photometry photometry = new ShortMagnitude(band, mag);
 
+    /************************************************
+    * the name is the sequential number of the star *
+    ************************************************/
+    String name = fields.getString(28);
+
     /******************
     * create the star *
     ******************/
@@ -227,6 +354,114 @@ public float convertMagnitude(float mag_j, float mag_h, float mag_ks) {
 
 } // end of convert magnitude method
 
+/*********************************************************************
+* A batch of stars passed from a reading thread. A batch with no stars
+* marks the end of a file, and a batch with an error means the thread
+* failed.
+*********************************************************************/
+private static class Batch {
+
+List<Star> stars;
+IOException error;
+
+/*********************************************************************
+*
+*********************************************************************/
+Batch(List<Star> stars, IOException error) {
+
+    this.stars = stars;
+    this.error = error;
+
+} // end of constructor
+
+} // end of Batch inner class
+
+/*********************************************************************
+* Reads and parses one file in a background thread.
+*********************************************************************/
+private class PSCReader implements Runnable {
+
+File file;
+BlockingQueue<Batch> queue;
+
+/*********************************************************************
+*
+*********************************************************************/
+PSCReader(File file, BlockingQueue<Batch> queue) {
+
+    this.file = file;
+    this.queue = queue;
+
+} // end of constructor
+
+/*********************************************************************
+*
+*********************************************************************/
+public void run() {
+
+    try {
+        try {
+            read();
+            queue.put(new Batch(null, null));
+
+        } catch(IOException e) {
+            queue.put(new Batch(null, e));
+
+        } catch(RuntimeException e) {
+            IOException error = new IOException("Error reading "+file);
+            error.initCause(e);
+            queue.put(new Batch(null, error));
+        }
+
+    } catch(InterruptedException e) {
+        /**********************************
+        * the source has been closed, so
+        * just give up
+        **********************************/
+    }
+
+} // end of run method
+
+/*********************************************************************
+* Parse the file, passing the stars to the queue in batches.
+*********************************************************************/
+private void read() throws IOException, InterruptedException {
+
+    System.out.println("opening "+file);
+
+    ByteLineReader reader = new ByteLineReader(
+                            new GZIPInputStream(
+                            new FileInputStream(file), 1<<16));
+
+    DelimitedLine fields = new DelimitedLine('|');
+
+    try {
+        List<Star> stars = new ArrayList<Star>(BATCH_SIZE);
+
+        while(reader.next()) {
+
+            fields.set(reader.getBytes(), 0, reader.getLength());
+            Star star = parseLine(fields);
+            if(star == null) continue;
+
+            stars.add(star);
+            if(stars.size() == BATCH_SIZE) {
+                queue.put(new Batch(stars, null));
+                stars = new ArrayList<Star>(BATCH_SIZE);
+            }
+
+        } // end of loop over lines
+
+        if(stars.size() > 0) queue.put(new Batch(stars, null));
+
+    } finally {
+        reader.close();
+    }
+
+} // end of read method
+
+} // end of PSCReader inner class
+
 /*********************************************************************
 *
 *********************************************************************/
@@ -258,7 +493,9 @@ public static void main(String[] args) throws Exception {
     /**********************************
     * create some things we will need *
     **********************************/
-    CatalogSource source = new TwoMassSource(new File(top, "psc"), band);
+    int nthreads = Runtime.getRuntime().availableProcessors();
+    CatalogSource source = new TwoMassSource(new File(top, "psc"), band,
+                                             nthreads, true);
 
     File work = new File(top, "work_"+band);
     String name = "2MASS "+band;
@@ -50,61 +50,76 @@ public TychoSource(BufferedReader reader, Band band) {
 
 } // end of constructor
 
+/*************************************************************************
+* Create a new instance of the catalog which parses the raw bytes of each
+* line.
+* @param in The data source.
+*************************************************************************/
+public TychoSource(InputStream in, Band band) {
+
+    super(in, '|');
+
+    this.band = band;
+
+} // end of byte stream constructor
+
 /***************************************************************************
-* Pare a single star from a line in the catalog.
+* Parse a single star from a line in the catalog.
 ***************************************************************************/
 protected Star parseLine(String line) {
 
-//System.out.println(line);
+    DelimitedLine fields = new DelimitedLine('|');
+    fields.set(line);
+
+    return parseLine(fields);
 
-    StringTokenizer tokens = new StringTokenizer(line, "|");
+} // end of parseLine method
+
+/***************************************************************************
+* Parse a single star from a line in the catalog which has been split
+* into fields.
+***************************************************************************/
+protected Star parseLine(DelimitedLine fields) {
+
+    if(fields.getFieldCount() < 20) return null;
 
     /**********************************************
     * assemble the star name from the TYC indices *
     **********************************************/
     int[] tyc = new int[3];
-    int index=0;
-    for(StringTokenizer fields = new StringTokenizer(tokens.nextToken().trim());
-        fields.hasMoreTokens(); ++index) {
-
-        tyc[index] = Integer.parseInt(fields.nextToken());
-      //  System.out.println(index+" "+tyc[index]);
-      //  if(index==2) System.out.println(fields.nextToken());
-    }
+    fields.getInts(0, tyc);
 
     String name = "TYC"+tyc[0]+"-"+tyc[1]+"-"+tyc[2];
 
-    tokens.nextToken(); // pflag;
-
-    /*************
-    * RA and Dec *
-    *************/
+    /******************************************
+    * RA and Dec. Field 1 is the pflag
+    ******************************************/
     Direction dir = null;
     try {
-        double ra  = Double.parseDouble(tokens.nextToken().trim());
-        double dec = Double.parseDouble(tokens.nextToken().trim());
+        if(fields.isNull(2) || fields.isNull(3)) return null;
+
+        double ra  = fields.getDouble(2);
+        double dec = fields.getDouble(3);
         dir = new Direction(ra, dec);
     } catch(NumberFormatException e) {
         return null;
     }
 
-    for(int i=0; i<13; ++i) tokens.nextToken();
-
-    /*************
-    * photometry *
-    *************/
+    /****************************************
+    * photometry. Skip the next 13 fields
+    ****************************************/
     Magnitude mag_b = null;
     Magnitude mag_v = null;
     try {
-        float value = Float.parseFloat(tokens.nextToken().trim());
-        mag_b = new ShortMagnitude(TychoBand.B, value);
+        if(!fields.isNull(17)) {
+            mag_b = new ShortMagnitude(TychoBand.B, fields.getFloat(17));
+        }
     } catch(NumberFormatException e) {}
 
-    tokens.nextToken();
-
     try {
-        double value = Float.parseFloat(tokens.nextToken().trim());
-        mag_v = new ShortMagnitude(TychoBand.V, value);
+        if(!fields.isNull(19)) {
+            mag_v = new ShortMagnitude(TychoBand.V, fields.getFloat(19));
+        }
     } catch(NumberFormatException e) {}
 
    Photometry photometry = null;
@@ -120,7 +135,7 @@ protected Star parseLine(String line) {
     return new Star(name, dir, photometry);
 
 
-} // end of parseLine method
+} // end of parseLine from fields method
 
 /*************************************************************************
 *
@@ -149,9 +164,7 @@ public static void main(String[] args) throws Exception {
     * open the catalog file *
     ************************/
     File file = new File("catalog.dat");
-    BufferedReader reader = new BufferedReader(new FileReader(file));
-
-    CatalogSource source = new TychoSource(reader, band);
+    CatalogSource source = new TychoSource(new FileInputStream(file), band);
 
     /******************************
     * are we selecting dim stars? *
@@ -0,0 +1,216 @@
+// Copyright 2012 Edward Alan Pier
+//
+// This file is part of eap.sky
+//
+// eap.sky is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// eap.sky is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with eap.sky.  If not, see <http://www.gnu.org/licenses/>.
+
+package eap.sky.test;
+
+import eap.sky.stars.*;
+import eap.sky.stars.archive.*;
+
+import java.util.*;
+import java.io.*;
+
+/***************************************************************************
+* Checks that an {@link ArchiveClient} talking to an {@link ArchiveServer}
+* over the loopback interface returns the same entries as reading the
+* directory archive directly.
+***************************************************************************/
+public class TestArchiveServer {
+
+/***************************************************************************
+* A long name for a small entry, so that a batch of them makes a request
+* of tens of megabytes.
+***************************************************************************/
+private static final String SMALL = String.format("small%0195d", 0);
+
+/***************************************************************************
+* Make a directory archive with some random entries, including a few named
+* after HTM cells.
+***************************************************************************/
+private static File makeArchive(Random random, int size) throws IOException {
+
+    File dir = File.createTempFile("archive", ".test");
+    dir.delete();
+    dir.mkdir();
+    dir.deleteOnExit();
+
+    String[] names = {"cell_info", "bands", "N0", "N01", "N0123", "S3",
+                      "S3210", "N0123.names"};
+
+    for(String name : names) {
+        byte[] data = new byte[size + random.nextInt(size)];
+        random.nextBytes(data);
+
+        /*********************************
+        * make half of them compressible *
+        *********************************/
+        if(random.nextBoolean()) Arrays.fill(data, 0, data.length/2, (byte)7);
+
+        File file = new File(dir, name);
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+    }
+
+    /*****************************************
+    * a small entry to fill up a large batch *
+    *****************************************/
+    byte[] data = new byte[100];
+    random.nextBytes(data);
+
+    File file = new File(dir, SMALL);
+    file.deleteOnExit();
+    OutputStream out = new FileOutputStream(file);
+    out.write(data);
+    out.close();
+
+    return dir;
+
+} // end of makeArchive method
+
+/***************************************************************************
+* Read a whole stream.
+***************************************************************************/
+private static byte[] read(InputStream in) throws IOException {
+
+    if(in == null) return null;
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while((n = in.read(buffer)) >= 0) bytes.write(buffer, 0, n);
+    in.close();
+
+    return bytes.toByteArray();
+
+} // end of read method
+
+/***************************************************************************
+* Compare the client with the directory for every entry, one at a time,
+* by ID, and in a batch large enough that the replies fill the socket
+* buffers before the request is all written.
+***************************************************************************/
+public static boolean testLoopback(boolean compress) throws IOException {
+
+    Random random = new Random(18);
+    DirectoryArchive archive = new DirectoryArchive(makeArchive(random,
+                                                                100000));
+    List<String> names = Arrays.asList(archive.getDirectory().list());
+
+    ArchiveServer server = new ArchiveServer(archive, 0);
+    server.start();
+
+    ArchiveClient client = new ArchiveClient("localhost", server.getPort());
+    client.setCompression(compress);
+    client.setTimeout(60000);
+
+    boolean ok = true;
+    try {
+        /**********************
+        * one entry at a time *
+        **********************/
+        for(String name : names) {
+            if(!Arrays.equals(read(archive.getInputStream(name)),
+                              read(client.getInputStream(name)))) {
+                System.out.println("entry "+name+" differs");
+                ok = false;
+            }
+        }
+
+        if(client.getInputStream("no_such_entry") != null) {
+            System.out.println("missing entry was found");
+            ok = false;
+        }
+
+        /********
+        * by ID *
+        ********/
+        if(!Arrays.equals(read(archive.getInputStream("N0123")),
+                          read(client.getInputStream(HTMId.fromName("N0123"))))) {
+            System.out.println("entry by ID differs");
+            ok = false;
+        }
+
+        /*****************************************
+        * names outside the archive and bad IDs
+        * are errors, but the connection survives
+        *****************************************/
+        String[] bad = {"../"+archive.getDirectory().getName()+"/bands",
+                        archive.getDirectory().getAbsolutePath()+"/bands",
+                        "sub/bands", ".."};
+        for(String name : bad) {
+            try {
+                client.getInputStream(name);
+                System.out.println("read bad name "+name);
+                ok = false;
+            } catch(IOException e) {}
+        }
+
+        try {
+            client.getInputStream(5L);
+            System.out.println("read bad ID");
+            ok = false;
+        } catch(IOException e) {}
+
+        if(!Arrays.equals(read(archive.getInputStream("bands")),
+                          read(client.getInputStream("bands")))) {
+            System.out.println("connection did not survive errors");
+            ok = false;
+        }
+
+        /**************************************************
+        * a batch whose request is bigger than the socket
+        * buffers, so the replies back up while the client
+        * is still writing it
+        **************************************************/
+        List<String> batch = new ArrayList<String>();
+        for(int i=0; i< 150000; ++i) {
+            if(i % 1000 == 0) batch.add(names.get((i/1000) % names.size()));
+            else              batch.add(SMALL);
+        }
+
+        List<InputStream> streams = client.getInputStreams(batch);
+        for(int i=0; i< batch.size(); ++i) {
+            if(!Arrays.equals(read(archive.getInputStream(batch.get(i))),
+                              read(streams.get(i)))) {
+                System.out.println("batch entry "+i+" differs");
+                ok = false;
+                break;
+            }
+        }
+
+    } finally {
+        client.close();
+        server.close();
+    }
+
+    System.out.println("loopback compress="+compress+" ok="+ok+" "+server);
+    return ok;
+
+} // end of testLoopback method
+
+/***************************************************************************
+*
+***************************************************************************/
+public static void main(String[] args) throws Exception {
+
+    boolean ok = testLoopback(false) & testLoopback(true);
+    if(!ok) System.exit(1);
+
+} // end of main method
+
+} // end of TestArchiveServer class
@@ -89,6 +89,25 @@ private ArcPath(Arc begin, Arc end, boolean loop) {
 }
 
 
+/***********************************************************************
+* Returns the first arc in the path.
+* @return The first arc in the path.
+***********************************************************************/
+public Arc getFirstArc() { return begin; }
+
+/***********************************************************************
+* Returns the last arc in the path. If the path is closed, this arc is
+* linked to the first one.
+* @return The last arc in the path.
+***********************************************************************/
+public Arc getLastArc() { return end; }
+
+/***********************************************************************
+* Returns true if the path is a closed loop.
+* @return true if the last arc is linked to the first one.
+***********************************************************************/
+public boolean isLoop() { return loop; }
+
 /***********************************************************************
 * Apply a rotation to the entire path.
 * @param rotation The rotation to apply.